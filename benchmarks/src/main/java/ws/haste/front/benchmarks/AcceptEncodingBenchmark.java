@@ -0,0 +1,69 @@
+package ws.haste.front.benchmarks;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ws.haste.front.AcceptEncoding;
+import ws.haste.front.FileResource;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code Accept-Encoding} negotiation with headers sent by real browsers and tools. {@code memoized} measures the
+ * common case of a header value that has been seen before; {@code unique} defeats the memo to measure parsing.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AcceptEncodingBenchmark {
+    private static final @NotNull String @NotNull [] HEADERS = {
+            "gzip, deflate, br, zstd",
+            "gzip, deflate, br",
+            "gzip, deflate",
+            "br;q=1.0, gzip;q=0.8, *;q=0.1",
+            "identity",
+            "gzip;q=0, deflate;q=0.5, identity;q=0.2",
+            "*",
+            "deflate, gzip;q=1.0, *;q=0.5"
+    };
+
+    private int mask;
+    private @NotNull String @NotNull [] unique;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        mask = AcceptEncoding.mask(List.of(FileResource.Encoding.Identity, FileResource.Encoding.Gzip, FileResource.Encoding.Brotli));
+        // more distinct values than the memo holds, so most lookups miss
+        unique = new String[8192];
+        for (int i = 0; i < unique.length; ++i) unique[i] = HEADERS[i % HEADERS.length] + ", x-" + i;
+    }
+
+    @Benchmark
+    public FileResource.@Nullable Encoding memoized() {
+        return AcceptEncoding.negotiate(HEADERS[next++ & 7], mask);
+    }
+
+    @Benchmark
+    public FileResource.@Nullable Encoding unique() {
+        return AcceptEncoding.negotiate(unique[next++ & 8191], mask);
+    }
+
+    @Benchmark
+    public FileResource.@Nullable Encoding absent() {
+        return AcceptEncoding.negotiate(null, mask);
+    }
+}
@@ -0,0 +1,60 @@
+package ws.haste.front.benchmarks;
+
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ws.haste.front.Config;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading large configurations with {@link Config#fromYaml}, which is also the cost of a hot reload
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConfigBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int resources;
+
+    private @NotNull String path;
+
+    @Setup
+    public void setup() throws IOException {
+        final @NotNull String file = Fixtures.tempFile("haste-bench-file", 16).toString();
+        final @NotNull StringBuilder sb = new StringBuilder();
+        sb.append("port: 8080\n");
+        sb.append("headers: {server: haste.ws}\n");
+        sb.append("resources:\n");
+        for (int i = 0; i < resources; ++i) {
+            sb.append("  - path: \"").append(Fixtures.route(i)).append("\"\n");
+            sb.append("    content-type: \"text/plain\"\n");
+            sb.append("    headers: {cache-control: \"max-age=3600\"}\n");
+            sb.append("    files: {identity: \"").append(file).append("\", gzip: \"").append(file).append("\"}\n");
+        }
+        final @NotNull Path config = Files.createTempFile("haste-bench-config", ".yaml");
+        config.toFile().deleteOnExit();
+        Files.writeString(config, sb);
+        path = config.toString();
+    }
+
+    @Benchmark
+    public @NotNull Config load() {
+        return Config.fromYaml(path);
+    }
+}
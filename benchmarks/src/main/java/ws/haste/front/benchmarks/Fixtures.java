@@ -0,0 +1,55 @@
+package ws.haste.front.benchmarks;
+
+import org.jetbrains.annotations.NotNull;
+import ws.haste.front.Config;
+import ws.haste.front.FileResource;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+
+/**
+ * Shared benchmark data
+ */
+final class Fixtures {
+    private Fixtures() {}
+
+    /**
+     * Route patterns: mostly exact paths, some trailing-{@code *} prefixes and a few wildcards in the middle, like a
+     * typical site configuration
+     */
+    static @NotNull String route(final int i) {
+        return switch (i % 10) {
+            case 0, 1, 2 -> "/static/" + i + "/*";
+            case 3 -> "/img/*/thumb-" + i + ".png";
+            default -> "/assets/file-" + i + ".js";
+        };
+    }
+
+    /**
+     * A request path that matches route {@code i}
+     */
+    static @NotNull String path(final int i) {
+        return switch (i % 10) {
+            case 0, 1, 2 -> "/static/" + i + "/css/site.css";
+            case 3 -> "/img/gallery/thumb-" + i + ".png";
+            default -> "/assets/file-" + i + ".js";
+        };
+    }
+
+    static @NotNull FileResource resource(final @NotNull String url, final @NotNull String file) {
+        final @NotNull HashMap<FileResource.@NotNull Encoding, @NotNull String> files = new HashMap<>();
+        files.put(FileResource.Encoding.Identity, file);
+        return new FileResource(url, "application/octet-stream", files, null, null, FileResource.ServingMode.Stream, false, null, null, null, null, Config.RangeRequests.DEFAULT);
+    }
+
+    static @NotNull Path tempFile(final @NotNull String prefix, final int size) throws IOException {
+        final @NotNull Path file = Files.createTempFile(prefix, ".bin");
+        file.toFile().deleteOnExit();
+        final byte @NotNull [] content = new byte[size];
+        for (int i = 0; i < size; ++i) content[i] = (byte) (i * 31 + 7);
+        Files.write(file, content);
+        return file;
+    }
+}
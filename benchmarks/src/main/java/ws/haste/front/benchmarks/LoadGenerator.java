@@ -0,0 +1,381 @@
+package ws.haste.front.benchmarks;
+
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.MultiMap;
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.PoolOptions;
+import io.vertx.core.http.RequestOptions;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load generator that sends requests to a running server at a constant rate and reports latency percentiles
+ * <p>
+ * Requests are scheduled at fixed intervals regardless of how long earlier ones take, and latency is measured from
+ * the time a request was scheduled rather than sent. A server that stalls therefore shows up in the percentiles with
+ * the full delay it caused to every queued request, instead of being hidden by the load generator slowing down
+ * (coordinated omission).
+ * <p>
+ * Each {@code --request} adds an entry to the request mix: {@code [weight:][METHOD ]path[|Header: value]...}. A
+ * header value of {@code @etag} or {@code @last-modified} is replaced with the validator the server returns for the
+ * path before the run, to send conditional requests that are answered with 304. For example:
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar ws.haste.front.benchmarks.LoadGenerator --target http://localhost:8080 \
+ *     --rate 5000 --duration 30 \
+ *     --request "6:/index.html|Accept-Encoding: br, gzip" \
+ *     --request "2:/video.mp4|Range: bytes=0-65535" \
+ *     --request "1:/video.mp4|Range: bytes=0-99,1000-1099,5000-5099" \
+ *     --request "1:/index.html|If-None-Match: @etag"
+ * </pre>
+ */
+public final class LoadGenerator {
+    private static final @NotNull String USAGE = """
+            Usage: LoadGenerator [options] --request SPEC [--request SPEC]...
+              --target URL          server to send requests to (default http://localhost:8080)
+              --rate N              requests per second (default 1000)
+              --duration SECONDS    length of the measured run (default 30)
+              --warmup SECONDS      length of the unmeasured run before it (default 5)
+              --connections N       maximum open connections (default 16)
+              --threads N           client event loops (default 1)
+              --max-outstanding N   requests in flight or queued after which new ones are dropped (default 10000)
+              --seed N              seed of the request mix (default 1)
+              --request SPEC        [weight:][METHOD ]path[|Header: value]...
+            """;
+    /**
+     * Highest latency that can be recorded, in nanoseconds
+     */
+    private static final long MAX_LATENCY = TimeUnit.MINUTES.toNanos(1);
+
+    private final @NotNull URI target;
+    private final int rate;
+    private final long duration;
+    private final long warmup;
+    private final int connections;
+    private final int threads;
+    private final int maxOutstanding;
+    private final long seed;
+    private final @NotNull List<@NotNull Entry> mix;
+    private final int totalWeight;
+
+    private final @NotNull AtomicLong outstanding = new AtomicLong();
+    private final @NotNull LongAdder dropped = new LongAdder();
+    private final @NotNull LongAdder intervalDropped = new LongAdder();
+    private final @NotNull LongAdder bytes = new LongAdder();
+    /**
+     * Set once the last request has been scheduled
+     */
+    private volatile boolean scheduled = false;
+
+    private LoadGenerator(final @NotNull URI target, final int rate, final long duration, final long warmup, final int connections, final int threads, final int maxOutstanding, final long seed, final @NotNull List<@NotNull Entry> mix) {
+        this.target = target;
+        this.rate = rate;
+        this.duration = duration;
+        this.warmup = warmup;
+        this.connections = connections;
+        this.threads = threads;
+        this.maxOutstanding = maxOutstanding;
+        this.seed = seed;
+        this.mix = mix;
+        int totalWeight = 0;
+        for (final @NotNull Entry entry : mix) totalWeight += entry.weight;
+        this.totalWeight = totalWeight;
+    }
+
+    public static void main(final @NotNull String @NotNull [] args) throws InterruptedException {
+        @NotNull URI target = URI.create("http://localhost:8080");
+        int rate = 1000;
+        long duration = 30;
+        long warmup = 5;
+        int connections = 16;
+        int threads = 1;
+        int maxOutstanding = 10000;
+        long seed = 1;
+        final @NotNull List<@NotNull Entry> mix = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                final @NotNull String option = args[i];
+                if (option.equals("--help") || option.equals("-h")) {
+                    System.out.print(USAGE);
+                    return;
+                }
+                if (i + 1 >= args.length) throw new IllegalArgumentException(option + ": missing value");
+                final @NotNull String value = args[++i];
+                switch (option) {
+                    case "--target" -> target = URI.create(value);
+                    case "--rate" -> rate = positive(option, value);
+                    case "--duration" -> duration = positive(option, value);
+                    case "--warmup" -> warmup = Long.parseLong(value);
+                    case "--connections" -> connections = positive(option, value);
+                    case "--threads" -> threads = positive(option, value);
+                    case "--max-outstanding" -> maxOutstanding = positive(option, value);
+                    case "--seed" -> seed = Long.parseLong(value);
+                    case "--request" -> mix.add(Entry.parse(value));
+                    default -> throw new IllegalArgumentException(option + ": unknown option");
+                }
+            }
+            if (mix.isEmpty()) throw new IllegalArgumentException("at least one --request is required");
+            if (target.getHost() == null) throw new IllegalArgumentException("--target: must be an absolute http URL");
+        }
+        catch (final @NotNull IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(USAGE);
+            System.exit(2);
+            return;
+        }
+        new LoadGenerator(target, rate, duration, warmup, connections, threads, maxOutstanding, seed, mix).run();
+    }
+
+    private static int positive(final @NotNull String option, final @NotNull String value) {
+        final int n = Integer.parseInt(value);
+        if (n <= 0) throw new IllegalArgumentException(option + ": must be a positive integer");
+        return n;
+    }
+
+    private void run() throws InterruptedException {
+        final @NotNull Vertx vertx = Vertx.vertx(new VertxOptions().setEventLoopPoolSize(this.threads));
+        final @NotNull HttpClient client = vertx.createHttpClient(new PoolOptions().setHttp1MaxSize(this.connections));
+        try {
+            resolveValidators(client);
+            for (final @NotNull Entry entry : this.mix) entry.options = new RequestOptions()
+                    .setAbsoluteURI(this.target.resolve(entry.path).toString())
+                    .setMethod(entry.method)
+                    .setHeaders(entry.headers);
+            final @NotNull Context @NotNull [] contexts = new Context[this.threads];
+            // from a non-Vert.x thread, every call returns a context on the next event loop
+            for (int i = 0; i < contexts.length; ++i) contexts[i] = vertx.getOrCreateContext();
+
+            System.out.printf(Locale.ROOT, "%d requests/s to %s for %ds after %ds of warmup, %d connections%n", this.rate, this.target, this.duration, this.warmup, this.connections);
+            final long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+            final long measureFrom = start + TimeUnit.SECONDS.toNanos(this.warmup);
+            final long end = measureFrom + TimeUnit.SECONDS.toNanos(this.duration);
+            final @NotNull Thread pacer = new Thread(() -> pace(client, contexts, start, measureFrom, end), "load-pacer");
+            pacer.setDaemon(true);
+            pacer.start();
+
+            // report progress once per second
+            long reportAt = start + TimeUnit.SECONDS.toNanos(1);
+            while (true) {
+                LockSupport.parkNanos(reportAt - System.nanoTime());
+                if (System.nanoTime() < reportAt) continue;
+                final boolean done = this.scheduled && this.outstanding.get() == 0;
+                final boolean timedOut = System.nanoTime() > end + TimeUnit.SECONDS.toNanos(30);
+                final @NotNull Histogram interval = new Histogram(MAX_LATENCY, 3);
+                long errors = 0;
+                for (final @NotNull Entry entry : this.mix) {
+                    interval.add(entry.interval.getIntervalHistogram());
+                    errors += entry.intervalErrors.sumThenReset();
+                }
+                System.out.printf(Locale.ROOT, "%s %6d req  p50 %9s  p99 %9s  max %9s  errors %d  dropped %d  outstanding %d%n",
+                        reportAt <= measureFrom ? "(w)" : "   ", interval.getTotalCount(), ms(interval.getValueAtPercentile(50)), ms(interval.getValueAtPercentile(99)),
+                        ms(interval.getMaxValue()), errors, this.intervalDropped.sumThenReset(), this.outstanding.get());
+                if (done || timedOut) {
+                    if (timedOut && !done) System.out.println(this.outstanding.get() + " requests did not complete");
+                    break;
+                }
+                reportAt += TimeUnit.SECONDS.toNanos(1);
+            }
+            report();
+        }
+        finally {
+            vertx.close().toCompletionStage().toCompletableFuture().join();
+        }
+    }
+
+    /**
+     * Schedule requests at a constant rate until {@code end}. Only requests scheduled from {@code measureFrom} on are
+     * included in the report.
+     */
+    private void pace(final @NotNull HttpClient client, final @NotNull Context @NotNull [] contexts, final long start, final long measureFrom, final long end) {
+        final @NotNull SplittableRandom random = new SplittableRandom(this.seed);
+        final double interval = TimeUnit.SECONDS.toNanos(1) / (double) this.rate;
+        for (long i = 0; ; ++i) {
+            final long intended = start + (long) (i * interval);
+            if (intended >= end) break;
+            long wait;
+            while ((wait = intended - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+            final @NotNull Entry entry = pick(random.nextInt(this.totalWeight));
+            final boolean measured = intended >= measureFrom;
+            if (this.outstanding.incrementAndGet() > this.maxOutstanding) {
+                this.outstanding.decrementAndGet();
+                this.intervalDropped.increment();
+                if (measured) this.dropped.increment();
+                continue;
+            }
+            contexts[(int) (i % contexts.length)].runOnContext(v -> send(client, entry, intended, measured));
+        }
+        this.scheduled = true;
+    }
+
+    private @NotNull Entry pick(int n) {
+        for (final @NotNull Entry entry : this.mix) {
+            n -= entry.weight;
+            if (n < 0) return entry;
+        }
+        throw new IllegalStateException();
+    }
+
+    private void send(final @NotNull HttpClient client, final @NotNull Entry entry, final long intended, final boolean measured) {
+        client.request(Objects.requireNonNull(entry.options))
+                .compose(req -> req.send())
+                .compose(res -> {
+                    if (measured) res.handler(buffer -> this.bytes.add(buffer.length()));
+                    return res.end().map(v -> res.statusCode());
+                })
+                .onComplete(ar -> {
+                    final long latency = Math.min(System.nanoTime() - intended, MAX_LATENCY);
+                    final boolean error = ar.failed() || ar.result() >= 400;
+                    entry.interval.recordValue(latency);
+                    if (error) entry.intervalErrors.increment();
+                    if (measured) {
+                        entry.measured.recordValue(latency);
+                        if (error) entry.errors.increment();
+                    }
+                    this.outstanding.decrementAndGet();
+                });
+    }
+
+    /**
+     * Replace {@code @etag} and {@code @last-modified} header values with the validators the server returns. Validators
+     * may be computed in the background, so the server is asked a few times.
+     */
+    private void resolveValidators(final @NotNull HttpClient client) throws InterruptedException {
+        for (final @NotNull Entry entry : this.mix) {
+            final boolean etag = hasValue(entry.headers, "@etag");
+            final boolean lastModified = hasValue(entry.headers, "@last-modified");
+            if (!etag && !lastModified) continue;
+            @Nullable MultiMap validators = null;
+            for (int attempt = 0; attempt < 50; ++attempt) {
+                final @NotNull Future<@NotNull MultiMap> headers = client.request(new RequestOptions().setAbsoluteURI(this.target.resolve(entry.path).toString()).setMethod(HttpMethod.HEAD))
+                        .compose(req -> req.send())
+                        .map(HttpClientResponse::headers);
+                final @NotNull MultiMap result = headers.toCompletionStage().toCompletableFuture().join();
+                if ((!etag || result.contains(HttpHeaders.ETAG)) && (!lastModified || result.contains(HttpHeaders.LAST_MODIFIED))) {
+                    validators = result;
+                    break;
+                }
+                Thread.sleep(100);
+            }
+            if (validators == null) throw new IllegalStateException(entry.path + ": server did not return the validators the request needs");
+            for (final Map.@NotNull Entry<@NotNull String, @NotNull String> header : entry.headers.entries()) {
+                if (header.getValue().equals("@etag")) entry.headers.set(header.getKey(), validators.get(HttpHeaders.ETAG));
+                else if (header.getValue().equals("@last-modified")) entry.headers.set(header.getKey(), validators.get(HttpHeaders.LAST_MODIFIED));
+            }
+        }
+    }
+
+    /**
+     * Whether any header has the given value; {@link MultiMap#contains(String)} only looks at names
+     */
+    private static boolean hasValue(final @NotNull MultiMap headers, final @NotNull String value) {
+        for (final Map.@NotNull Entry<@NotNull String, @NotNull String> header : headers.entries())
+            if (header.getValue().equals(value)) return true;
+        return false;
+    }
+
+    private void report() {
+        final @NotNull Histogram total = new Histogram(MAX_LATENCY, 3);
+        final @NotNull List<@NotNull Histogram> histograms = new ArrayList<>();
+        long errors = 0;
+        for (final @NotNull Entry entry : this.mix) {
+            final @NotNull Histogram histogram = entry.measured.getIntervalHistogram();
+            histograms.add(histogram);
+            total.add(histogram);
+            errors += entry.errors.sum();
+        }
+        System.out.println();
+        System.out.printf(Locale.ROOT, "%-40s %9s %7s %9s %9s %9s %9s%n", "request", "count", "errors", "p50 ms", "p99 ms", "p999 ms", "max ms");
+        for (int i = 0; i < this.mix.size(); ++i) row(this.mix.get(i).spec, histograms.get(i), this.mix.get(i).errors.sum());
+        row("total", total, errors);
+        System.out.println();
+        System.out.printf(Locale.ROOT, "throughput %.1f requests/s, %.2f MiB/s; %d dropped%n",
+                total.getTotalCount() / (double) this.duration, this.bytes.sum() / (double) this.duration / (1 << 20), this.dropped.sum());
+    }
+
+    private static void row(final @NotNull String name, final @NotNull Histogram histogram, final long errors) {
+        System.out.printf(Locale.ROOT, "%-40s %9d %7d %9s %9s %9s %9s%n", name.length() > 40 ? name.substring(0, 37) + "..." : name,
+                histogram.getTotalCount(), errors, ms(histogram.getValueAtPercentile(50)), ms(histogram.getValueAtPercentile(99)),
+                ms(histogram.getValueAtPercentile(99.9)), ms(histogram.getMaxValue()));
+    }
+
+    private static @NotNull String ms(final long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    /**
+     * One kind of request in the mix
+     */
+    private static final class Entry {
+        private final @NotNull String spec;
+        private final int weight;
+        private final @NotNull HttpMethod method;
+        private final @NotNull String path;
+        private final @NotNull MultiMap headers = MultiMap.caseInsensitiveMultiMap();
+        private @Nullable RequestOptions options;
+        /**
+         * Latencies of the current reporting interval
+         */
+        private final @NotNull Recorder interval = new Recorder(MAX_LATENCY, 3);
+        /**
+         * Latencies of the requests scheduled after the warmup
+         */
+        private final @NotNull Recorder measured = new Recorder(MAX_LATENCY, 3);
+        private final @NotNull LongAdder errors = new LongAdder();
+        private final @NotNull LongAdder intervalErrors = new LongAdder();
+
+        private Entry(final @NotNull String spec, final int weight, final @NotNull HttpMethod method, final @NotNull String path) {
+            this.spec = spec;
+            this.weight = weight;
+            this.method = method;
+            this.path = path;
+        }
+
+        /**
+         * Parse {@code [weight:][METHOD ]path[|Header: value]...}
+         */
+        private static @NotNull Entry parse(final @NotNull String spec) {
+            final @NotNull String @NotNull [] parts = spec.split("\\|");
+            @NotNull String request = parts[0].strip();
+            int weight = 1;
+            final int colon = request.indexOf(':');
+            if (colon > 0 && request.substring(0, colon).chars().allMatch(Character::isDigit)) {
+                weight = Integer.parseInt(request.substring(0, colon));
+                request = request.substring(colon + 1).strip();
+            }
+            if (weight <= 0) throw new IllegalArgumentException("--request " + spec + ": weight must be positive");
+            @NotNull HttpMethod method = HttpMethod.GET;
+            final int space = request.indexOf(' ');
+            if (space != -1) {
+                method = HttpMethod.valueOf(request.substring(0, space).toUpperCase(Locale.ROOT));
+                request = request.substring(space + 1).strip();
+            }
+            if (!request.startsWith("/")) throw new IllegalArgumentException("--request " + spec + ": path must start with /");
+            final @NotNull Entry entry = new Entry(spec, weight, method, request);
+            for (int i = 1; i < parts.length; ++i) {
+                final int separator = parts[i].indexOf(':');
+                if (separator <= 0) throw new IllegalArgumentException("--request " + spec + ": header must be \"Name: value\"");
+                entry.headers.add(parts[i].substring(0, separator).strip(), parts[i].substring(separator + 1).strip());
+            }
+            return entry;
+        }
+    }
+}
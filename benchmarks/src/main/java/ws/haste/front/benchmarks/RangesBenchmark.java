@@ -0,0 +1,63 @@
+package ws.haste.front.benchmarks;
+
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ws.haste.front.Ranges;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code Range} header parsing and optimisation with growing numbers of (partly overlapping, unsorted) ranges
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RangesBenchmark {
+    private static final long SIZE = 100L << 20;
+
+    @Param({"1", "8", "64", "512"})
+    public int count;
+
+    private @NotNull String header;
+    private @NotNull Ranges parsed;
+
+    @Setup
+    public void setup() {
+        final @NotNull StringBuilder sb = new StringBuilder("bytes=");
+        final @NotNull ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < count; ++i) {
+            if (i > 0) sb.append(", ");
+            if (i % 16 == 15) sb.append('-').append(random.nextInt(1, 4096));
+            else {
+                final long start = random.nextLong(SIZE - 65536);
+                sb.append(start).append('-').append(start + random.nextInt(1, 65536));
+            }
+        }
+        header = sb.toString();
+        parsed = Ranges.fromString(header);
+    }
+
+    @Benchmark
+    public @NotNull Ranges parse() {
+        return Ranges.fromString(header);
+    }
+
+    @Benchmark
+    public Ranges.@NotNull OptimisedRanges optimise() {
+        return parsed.optimiseRanges(SIZE);
+    }
+}
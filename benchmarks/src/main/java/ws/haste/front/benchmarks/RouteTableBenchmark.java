@@ -0,0 +1,62 @@
+package ws.haste.front.benchmarks;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ws.haste.front.FileResource;
+import ws.haste.front.RouteTable;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Route lookup ({@link RouteTable#find}) with growing numbers of routes
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RouteTableBenchmark {
+    @Param({"10", "100", "1000", "10000"})
+    public int routes;
+
+    private RouteTable<@NotNull FileResource> table;
+    private @NotNull String @NotNull [] hits;
+    private @NotNull String @NotNull [] misses;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        final @NotNull FileResource @NotNull [] resources = new FileResource[routes];
+        for (int i = 0; i < routes; ++i) resources[i] = Fixtures.resource(Fixtures.route(i), "/dev/null");
+        table = new RouteTable<>(resources);
+        hits = new String[1024];
+        misses = new String[1024];
+        for (int i = 0; i < hits.length; ++i) {
+            hits[i] = Fixtures.path(ThreadLocalRandom.current().nextInt(routes));
+            misses[i] = "/unknown/" + i + "/page.html";
+        }
+    }
+
+    @Benchmark
+    public @Nullable FileResource hit() {
+        return table.find(hits[next++ & 1023]);
+    }
+
+    @Benchmark
+    public @Nullable FileResource miss() {
+        return table.find(misses[next++ & 1023]);
+    }
+}
@@ -0,0 +1,114 @@
+package ws.haste.front.benchmarks;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ws.haste.front.Config;
+import ws.haste.front.ConfigReloader;
+import ws.haste.front.FileResource;
+import ws.haste.front.Front;
+import ws.haste.front.WebServer;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end {@link FileResource#serve} through a local server, over a keep-alive HTTP/1.1 connection
+ * <p>
+ * {@code mode} is the serving mode, or {@code cache} for files served from the in-memory cache. The client is the JDK's
+ * rather than Vert.x's so that it does not share event loops with the server under test.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ServeBenchmark {
+    @Param({"1024", "65536", "1048576"})
+    public int size;
+
+    @Param({"stream", "sendfile", "mmap", "cache"})
+    public @NotNull String mode;
+
+    private Vertx vertx;
+    private HttpClient client;
+    private HttpRequest full;
+    private HttpRequest range;
+    private HttpRequest head;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, ExecutionException, InterruptedException {
+        final @NotNull Path file = Fixtures.tempFile("haste-bench-serve", size);
+        final int port;
+        try (final @NotNull ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        final boolean cache = mode.equals("cache");
+        final @NotNull String yaml = "port: " + port + "\n"
+                + "event-loops: 1\n"
+                + "serving-mode: " + (cache ? "stream" : mode) + "\n"
+                + "cache: {max-size: " + (cache ? 4 * size : 0) + ", max-entry-size: " + size + ", revalidate-interval: 60000}\n"
+                + "resources:\n"
+                + "  - {path: \"/file\", content-type: \"application/octet-stream\", files: {identity: \"" + file + "\"}}\n";
+        final @NotNull Path configFile = Files.createTempFile("haste-bench-serve", ".yaml");
+        configFile.toFile().deleteOnExit();
+        Files.writeString(configFile, yaml);
+        final @NotNull Config config = Config.fromYaml(configFile.toString());
+
+        vertx = Front.vertx();
+        final @NotNull ConfigReloader reloader = new ConfigReloader(configFile.toString(), config);
+        vertx.deployVerticle(() -> new WebServer(reloader), new DeploymentOptions().setInstances(1))
+                .toCompletionStage().toCompletableFuture().get();
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        final @NotNull URI uri = URI.create("http://localhost:" + port + "/file");
+        full = HttpRequest.newBuilder(uri).build();
+        range = HttpRequest.newBuilder(uri).header("Range", "bytes=0-511").build();
+        head = HttpRequest.newBuilder(uri).method("HEAD", HttpRequest.BodyPublishers.noBody()).build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws ExecutionException, InterruptedException {
+        vertx.close().toCompletionStage().toCompletableFuture().get();
+    }
+
+    private int send(final @NotNull HttpRequest request) throws IOException, InterruptedException {
+        return client.send(request, HttpResponse.BodyHandlers.ofByteArray()).body().length;
+    }
+
+    @Benchmark
+    public int full() throws IOException, InterruptedException {
+        return send(full);
+    }
+
+    @Benchmark
+    public int range() throws IOException, InterruptedException {
+        return send(range);
+    }
+
+    @Benchmark
+    public int head() throws IOException, InterruptedException {
+        return send(head);
+    }
+}
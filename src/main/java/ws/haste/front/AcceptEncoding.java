@@ -0,0 +1,174 @@
+package ws.haste.front;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@code Accept-Encoding} negotiation
+ * <p>
+ * Sets of encodings are represented as bit masks of {@link FileResource.Encoding} ordinals. The header is parsed
+ * without allocating and the outcome is memoized per header value and encoding set, as clients only send a handful
+ * of distinct values.
+ */
+public final class AcceptEncoding {
+    private AcceptEncoding() {}
+
+    private static final FileResource.@NotNull Encoding @NotNull [] ENCODINGS = FileResource.Encoding.values();
+    private static final int IDENTITY = FileResource.Encoding.Identity.ordinal();
+    private static final int CATCH_ALL = FileResource.Encoding.CatchAll.ordinal();
+    /**
+     * Preferred encoding first, used to break ties between equal q-values
+     */
+    private static final FileResource.@NotNull Encoding @NotNull [] PREFERENCE = {
+            FileResource.Encoding.Brotli, FileResource.Encoding.Gzip, FileResource.Encoding.Deflate, FileResource.Encoding.Identity
+    };
+
+    // memoized results: index by encoding mask; 0 = not computed, 1 = not acceptable, otherwise ordinal + 2
+    private static final int MAX_CACHED_HEADERS = 1024;
+    private static final @NotNull ConcurrentHashMap<@NotNull String, int @NotNull []> cache = new ConcurrentHashMap<>();
+
+    public static int mask(final @NotNull Collection<FileResource.@NotNull Encoding> encodings) {
+        int mask = 0;
+        for (final @NotNull FileResource.Encoding e : encodings) mask |= 1 << e.ordinal();
+        return mask;
+    }
+
+    /**
+     * Pick the encoding to send
+     *
+     * @param header value of the {@code Accept-Encoding} header, if any
+     * @param mask   encodings that are available
+     * @return the encoding with the highest q-value, or {@code null} if none of the available encodings is acceptable
+     */
+    public static FileResource.@Nullable Encoding negotiate(final @Nullable String header, final int mask) {
+        if (header == null) {
+            // no preference: send the file as is if there is one
+            if ((mask & (1 << IDENTITY)) != 0) return FileResource.Encoding.Identity;
+            for (final @NotNull FileResource.Encoding e : PREFERENCE)
+                if ((mask & (1 << e.ordinal())) != 0) return e;
+            return null;
+        }
+        int @Nullable [] results = cache.get(header);
+        if (results != null) {
+            final int result = results[mask];
+            if (result != 0) return result == 1 ? null : ENCODINGS[result - 2];
+        }
+        final FileResource.@Nullable Encoding encoding = best(parse(header), mask);
+        if (results == null) {
+            if (cache.size() >= MAX_CACHED_HEADERS) cache.clear();
+            results = cache.computeIfAbsent(header, h -> new int[1 << ENCODINGS.length]);
+        }
+        results[mask] = encoding == null ? 1 : encoding.ordinal() + 2;
+        return encoding;
+    }
+
+    // Parsed header: for each encoding ordinal, 11 bits of a long: bit 10 = present, bits 0–9 = q-value × 1000
+    private static final int BITS = 11;
+    private static final int PRESENT = 1 << 10;
+    private static final int Q_MASK = PRESENT - 1;
+
+    private static int q(final long parsed, final int ordinal) {
+        return (int) (parsed >>> (ordinal * BITS)) & (PRESENT | Q_MASK);
+    }
+
+    /**
+     * Effective q-value (× 1000) of an encoding
+     */
+    private static int weight(final long parsed, final int ordinal) {
+        final int q = q(parsed, ordinal);
+        if ((q & PRESENT) != 0) return q & Q_MASK;
+        final int catchAll = q(parsed, CATCH_ALL);
+        if ((catchAll & PRESENT) != 0) return catchAll & Q_MASK;
+        // identity is acceptable unless explicitly refused
+        return ordinal == IDENTITY ? 1 : 0;
+    }
+
+    private static FileResource.@Nullable Encoding best(final long parsed, final int mask) {
+        FileResource.@Nullable Encoding best = null;
+        int bestWeight = 0;
+        for (final @NotNull FileResource.Encoding e : PREFERENCE) {
+            if ((mask & (1 << e.ordinal())) == 0) continue;
+            final int weight = weight(parsed, e.ordinal());
+            if (weight > bestWeight) {
+                best = e;
+                bestWeight = weight;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Parse an {@code Accept-Encoding} header. Unknown encodings and elements with an invalid q-value are ignored; if an
+     * encoding is listed more than once, the first occurrence counts.
+     */
+    static long parse(final @NotNull String header) {
+        long parsed = 0;
+        final int length = header.length();
+        int i = 0;
+        while (i < length) {
+            // encoding token
+            while (i < length && isWhitespace(header.charAt(i))) ++i;
+            final int tokenStart = i;
+            while (i < length && header.charAt(i) != ',' && header.charAt(i) != ';' && !isWhitespace(header.charAt(i))) ++i;
+            final int ordinal = encoding(header, tokenStart, i - tokenStart);
+
+            // parameters
+            int q = 1000;
+            while (i < length && header.charAt(i) != ',') {
+                if (header.charAt(i) != ';') {
+                    ++i;
+                    continue;
+                }
+                ++i;
+                while (i < length && isWhitespace(header.charAt(i))) ++i;
+                if (i + 1 < length && (header.charAt(i) == 'q' || header.charAt(i) == 'Q') && header.charAt(i + 1) == '=') {
+                    i += 2;
+                    final int valueStart = i;
+                    while (i < length && header.charAt(i) != ',' && header.charAt(i) != ';' && !isWhitespace(header.charAt(i))) ++i;
+                    q = qValue(header, valueStart, i);
+                }
+            }
+            if (i < length) ++i; // ','
+
+            if (ordinal >= 0 && q >= 0 && (q(parsed, ordinal) & PRESENT) == 0)
+                parsed |= (long) (PRESENT | q) << (ordinal * BITS);
+        }
+        return parsed;
+    }
+
+    private static boolean isWhitespace(final char c) {
+        return c == ' ' || c == '\t';
+    }
+
+    private static int encoding(final @NotNull String header, final int start, final int length) {
+        for (final @NotNull FileResource.Encoding e : ENCODINGS) {
+            final @NotNull String name = e.toString();
+            if (name.length() == length && name.regionMatches(true, 0, header, start, length)) return e.ordinal();
+        }
+        return -1;
+    }
+
+    /**
+     * Parse a q-value ({@code 0}, {@code 0.5}, {@code 1.000}, ...)
+     *
+     * @return the value × 1000, or -1 if it is invalid
+     */
+    private static int qValue(final @NotNull String s, final int start, final int end) {
+        if (start >= end) return -1;
+        final char first = s.charAt(start);
+        if (first != '0' && first != '1') return -1;
+        int value = (first - '0') * 1000;
+        if (start + 1 == end) return value;
+        if (s.charAt(start + 1) != '.' || end - start > 5) return -1;
+        int scale = 100;
+        for (int i = start + 2; i < end; ++i, scale /= 10) {
+            final char c = s.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            value += (c - '0') * scale;
+        }
+        return value > 1000 ? -1 : value;
+    }
+}
@@ -0,0 +1,282 @@
+package ws.haste.front;
+
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.http.HttpVersion;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access log
+ * <p>
+ * Event loops only copy a few references and numbers into a slot of a bounded ring buffer, claimed with a
+ * compare-and-set; when the buffer is full, the record is dropped and counted instead of waiting. A background thread
+ * drains the buffer every flush interval, formats the records and writes each batch with a single write. A log file
+ * that is moved away (e.g. by logrotate) is reopened at its path.
+ * <p>
+ * Each line is in the combined log format, followed by the content encoding, the number of requested ranges, the
+ * matched resource and the duration in milliseconds:
+ * <pre>
+ * 127.0.0.1 - - [17/Oct/2026:08:31:41 +0000] "GET /app.js HTTP/1.1" 200 5120 "-" "curl/8.5.0" br 0 /app.js 0.412
+ * </pre>
+ */
+public final class AccessLogger {
+    private static final @NotNull DateTimeFormatter DATE = DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.ENGLISH).withZone(ZoneId.systemDefault());
+    /**
+     * How often to check whether the log file has been moved away, in milliseconds
+     */
+    private static final long REOPEN_CHECK_INTERVAL = 1000;
+
+    public final Config.@NotNull AccessLog options;
+    private final @NotNull Record @NotNull [] slots;
+    /**
+     * Sequence number of each slot: equal to the position when the slot is free for the producer at that position, and
+     * to the position + 1 once the record at that position has been published
+     */
+    private final @NotNull AtomicLongArray sequences;
+    private final int mask;
+    private final @NotNull AtomicLong tail = new AtomicLong();
+    private long head = 0;
+    private final @NotNull Thread thread;
+    private volatile boolean closed = false;
+    private @Nullable OutputStream out;
+
+    public AccessLogger(final Config.@NotNull AccessLog options) throws IOException {
+        this.options = options;
+        this.slots = new Record[options.bufferSize()];
+        this.sequences = new AtomicLongArray(options.bufferSize());
+        for (int i = 0; i < this.slots.length; ++i) {
+            this.slots[i] = new Record();
+            this.sequences.set(i, i);
+        }
+        this.mask = options.bufferSize() - 1;
+        this.out = open();
+        this.thread = new Thread(this::writeLoop, "haste-access-log");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Whether to log a request, according to the sampling rate
+     */
+    public boolean sample() {
+        return this.options.sample() >= 1 || ThreadLocalRandom.current().nextDouble() < this.options.sample();
+    }
+
+    /**
+     * Log a finished (or aborted) response. Never blocks; drops the record if the buffer is full.
+     *
+     * @param resource matched resource, if any
+     * @param start    {@link System#nanoTime()} when the request was received
+     */
+    public void log(final @NotNull HttpServerRequest req, final @NotNull HttpServerResponse res, final @Nullable Resource resource, final long start) {
+        final long duration = System.nanoTime() - start;
+        long position = this.tail.get();
+        while (true) {
+            final long sequence = this.sequences.get((int) position & this.mask);
+            if (sequence < position) {
+                Metrics.accessLogDropped();
+                return;
+            }
+            if (sequence == position && this.tail.compareAndSet(position, position + 1)) break;
+            position = this.tail.get();
+        }
+        final @NotNull Record r = this.slots[(int) position & this.mask];
+        r.time = System.currentTimeMillis();
+        r.address = req.remoteAddress() == null ? null : req.remoteAddress().hostAddress();
+        r.method = req.method().name();
+        r.uri = req.uri();
+        r.version = req.version();
+        r.status = res.getStatusCode();
+        r.bytes = res.bytesWritten();
+        r.referer = req.getHeader(HttpHeaders.REFERER);
+        r.userAgent = req.getHeader(HttpHeaders.USER_AGENT);
+        r.encoding = res.headers().get(HttpHeaders.CONTENT_ENCODING);
+        r.range = r.status == 206 ? req.getHeader("Range") : null;
+        r.resource = resource == null ? null : resource.url;
+        r.duration = duration;
+        this.sequences.lazySet((int) position & this.mask, position + 1);
+    }
+
+    /**
+     * Write the remaining records and close the log file
+     */
+    public void close() {
+        this.closed = true;
+        LockSupport.unpark(this.thread);
+        try {
+            this.thread.join(5000);
+        }
+        catch (final @NotNull InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private @Nullable OutputStream open() throws IOException {
+        if (this.options.file().equals("stdout")) return null;
+        final @NotNull Path path = Path.of(this.options.file());
+        if (path.getParent() != null) Files.createDirectories(path.getParent());
+        return new FileOutputStream(path.toFile(), true);
+    }
+
+    private void writeLoop() {
+        final @NotNull StringBuilder sb = new StringBuilder(64 * 1024);
+        final @NotNull Formatter formatter = new Formatter();
+        long reopenCheck = System.currentTimeMillis();
+        while (true) {
+            final boolean last = this.closed;
+            sb.setLength(0);
+            while (true) {
+                final int i = (int) this.head & this.mask;
+                if (this.sequences.get(i) != this.head + 1) break;
+                formatter.format(this.slots[i], sb);
+                this.slots[i].clear();
+                this.sequences.lazySet(i, this.head + this.slots.length);
+                ++this.head;
+                // write very large batches in parts, so the buffer is freed up in time
+                if (sb.length() >= 1 << 20) write(sb);
+            }
+            if (!sb.isEmpty()) write(sb);
+            if (System.currentTimeMillis() - reopenCheck >= REOPEN_CHECK_INTERVAL) {
+                reopenCheck = System.currentTimeMillis();
+                reopenIfMoved();
+            }
+            if (last) break;
+            LockSupport.parkNanos(this.options.flushInterval() * 1_000_000);
+        }
+        try {
+            if (this.out != null) this.out.close();
+        }
+        catch (final @NotNull IOException e) {
+            Front.getLogger().error("Could not close access log " + this.options.file() + ": " + e.getMessage());
+        }
+    }
+
+    private void write(final @NotNull StringBuilder sb) {
+        final byte @NotNull [] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+        sb.setLength(0);
+        try {
+            if (this.out == null) {
+                System.out.write(bytes);
+                System.out.flush();
+            }
+            else this.out.write(bytes);
+        }
+        catch (final @NotNull IOException e) {
+            Front.getLogger().error("Could not write access log " + this.options.file() + ": " + e.getMessage());
+        }
+    }
+
+    private void reopenIfMoved() {
+        if (this.out == null || Files.exists(Path.of(this.options.file()))) return;
+        try {
+            this.out.close();
+            this.out = open();
+        }
+        catch (final @NotNull IOException e) {
+            Front.getLogger().error("Could not reopen access log " + this.options.file() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * A slot of the ring buffer. Written by one event loop, then read by the writer thread.
+     */
+    private static final class Record {
+        long time;
+        @Nullable String address;
+        @Nullable String method;
+        @Nullable String uri;
+        @Nullable HttpVersion version;
+        int status;
+        long bytes;
+        @Nullable String referer;
+        @Nullable String userAgent;
+        @Nullable String encoding;
+        @Nullable String range;
+        @Nullable String resource;
+        long duration;
+
+        /**
+         * Release the references held by the record
+         */
+        void clear() {
+            this.address = this.method = this.uri = this.referer = this.userAgent = this.encoding = this.range = this.resource = null;
+            this.version = null;
+        }
+    }
+
+    /**
+     * Formats records on the writer thread, reusing the date of the previous record within the same second
+     */
+    private static final class Formatter {
+        private long second = -1;
+        private @NotNull String date = "";
+
+        void format(final @NotNull Record r, final @NotNull StringBuilder sb) {
+            if (r.time / 1000 != this.second) {
+                this.second = r.time / 1000;
+                this.date = DATE.format(Instant.ofEpochSecond(this.second));
+            }
+            sb.append(r.address == null ? "-" : r.address).append(" - - [").append(this.date).append("] \"");
+            sb.append(r.method).append(' ');
+            escape(r.uri, sb);
+            sb.append(' ').append(protocol(r.version)).append("\" ").append(r.status).append(' ').append(r.bytes).append(" \"");
+            escape(r.referer, sb);
+            sb.append("\" \"");
+            escape(r.userAgent, sb);
+            sb.append("\" ").append(r.encoding == null ? "identity" : r.encoding).append(' ');
+            sb.append(r.range == null ? 0 : rangeCount(r.range)).append(' ');
+            sb.append(r.resource == null ? "-" : r.resource).append(' ');
+            sb.append(r.duration / 1_000_000).append('.');
+            final long micros = r.duration / 1000 % 1000;
+            if (micros < 100) sb.append('0');
+            if (micros < 10) sb.append('0');
+            sb.append(micros).append('\n');
+        }
+
+        private static @NotNull String protocol(final @Nullable HttpVersion version) {
+            if (version == null) return "-";
+            return switch (version) {
+                case HTTP_1_0 -> "HTTP/1.0";
+                case HTTP_1_1 -> "HTTP/1.1";
+                case HTTP_2 -> "HTTP/2.0";
+            };
+        }
+
+        private static int rangeCount(final @NotNull String range) {
+            return Ranges.fromString(range).ranges.length;
+        }
+
+        /**
+         * Append a value, escaping quotes, backslashes and control characters so a line cannot be forged
+         */
+        private static void escape(final @Nullable String s, final @NotNull StringBuilder sb) {
+            if (s == null) {
+                sb.append('-');
+                return;
+            }
+            for (int i = 0; i < s.length(); ++i) {
+                final char c = s.charAt(i);
+                if (c == '"' || c == '\\') sb.append('\\').append(c);
+                else if (c < 0x20 || c == 0x7f) sb.append(String.format("\\x%02x", (int) c));
+                else sb.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package ws.haste.front;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A single file holding a tree of assets and their precompressed variants
+ * <p>
+ * The file starts with a header that lists every asset, sorted by path, with its content type, modification time and,
+ * for each encoding, the position, length and SHA-256 hash of its content. The contents follow in the same order, so
+ * reading the assets of a directory is sequential. Once mapped, any asset or range of it is served as a slice of the
+ * mapping, without opening or checking any file.
+ * <p>
+ * Format, big-endian:
+ * <pre>
+ * magic             "HSTPACK\1"
+ * u32               number of content types, then each as u16 length + UTF-8
+ * u32               number of assets, then each:
+ *   u16 + UTF-8     path relative to the packed directory, with / as separator
+ *   u16             index of its content type
+ *   i64             modification time in milliseconds
+ *   u8              number of variants, then each:
+ *     u8 + ASCII    encoding, as in Content-Encoding, or identity
+ *     i64, i64      position and length of the content in the file
+ *     32 bytes      SHA-256 hash of the content
+ * contents
+ * </pre>
+ * Packs are created with {@code pack <directory> <output>}; see {@link #main}.
+ */
+public final class AssetPack {
+    private static final byte @NotNull [] MAGIC = {'H', 'S', 'T', 'P', 'A', 'C', 'K', 1};
+    private static final int HASH_LENGTH = 32;
+    private static final @NotNull Map<FileResource.@NotNull Encoding, @NotNull String> SIBLINGS = new LinkedHashMap<>() {{
+        put(FileResource.Encoding.Gzip, ".gz");
+        put(FileResource.Encoding.Brotli, ".br");
+    }};
+    /**
+     * A generated variant is only kept if it is at most this fraction of the original size
+     */
+    private static final double MIN_RATIO = 0.9;
+
+    public final @NotNull Path file;
+    public final MappedFiles.@NotNull Mapping mapping;
+    /**
+     * Assets, sorted by path
+     */
+    public final @NotNull List<@NotNull Asset> assets;
+
+    private AssetPack(final @NotNull Path file, final MappedFiles.@NotNull Mapping mapping, final @NotNull List<@NotNull Asset> assets) {
+        this.file = file;
+        this.mapping = mapping;
+        this.assets = assets;
+    }
+
+    /**
+     * @param path         path relative to the packed directory, with {@code /} as separator
+     * @param lastModified modification time in milliseconds
+     * @param variants     contents by encoding
+     */
+    public record Asset(@NotNull String path, @NotNull String contentType, long lastModified, @NotNull Map<FileResource.@NotNull Encoding, @NotNull Content> variants) {}
+
+    /**
+     * @param position position in the pack
+     * @param sha256   SHA-256 hash of the content
+     */
+    public record Content(long position, long length, byte @NotNull [] sha256) {}
+
+    /**
+     * Map a pack and read its header
+     */
+    public static @NotNull AssetPack open(final @NotNull Path file) throws IOException {
+        final MappedFiles.@NotNull Mapping mapping = MappedFiles.map(file);
+        try (final @NotNull DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 65536))) {
+            final byte @NotNull [] magic = in.readNBytes(MAGIC.length);
+            if (!Arrays.equals(magic, MAGIC)) throw new IOException(file + " is not an asset pack");
+            final @NotNull String @NotNull [] contentTypes = new String[in.readInt()];
+            for (int i = 0; i < contentTypes.length; ++i) contentTypes[i] = readString(in, in.readUnsignedShort());
+            final int count = in.readInt();
+            final @NotNull List<@NotNull Asset> assets = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i) {
+                final @NotNull String path = readString(in, in.readUnsignedShort());
+                final int contentType = in.readUnsignedShort();
+                if (contentType >= contentTypes.length) throw new IOException(file + " is corrupt: unknown content type of " + path);
+                final long lastModified = in.readLong();
+                final int variantCount = in.readUnsignedByte();
+                final @NotNull Map<FileResource.@NotNull Encoding, @NotNull Content> variants = new HashMap<>();
+                for (int v = 0; v < variantCount; ++v) {
+                    final @NotNull String encodingName = readString(in, in.readUnsignedByte());
+                    final @NotNull Content content = new Content(in.readLong(), in.readLong(), in.readNBytes(HASH_LENGTH));
+                    if (content.position < 0 || content.length < 0 || content.position + content.length > mapping.size)
+                        throw new IOException(file + " is corrupt: content of " + path + " is outside of the file");
+                    // encodings this version does not know are skipped
+                    FileResource.Encoding.fromString(encodingName).ifPresent(encoding -> variants.put(encoding, content));
+                }
+                assets.add(new Asset(path, contentTypes[contentType], lastModified, variants));
+            }
+            return new AssetPack(file, mapping, assets);
+        }
+        catch (final @NotNull EOFException e) {
+            throw new IOException(file + " is corrupt: the header is truncated");
+        }
+    }
+
+    private static @NotNull String readString(final @NotNull DataInputStream in, final int length) throws IOException {
+        final byte @NotNull [] bytes = in.readNBytes(length);
+        if (bytes.length != length) throw new EOFException();
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Pack a directory. Hidden files and directories and symbolic links are skipped, and {@code .gz} and {@code .br}
+     * siblings become variants of their base file, like in a {@link DirectoryResource}. The pack is written next to
+     * the output and renamed over it once complete, so a server never maps a partial pack.
+     *
+     * @param contentTypes content types by lower-case file extension
+     * @param contentType  content type of files whose extension is not in {@code contentTypes}
+     * @param gzip         whether to generate gzip variants of files with a compressible content type that have none
+     * @return the number of packed assets
+     */
+    public static int write(final @NotNull Path directory, final @NotNull Path output, final @NotNull Map<@NotNull String, @NotNull String> contentTypes, final @NotNull String contentType, final boolean gzip) throws IOException {
+        final @NotNull TreeMap<byte @NotNull [], @NotNull String> paths = new TreeMap<>(Arrays::compareUnsigned);
+        final @NotNull Path root = directory.toAbsolutePath().normalize();
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public @NotNull FileVisitResult preVisitDirectory(final @NotNull Path dir, final @NotNull BasicFileAttributes attributes) {
+                return !dir.equals(root) && dir.getFileName().toString().startsWith(".") ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public @NotNull FileVisitResult visitFile(final @NotNull Path file, final @NotNull BasicFileAttributes attributes) {
+                if (attributes.isRegularFile() && !file.getFileName().toString().startsWith(".")) {
+                    final @NotNull String path = root.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+                    paths.put(path.getBytes(StandardCharsets.UTF_8), path);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        // plan the assets and their contents; a sibling shares its content with the variant of its base file
+        final @NotNull HashSet<@NotNull String> known = new HashSet<>(paths.values());
+        final @NotNull List<@NotNull Planned> planned = new ArrayList<>(paths.size());
+        final @NotNull LinkedHashMap<@NotNull Object, @Nullable Content> sources = new LinkedHashMap<>();
+        final @NotNull LinkedHashMap<@NotNull String, @NotNull Integer> types = new LinkedHashMap<>();
+        for (final @NotNull String path : paths.values()) {
+            final @NotNull Path file = root.resolve(path);
+            final @NotNull String type = MountResource.contentType(path, contentTypes, contentType);
+            final @NotNull LinkedHashMap<FileResource.@NotNull Encoding, @NotNull Object> variants = new LinkedHashMap<>();
+            variants.put(FileResource.Encoding.Identity, file);
+            for (final @NotNull Map.Entry<FileResource.@NotNull Encoding, @NotNull String> sibling : SIBLINGS.entrySet())
+                if (known.contains(path + sibling.getValue())) variants.put(sibling.getKey(), root.resolve(path + sibling.getValue()));
+            if (gzip && !variants.containsKey(FileResource.Encoding.Gzip) && Precompressor.compressible(type, Precompressor.DEFAULT_TYPES)) {
+                final byte @Nullable [] compressed = gzip(file);
+                if (compressed != null) variants.put(FileResource.Encoding.Gzip, compressed);
+            }
+            for (final @NotNull Object source : variants.values()) sources.putIfAbsent(source, null);
+            types.putIfAbsent(type, types.size());
+            planned.add(new Planned(path, type, Files.getLastModifiedTime(file).toMillis(), variants));
+        }
+
+        final @NotNull Path temp = output.resolveSibling(output.getFileName() + ".tmp");
+        try (final @NotNull FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            // the header has a fixed size, so the contents are written first and the header, with their hashes, last
+            long position = header(planned, types, sources).length;
+            channel.position(position);
+            final @NotNull OutputStream out = new BufferedChannelOutputStream(channel);
+            for (final @NotNull Map.Entry<@NotNull Object, @Nullable Content> source : sources.entrySet()) {
+                final @NotNull MessageDigest digest = sha256();
+                final long length;
+                if (source.getKey() instanceof final byte @NotNull [] bytes) {
+                    digest.update(bytes);
+                    out.write(bytes);
+                    length = bytes.length;
+                }
+                else try (final @NotNull InputStream in = Files.newInputStream((Path) source.getKey())) {
+                    final byte @NotNull [] buffer = new byte[65536];
+                    long copied = 0;
+                    int n;
+                    while ((n = in.read(buffer)) != -1) {
+                        digest.update(buffer, 0, n);
+                        out.write(buffer, 0, n);
+                        copied += n;
+                    }
+                    length = copied;
+                }
+                source.setValue(new Content(position, length, digest.digest()));
+                position += length;
+            }
+            out.flush();
+            channel.write(ByteBuffer.wrap(header(planned, types, sources)), 0);
+            channel.force(true);
+        }
+        catch (final @NotNull IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return planned.size();
+    }
+
+    /**
+     * An asset to be packed, with the source of each variant: a file or generated bytes
+     */
+    private record Planned(@NotNull String path, @NotNull String contentType, long lastModified, @NotNull Map<FileResource.@NotNull Encoding, @NotNull Object> variants) {}
+
+    /**
+     * Encode the header. Contents that have not been written yet are encoded as zeros of the same size.
+     */
+    private static byte @NotNull [] header(final @NotNull List<@NotNull Planned> planned, final @NotNull Map<@NotNull String, @NotNull Integer> types, final @NotNull Map<@NotNull Object, @Nullable Content> sources) throws IOException {
+        final @NotNull ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final @NotNull DataOutputStream out = new DataOutputStream(bytes);
+        out.write(MAGIC);
+        out.writeInt(types.size());
+        for (final @NotNull String type : types.keySet()) writeString(out, type, 0xFFFF);
+        out.writeInt(planned.size());
+        for (final @NotNull Planned asset : planned) {
+            writeString(out, asset.path, 0xFFFF);
+            out.writeShort(types.get(asset.contentType));
+            out.writeLong(asset.lastModified);
+            out.writeByte(asset.variants.size());
+            for (final @NotNull Map.Entry<FileResource.@NotNull Encoding, @NotNull Object> variant : asset.variants.entrySet()) {
+                writeString(out, variant.getKey().toString(), 0xFF);
+                final @Nullable Content content = sources.get(variant.getValue());
+                out.writeLong(content == null ? 0 : content.position);
+                out.writeLong(content == null ? 0 : content.length);
+                out.write(content == null ? new byte[HASH_LENGTH] : content.sha256);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(final @NotNull DataOutputStream out, final @NotNull String s, final int maxLength) throws IOException {
+        final byte @NotNull [] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > maxLength) throw new IOException("Too long to pack: " + s);
+        if (maxLength > 0xFF) out.writeShort(bytes.length);
+        else out.writeByte(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * @return the gzip-compressed content of a file, or {@code null} if it is not meaningfully smaller
+     */
+    private static byte @Nullable [] gzip(final @NotNull Path file) throws IOException {
+        final byte @NotNull [] content = Files.readAllBytes(file);
+        final @NotNull ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length / 2 + 64);
+        try (final @NotNull OutputStream out = Precompressor.compress(FileResource.Encoding.Gzip, compressed)) {
+            out.write(content);
+        }
+        return compressed.size() <= content.length * MIN_RATIO ? compressed.toByteArray() : null;
+    }
+
+    private static @NotNull MessageDigest sha256() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (final @NotNull NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Buffers writes to a channel at its current position
+     */
+    private static final class BufferedChannelOutputStream extends OutputStream {
+        private final @NotNull FileChannel channel;
+        private final @NotNull ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+
+        private BufferedChannelOutputStream(final @NotNull FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            if (!this.buffer.hasRemaining()) flush();
+            this.buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(final byte @NotNull [] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!this.buffer.hasRemaining()) flush();
+                final int n = Math.min(len, this.buffer.remaining());
+                this.buffer.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            this.buffer.flip();
+            while (this.buffer.hasRemaining()) this.channel.write(this.buffer);
+            this.buffer.clear();
+        }
+    }
+
+    /**
+     * Pack a directory from the command line:
+     * {@code pack [--gzip] [--type <extension>=<content type>]... [--default-type <content type>] <directory> <output>}
+     */
+    public static void main(final @NotNull String @NotNull [] args) {
+        final @NotNull HashMap<@NotNull String, @NotNull String> contentTypes = new HashMap<>(MountResource.DEFAULT_CONTENT_TYPES);
+        @NotNull String contentType = "application/octet-stream";
+        boolean gzip = false;
+        final @NotNull List<@NotNull String> positional = new ArrayList<>();
+        for (int i = 0; i < args.length; ++i) {
+            switch (args[i]) {
+                case "--gzip" -> gzip = true;
+                case "--type" -> {
+                    final @NotNull String @NotNull [] type = i + 1 < args.length ? args[++i].split("=", 2) : new String[0];
+                    if (type.length != 2) usage("--type must be followed by <extension>=<content type>");
+                    contentTypes.put(type[0].toLowerCase().replaceFirst("^\\.", ""), type[1]);
+                }
+                case "--default-type" -> {
+                    if (i + 1 >= args.length) usage("--default-type must be followed by a content type");
+                    contentType = args[++i];
+                }
+                default -> {
+                    if (args[i].startsWith("--")) usage("Unknown option " + args[i]);
+                    positional.add(args[i]);
+                }
+            }
+        }
+        if (positional.size() != 2) usage("Expected a directory and an output file");
+        final @NotNull Path directory = Path.of(positional.get(0));
+        if (!Files.isDirectory(directory)) usage(directory + " is not a directory");
+        try {
+            final long start = System.nanoTime();
+            final int count = write(directory, Path.of(positional.get(1)), contentTypes, contentType, gzip);
+            Front.getLogger().info("Packed " + count + " files from " + directory + " into " + positional.get(1) + " (" + Files.size(Path.of(positional.get(1))) + " bytes, " + (System.nanoTime() - start) / 1_000_000 + " ms)");
+        }
+        catch (final @NotNull IOException e) {
+            Front.getLogger().fatal("Could not pack " + directory + ": " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void usage(final @NotNull String error) {
+        Front.getLogger().fatal(error);
+        Front.getLogger().info("Usage: pack [--gzip] [--type <extension>=<content type>]... [--default-type <content type>] <directory> <output>");
+        System.exit(2);
+    }
+}
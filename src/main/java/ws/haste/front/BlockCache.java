@@ -0,0 +1,401 @@
+package ws.haste.front;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpServerResponse;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Off-heap cache of fixed-size blocks of files, from which range responses are assembled
+ * <p>
+ * Video players and download managers request large files as many small, often overlapping ranges. Instead of reading
+ * every range from the file, responses are put together from blocks kept in direct memory, keyed by file, modification
+ * time and block index, so a changed file never serves old blocks. Missing blocks are read on a worker thread, several
+ * consecutive ones with a single read, and requests for a block that is being read wait for that read. When a
+ * client's ranges of a file follow on from each other, the blocks after the requested range are read ahead.
+ * <p>
+ * Eviction follows W-TinyLFU, with a CLOCK in place of each LRU list. New blocks enter a small window that takes an
+ * eighth of the cache, so blocks read ahead stay around until the client asks for them. A block evicted from the window
+ * moves on to the main part of the cache if a compact frequency sketch says it has been requested more often than the
+ * block chosen there by the clock hand, and is dropped otherwise. A single pass over a large file therefore cannot
+ * flush the blocks that are in demand. Blocks read ahead start without their reference bit, so they are the first to
+ * go if nobody asks for them.
+ * <p>
+ * Evicted blocks are freed by the garbage collector once no response is using them anymore.
+ */
+public final class BlockCache {
+    /**
+     * Number of clients and files whose last range is remembered to detect sequential reads
+     */
+    private static final int MAX_STREAMS = 4096;
+
+    public final long maxSize;
+    public final int blockSize;
+    public final int readAhead;
+    private final int shift;
+
+    private final @NotNull ConcurrentHashMap<@NotNull Key, @NotNull Block> blocks = new ConcurrentHashMap<>();
+    private final @NotNull ConcurrentHashMap<@NotNull Key, @NotNull Future<@NotNull ByteBuf>> pending = new ConcurrentHashMap<>();
+    /**
+     * Slots of the window, followed by the slots of the main part; each part is a ring that its own clock hand goes
+     * around, and a slot holds at most one block
+     */
+    private final @Nullable Key @NotNull [] keys;
+    /**
+     * Reference bit of each slot, set when its block is used. Written without synchronisation, as a lost update only
+     * makes the clock less accurate.
+     */
+    private final byte @NotNull [] referenced;
+    private final int window;
+    private int windowUsed = 0;
+    private int windowHand = 0;
+    private int mainUsed = 0;
+    private int mainHand = 0;
+    private final @NotNull FrequencySketch sketch;
+    /**
+     * Position after the last range of each client and file
+     */
+    private final @NotNull ConcurrentHashMap<@NotNull String, @NotNull Long> streams = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxSize   total size of the cached blocks in bytes
+     * @param blockSize size of a block in bytes; a power of two
+     * @param readAhead number of blocks to read ahead of sequential ranges
+     */
+    public BlockCache(final long maxSize, final int blockSize, final int readAhead) {
+        this.maxSize = maxSize;
+        this.blockSize = blockSize;
+        this.readAhead = readAhead;
+        this.shift = Integer.numberOfTrailingZeros(blockSize);
+        final int slots = (int) Math.min(Integer.MAX_VALUE - 8, maxSize / blockSize);
+        this.keys = new Key[slots];
+        this.referenced = new byte[slots];
+        this.window = slots == 0 ? 0 : Math.max(1, slots / 8);
+        this.sketch = new FrequencySketch(slots);
+    }
+
+    public boolean enabled() {
+        return this.keys.length > 0;
+    }
+
+    /**
+     * Drop the blocks of a file
+     */
+    public synchronized void invalidate(final @NotNull String filePath) {
+        this.blocks.keySet().removeIf(key -> key.path.equals(filePath));
+    }
+
+    /**
+     * Get a reader for a version of a file
+     *
+     * @param size         size of the file
+     * @param lastModified modification time of the file, which identifies the version
+     * @param client       remote address of the client, to detect sequential ranges, if known
+     */
+    public @NotNull Reader reader(final @NotNull String filePath, final long size, final long lastModified, final @Nullable String client) {
+        return new Reader(filePath, size, lastModified, client);
+    }
+
+    /**
+     * Reads ranges of one version of a file through the cache
+     */
+    public final class Reader {
+        private final @NotNull String path;
+        private final long size;
+        private final long version;
+        private final @Nullable String stream;
+
+        private Reader(final @NotNull String path, final long size, final long version, final @Nullable String client) {
+            this.path = path;
+            this.size = size;
+            this.version = version;
+            this.stream = client == null ? null : client + ' ' + path;
+        }
+
+        /**
+         * Write a range of the file to the response, block by block, pausing while the write queue is full
+         */
+        public @NotNull Future<@NotNull Void> write(final long position, final long length, final @NotNull HttpServerResponse res) {
+            final long end = Math.min(position + length, this.size);
+            final long lastBlock = end == 0 ? 0 : (end - 1) >> shift;
+            final long maxBlock = this.size == 0 ? 0 : (this.size - 1) >> shift;
+            final long limit = Math.min(maxBlock, sequential(position, end) ? lastBlock + readAhead : lastBlock);
+            final @NotNull Promise<@NotNull Void> promise = Promise.promise();
+            write(position, end, limit, Vertx.currentContext(), res, promise);
+            return promise.future();
+        }
+
+        /**
+         * Whether a range follows on from the previous range of the same client, and remember where it ends
+         */
+        private boolean sequential(final long position, final long end) {
+            if (this.stream == null || readAhead == 0) return false;
+            if (streams.size() >= MAX_STREAMS) streams.clear();
+            final @Nullable Long previous = streams.put(this.stream, end);
+            return previous != null && position >= previous - blockSize && position <= previous + blockSize;
+        }
+
+        /**
+         * @param context context of the response; a block read for another request may complete on another event loop
+         */
+        private void write(final long position, final long end, final long limit, final @Nullable Context context, final @NotNull HttpServerResponse res, final @NotNull Promise<@NotNull Void> promise) {
+            if (position >= end) {
+                promise.complete();
+                return;
+            }
+            if (res.closed()) {
+                promise.fail(new IOException("Connection closed"));
+                return;
+            }
+            final long index = position >> shift;
+            block(index, limit).onComplete(ar -> {
+                if (context != null && Vertx.currentContext() != context) {
+                    context.runOnContext(v -> write(position, end, limit, context, res, promise));
+                    return;
+                }
+                if (ar.failed()) {
+                    promise.fail(ar.cause());
+                    return;
+                }
+                final @NotNull ByteBuf block = ar.result();
+                final int offset = (int) (position - (index << shift));
+                final int count = (int) Math.min(block.capacity() - offset, end - position);
+                if (count <= 0) {
+                    promise.fail(new IOException("Unexpected end of file"));
+                    return;
+                }
+                res.write(Buffers.wrap(block.slice(offset, count)));
+                final long next = position + count;
+                if (next < end && res.writeQueueFull())
+                    FileResource.drained(res).onComplete(v -> {
+                        if (v.failed()) promise.fail(v.cause());
+                        else write(next, end, limit, context, res, promise);
+                    });
+                else write(next, end, limit, context, res, promise);
+            });
+        }
+
+        /**
+         * Get a block, reading it and the blocks after it up to the limit if they are missing, or read those blocks
+         * ahead if only they are missing
+         */
+        private @NotNull Future<@NotNull ByteBuf> block(final long index, final long limit) {
+            final @NotNull Key key = new Key(this.path, this.version, index);
+            sketch.increment(key.hashCode());
+            final @Nullable Block block = blocks.get(key);
+            if (block != null) {
+                Metrics.blockHit();
+                referenced[block.slot] = 1;
+                if (readAhead > 0 && index < limit) read(index + 1, Math.min(limit, index + readAhead), false);
+                return block.future;
+            }
+            Metrics.blockMiss();
+            final @Nullable Future<@NotNull ByteBuf> reading = pending.get(key);
+            if (reading != null) return reading;
+            final @Nullable Future<@NotNull ByteBuf> read = read(index, Math.min(limit, index + Math.max(readAhead, 1) - 1), true);
+            // read by another request in the meantime
+            if (read == null) return block(index, limit);
+            return read;
+        }
+
+        /**
+         * Read the first missing block from {@code first} to {@code last} and the missing blocks right after it with a
+         * single read on a worker thread
+         *
+         * @param demanded whether the first block is needed now, rather than read ahead
+         * @return the first block, or {@code null} if it is not missing
+         */
+        private @Nullable Future<@NotNull ByteBuf> read(final long first, final long last, final boolean demanded) {
+            final @NotNull List<@NotNull Key> keys = new ArrayList<>();
+            final @NotNull List<@NotNull Promise<@NotNull ByteBuf>> promises = new ArrayList<>();
+            for (long index = first; index <= last; ++index) {
+                final @NotNull Key key = new Key(this.path, this.version, index);
+                if (blocks.containsKey(key) || pending.containsKey(key)) {
+                    if (keys.isEmpty() && !demanded) continue;
+                    break;
+                }
+                final @NotNull Promise<@NotNull ByteBuf> promise = Promise.promise();
+                if (pending.putIfAbsent(key, promise.future()) != null) break;
+                keys.add(key);
+                promises.add(promise);
+            }
+            if (keys.isEmpty()) return null;
+            final long start = keys.get(0).index << shift;
+            final long length = Math.min((long) keys.size() << shift, this.size - start);
+            Front.vertx().executeBlocking(() -> readBlocks(this.path, start, length), false).onComplete(ar -> {
+                if (ar.succeeded()) Metrics.blocksRead(ar.result().size());
+                for (int i = 0; i < keys.size(); ++i) {
+                    pending.remove(keys.get(i));
+                    if (ar.failed()) promises.get(i).fail(new WebServerException(404, ar.cause()));
+                    else if (i >= ar.result().size()) promises.get(i).fail(new IOException("Unexpected end of file"));
+                    else {
+                        final @NotNull ByteBuf block = ar.result().get(i);
+                        admit(keys.get(i), block, demanded && i == 0);
+                        promises.get(i).complete(block);
+                    }
+                }
+            });
+            return demanded ? promises.get(0).future() : null;
+        }
+    }
+
+    /**
+     * Read consecutive blocks of a file into direct memory, opening the file once
+     *
+     * @return the blocks, fewer if the file ends early
+     */
+    private @NotNull List<@NotNull ByteBuf> readBlocks(final @NotNull String filePath, final long start, final long length) throws IOException {
+        final @NotNull List<@NotNull ByteBuf> blocks = new ArrayList<>();
+        try (final @NotNull FileChannel channel = FileChannel.open(Path.of(filePath), StandardOpenOption.READ)) {
+            for (long offset = 0; offset < length; offset += this.blockSize) {
+                // each block has its own buffer, so it is freed as soon as it is evicted
+                final @NotNull ByteBuffer buffer = ByteBuffer.allocateDirect((int) Math.min(this.blockSize, length - offset));
+                while (buffer.hasRemaining())
+                    if (channel.read(buffer, start + offset + buffer.position()) < 0) break;
+                if (buffer.hasRemaining()) break;
+                blocks.add(Unpooled.wrappedBuffer(buffer.flip()).asReadOnly());
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * Insert a block into the window, moving the block it evicts into the main part if that has been requested more
+     * often than the block it would replace there
+     *
+     * @param demanded whether the block is needed now, rather than read ahead
+     */
+    private synchronized void admit(final @NotNull Key key, final @NotNull ByteBuf buffer, final boolean demanded) {
+        if (this.blocks.containsKey(key)) return;
+        final int slot;
+        if (this.windowUsed < this.window) slot = this.windowUsed++;
+        else {
+            slot = sweep(0, this.window, this.windowHand);
+            final @Nullable Key candidate = this.keys[slot];
+            final @Nullable Block block = candidate == null ? null : this.blocks.get(candidate);
+            if (block != null) promote(Objects.requireNonNull(candidate), block);
+            this.windowHand = (slot + 1) % this.window;
+        }
+        this.keys[slot] = key;
+        this.referenced[slot] = (byte) (demanded ? 1 : 0);
+        this.blocks.put(key, new Block(slot, Future.succeededFuture(buffer)));
+    }
+
+    /**
+     * Move a block evicted from the window into the main part, or drop it
+     */
+    private void promote(final @NotNull Key candidate, final @NotNull Block block) {
+        final int size = this.keys.length - this.window;
+        if (size == 0) {
+            this.blocks.remove(candidate);
+            return;
+        }
+        final int slot;
+        if (this.mainUsed < size) slot = this.window + this.mainUsed++;
+        else {
+            slot = sweep(this.window, size, this.mainHand);
+            final @Nullable Key victim = this.keys[slot];
+            if (victim != null && this.blocks.containsKey(victim)) {
+                if (this.sketch.frequency(candidate.hashCode()) <= this.sketch.frequency(victim.hashCode())) {
+                    this.blocks.remove(candidate);
+                    return;
+                }
+                this.blocks.remove(victim);
+            }
+            this.mainHand = (slot - this.window + 1) % size;
+        }
+        this.keys[slot] = candidate;
+        this.referenced[slot] = 0;
+        this.blocks.put(candidate, new Block(slot, block.future));
+    }
+
+    /**
+     * Advance a clock hand to a block that has not been used since the hand last passed it, clearing reference bits
+     *
+     * @param start first slot of the ring
+     * @param size  number of slots in the ring
+     * @param hand  position of the hand, relative to the start of the ring
+     * @return the slot the hand stopped at
+     */
+    private int sweep(final int start, final int size, int hand) {
+        while (this.referenced[start + hand] != 0) {
+            this.referenced[start + hand] = 0;
+            hand = (hand + 1) % size;
+        }
+        return start + hand;
+    }
+
+    private record Key(@NotNull String path, long version, long index) {
+    }
+
+    /**
+     * @param slot   slot in the clock
+     * @param future completed future of the block's contents, shared by all requests
+     */
+    private record Block(int slot, @NotNull Future<@NotNull ByteBuf> future) {
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters estimating how often blocks have been requested recently. All counters are
+     * halved periodically, so old popularity fades. Updated without synchronisation, as lost updates only make the
+     * estimates slightly less accurate.
+     */
+    private static final class FrequencySketch {
+        private static final int MAX_COUNT = 15;
+        private final byte @NotNull [] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int additions = 0;
+
+        private FrequencySketch(final int slots) {
+            final int width = Integer.highestOneBit(Math.max(64, Math.min(1 << 24, slots * 16 - 1)) << 1);
+            this.counters = new byte[width];
+            this.mask = width - 1;
+            this.sampleSize = (int) Math.min(Integer.MAX_VALUE, Math.max(1000L, 10L * slots));
+        }
+
+        void increment(final int hash) {
+            boolean added = false;
+            for (int i = 0; i < 4; ++i) {
+                final int index = index(hash, i);
+                if (this.counters[index] < MAX_COUNT) {
+                    ++this.counters[index];
+                    added = true;
+                }
+            }
+            if (added && ++this.additions >= this.sampleSize) reset();
+        }
+
+        int frequency(final int hash) {
+            int frequency = MAX_COUNT;
+            for (int i = 0; i < 4; ++i) frequency = Math.min(frequency, this.counters[index(hash, i)]);
+            return frequency;
+        }
+
+        private int index(final int hash, final int i) {
+            int h = hash * (0x9E3779B9 + 2 * i + 1);
+            h ^= h >>> 16;
+            return h & this.mask;
+        }
+
+        private void reset() {
+            for (int i = 0; i < this.counters.length; ++i) this.counters[i] >>= 1;
+            this.additions /= 2;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package ws.haste.front;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.buffer.Buffer;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Zero-copy conversions between Vert.x and Netty buffers
+ * <p>
+ * Cached files, mappings and blocks are shared by many responses without copying, which needs
+ * {@link Buffer#buffer(ByteBuf)} and {@link Buffer#getByteBuf()}. Vert.x 4 deprecates both without a public
+ * replacement, so they are only used here.
+ */
+@SuppressWarnings("deprecation")
+public final class Buffers {
+    private Buffers() {}
+
+    /**
+     * A buffer backed by the memory of a Netty buffer
+     */
+    public static @NotNull Buffer wrap(final @NotNull ByteBuf buffer) {
+        return Buffer.buffer(buffer);
+    }
+
+    /**
+     * A read-only view of a buffer, sharing its memory
+     */
+    public static @NotNull Buffer readOnly(final @NotNull Buffer buffer) {
+        return Buffer.buffer(buffer.getByteBuf().asReadOnly());
+    }
+
+    /**
+     * A read-only buffer backed by an array
+     *
+     * @param bytes contents; must not be modified afterwards
+     */
+    public static @NotNull Buffer readOnly(final byte @NotNull [] bytes) {
+        return Buffer.buffer(Unpooled.wrappedBuffer(bytes).asReadOnly());
+    }
+}
@@ -1,5 +1,7 @@
 package ws.haste.front;
 
+import io.vertx.core.http.Http2Settings;
+import io.vertx.core.http.HttpServerOptions;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.snakeyaml.engine.v2.api.Load;
@@ -9,8 +11,12 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -18,10 +24,30 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Collectors;
 
-public record Config(int port, @NotNull FileResource @NotNull [] resources,
-                     @NotNull HashMap<@NotNull Integer, @NotNull ErrorResource> errorResources,
-                     @NotNull HashMap<@NotNull String, @NotNull String> headers) {
+/**
+ * Server configuration. A configuration is immutable once loaded and is shared by all server instances.
+ */
+public record Config(int port, int eventLoops, @Nullable Tls tls, @NotNull Http2 http2, @NotNull Transport transport,
+                     @NotNull RouteTable<@NotNull Resource> routes,
+                     @NotNull Map<@NotNull Integer, @NotNull ErrorResource> errorResources,
+                     @NotNull ResponseHeaders headers,
+                     @NotNull ResponseCache cache, @NotNull MappedFiles mappedFiles, @NotNull BlockCache blockCache,
+                     @Nullable Validators validators,
+                     @NotNull Precompress precompress,
+                     @NotNull MetricsEndpoint metrics,
+                     @Nullable RateLimiter limiter, @NotNull Map<@NotNull Resource, @NotNull RateLimiter> resourceLimiters,
+                     @Nullable AccessLogger accessLogger) {
     public static @NotNull Config fromYaml(final @NotNull String configPath) throws ConfigException {
+        return fromYaml(configPath, null);
+    }
+
+    /**
+     * Load a configuration
+     *
+     * @param previous configuration being replaced, if any. Its cache, mappings and validators are reused (along with
+     *                 their contents) if their settings have not changed.
+     */
+    public static @NotNull Config fromYaml(final @NotNull String configPath, final @Nullable Config previous) throws ConfigException {
         final @NotNull HashSet<@NotNull String> availableEncodings = Arrays.stream(FileResource.Encoding.values()).map(FileResource.Encoding::toString).collect(Collectors.toCollection(HashSet::new));
 
         // snake yaml engine
@@ -41,7 +67,7 @@ public record Config(int port, @NotNull FileResource @NotNull [] resources,
             throw new ConfigException("File not found: " + configPath);
         }
         final @Nullable Object obj;
-        try {
+        try (fis) {
              obj = load.loadFromInputStream(fis);
         }
         catch (final @NotNull Exception e) {
@@ -56,6 +82,28 @@ public record Config(int port, @NotNull FileResource @NotNull [] resources,
             throw new ConfigException("port: must be an integer");
         if (port < 0 || port > 65535) throw new ConfigException("port: must be in range 0–65535, got " + port);
 
+        // event-loops
+        final @Nullable Object eventLoopsObj = yaml.get("event-loops");
+        if (eventLoopsObj != null && !(eventLoopsObj instanceof Integer))
+            throw new ConfigException("event-loops: must be either null or an integer");
+        final int eventLoops = eventLoopsObj == null ? Runtime.getRuntime().availableProcessors() : (int) eventLoopsObj;
+        if (eventLoops < 1) throw new ConfigException("event-loops: must be at least 1, got " + eventLoops);
+
+        // tls
+        final @Nullable Object tlsObj = yaml.get("tls");
+        if (!(tlsObj instanceof Map) && tlsObj != null) throw new ConfigException("tls: must be an object");
+        final @Nullable Tls tls = tlsObj == null ? null : Tls.fromYaml((Map<?, ?>) tlsObj);
+
+        // http2
+        final @Nullable Object http2Obj = yaml.get("http2");
+        if (!(http2Obj instanceof Map) && http2Obj != null) throw new ConfigException("http2: must be an object");
+        final @NotNull Http2 http2 = Http2.fromYaml(http2Obj == null ? Map.of() : (Map<?, ?>) http2Obj);
+
+        // transport
+        final @Nullable Object transportObj = yaml.get("transport");
+        if (!(transportObj instanceof Map) && transportObj != null) throw new ConfigException("transport: must be an object");
+        final @NotNull Transport transport = Transport.fromYaml(transportObj == null ? Map.of() : (Map<?, ?>) transportObj);
+
         // headers
         final @Nullable Object headersObj = yaml.get("headers");
         if (headersObj != null) {
@@ -65,10 +113,89 @@ public record Config(int port, @NotNull FileResource @NotNull [] resources,
             if (((Map<?, ?>) headersObj).values().stream().anyMatch(v -> !(v instanceof String) && v != null))
                 throw new ConfigException("headers: header values must be strings");
         }
-        @SuppressWarnings("unchecked") final @NotNull Optional<@NotNull Map<@NotNull String, @NotNull String>> headers = Optional.ofNullable((Map<@NotNull String, @NotNull String>) headersObj);
+        @SuppressWarnings("unchecked") final @NotNull ResponseHeaders headers = ResponseHeaders.EMPTY.with((Map<@NotNull String, @Nullable String>) headersObj);
+
+        // cache
+        final @Nullable Object cacheObj = yaml.get("cache");
+        if (!(cacheObj instanceof Map) && cacheObj != null) throw new ConfigException("cache: must be an object");
+        final @NotNull Map<?, ?> cacheMap = cacheObj == null ? Map.of() : (Map<?, ?>) cacheObj;
+        final long cacheMaxSize = parseSize(cacheMap.get("max-size"), "cache.max-size", 64L << 20);
+        final long cacheMaxEntrySize = parseSize(cacheMap.get("max-entry-size"), "cache.max-entry-size", 1L << 20);
+        final long cacheRevalidateInterval = parseSize(cacheMap.get("revalidate-interval"), "cache.revalidate-interval", 1000);
+        final @NotNull ResponseCache cache = previous != null && previous.cache.maxSize == cacheMaxSize && previous.cache.maxEntrySize == Math.min(cacheMaxEntrySize, cacheMaxSize) && previous.cache.revalidateInterval == cacheRevalidateInterval
+                ? previous.cache
+                : new ResponseCache(cacheMaxSize, cacheMaxEntrySize, cacheRevalidateInterval);
+
+        // mmap
+        final @Nullable Object mmapObj = yaml.get("mmap");
+        if (!(mmapObj instanceof Map) && mmapObj != null) throw new ConfigException("mmap: must be an object");
+        final @NotNull Map<?, ?> mmapMap = mmapObj == null ? Map.of() : (Map<?, ?>) mmapObj;
+        final long mmapMaxSize = parseSize(mmapMap.get("max-size"), "mmap.max-size", 64L << 30);
+        final long mmapCheckInterval = parseSize(mmapMap.get("check-interval"), "mmap.check-interval", 1000);
+        final @NotNull MappedFiles mappedFiles = previous != null && previous.mappedFiles.maxSize == mmapMaxSize && previous.mappedFiles.checkInterval == mmapCheckInterval
+                ? previous.mappedFiles
+                : new MappedFiles(mmapMaxSize, mmapCheckInterval);
+
+        // block-cache
+        final @Nullable Object blockCacheObj = yaml.get("block-cache");
+        if (!(blockCacheObj instanceof Map) && blockCacheObj != null) throw new ConfigException("block-cache: must be an object");
+        final @NotNull Map<?, ?> blockCacheMap = blockCacheObj == null ? Map.of() : (Map<?, ?>) blockCacheObj;
+        final long blockCacheMaxSize = parseSize(blockCacheMap.get("max-size"), "block-cache.max-size", 0);
+        final long blockSize = parseSize(blockCacheMap.get("block-size"), "block-cache.block-size", 256L << 10);
+        if (blockSize < 4096 || blockSize > 1 << 24 || Long.bitCount(blockSize) != 1)
+            throw new ConfigException("block-cache.block-size: must be a power of two in range 4096–" + (1 << 24) + ", got " + blockSize);
+        final long readAhead = parseSize(blockCacheMap.get("read-ahead"), "block-cache.read-ahead", 4);
+        if (readAhead > 64) throw new ConfigException("block-cache.read-ahead: must be in range 0–64, got " + readAhead);
+        final @NotNull BlockCache blockCache = previous != null && previous.blockCache.maxSize == blockCacheMaxSize && previous.blockCache.blockSize == blockSize && previous.blockCache.readAhead == readAhead
+                ? previous.blockCache
+                : new BlockCache(blockCacheMaxSize, (int) blockSize, (int) readAhead);
+
+        // validators
+        final @Nullable Object validatorsObj = yaml.get("validators");
+        if (!(validatorsObj instanceof Map) && validatorsObj != null) throw new ConfigException("validators: must be an object");
+        final @NotNull Map<?, ?> validatorsMap = validatorsObj == null ? Map.of() : (Map<?, ?>) validatorsObj;
+        if (validatorsMap.get("enabled") != null && !(validatorsMap.get("enabled") instanceof Boolean))
+            throw new ConfigException("validators.enabled: must be either null or a boolean");
+        final long validatorsCheckInterval = parseSize(validatorsMap.get("check-interval"), "validators.check-interval", 1000);
+        final @Nullable Validators validators;
+        if (Boolean.FALSE.equals(validatorsMap.get("enabled"))) validators = null;
+        else if (previous != null && previous.validators != null && previous.validators.checkInterval == validatorsCheckInterval) validators = previous.validators;
+        else validators = new Validators(validatorsCheckInterval);
+
+        // precompress
+        final @Nullable Object precompressObj = yaml.get("precompress");
+        if (!(precompressObj instanceof Map) && precompressObj != null) throw new ConfigException("precompress: must be an object");
+        final @NotNull Precompress precompress = Precompress.fromYaml(precompressObj == null ? Map.of() : (Map<?, ?>) precompressObj);
+
+        // metrics
+        final @Nullable Object metricsObj = yaml.get("metrics");
+        if (!(metricsObj instanceof Map) && metricsObj != null) throw new ConfigException("metrics: must be an object");
+        final @NotNull MetricsEndpoint metrics = MetricsEndpoint.fromYaml(metricsObj == null ? Map.of() : (Map<?, ?>) metricsObj);
+
+        // ranges
+        final @Nullable Object rangesObj = yaml.get("ranges");
+        if (!(rangesObj instanceof Map) && rangesObj != null) throw new ConfigException("ranges: must be an object");
+        final @NotNull RangeRequests rangeRequests = RangeRequests.fromYaml(rangesObj == null ? Map.of() : (Map<?, ?>) rangesObj);
+
+        // limits
+        final @Nullable Object limitsObj = yaml.get("limits");
+        if (!(limitsObj instanceof Map) && limitsObj != null) throw new ConfigException("limits: must be an object");
+        final @NotNull Limits limits = Limits.fromYaml(limitsObj == null ? Map.of() : (Map<?, ?>) limitsObj, "limits", Limits.DEFAULT_TRANSFER_SIZE);
+        final @Nullable RateLimiter limiter = !limits.enabled() ? null
+                : previous != null && previous.limiter != null && previous.limiter.limits.equals(limits) ? previous.limiter
+                : new RateLimiter(limits);
+        final @NotNull HashMap<@NotNull Resource, @NotNull RateLimiter> resourceLimiters = new HashMap<>();
+
+        // access-log
+        final @Nullable Object accessLogObj = yaml.get("access-log");
+        if (!(accessLogObj instanceof Map) && accessLogObj != null) throw new ConfigException("access-log: must be an object");
+        final @NotNull AccessLog accessLog = AccessLog.fromYaml(accessLogObj == null ? Map.of() : (Map<?, ?>) accessLogObj);
+
+        // serving-mode
+        final @NotNull FileResource.ServingMode servingMode = parseServingMode(yaml.get("serving-mode"), "serving-mode", FileResource.ServingMode.Stream);
 
         // resources
-        final @NotNull List<@NotNull FileResource> resources = new ArrayList<>();
+        final @NotNull List<@NotNull Resource> resources = new ArrayList<>();
         final @Nullable Object resourcesObj = yaml.get("resources");
         if (!(resourcesObj instanceof List)) throw new ConfigException("resources: must be an array");
         for (final @NotNull Object resourceObj : (List<?>) resourcesObj) {
@@ -81,9 +208,14 @@ public record Config(int port, @NotNull FileResource @NotNull [] resources,
             if (!(resourceMap.get("path") instanceof final @NotNull String path))
                 throw new ConfigException("resources.[n].path: must be a string");
 
+            final boolean mount = resourceMap.get("directory") != null || resourceMap.get("pack") != null || resourceMap.get("proxy") != null;
+
             // resources.[n].content-type
-            if (!(resourceMap.get("content-type") instanceof final @NotNull String contentType))
+            if (mount && resourceMap.get("content-type") != null && !(resourceMap.get("content-type") instanceof String))
+                throw new ConfigException("resources.[n].content-type: must be either null or a string");
+            if (!mount && !(resourceMap.get("content-type") instanceof String))
                 throw new ConfigException("resources.[n].content-type: must be a string");
+            final @NotNull String contentType = Optional.ofNullable((String) resourceMap.get("content-type")).orElse("application/octet-stream");
 
             // resources.[n].etag
             if (resourceMap.get("etag") != null && !(resourceMap.get("etag") instanceof String))
@@ -104,6 +236,40 @@ public record Config(int port, @NotNull FileResource @NotNull [] resources,
             }
             @SuppressWarnings("unchecked") final @NotNull Optional<@NotNull Map<@NotNull String, @Nullable String>> resourceHeaders = Optional.ofNullable((Map<@NotNull String, @NotNull String>) resourceHeadersObj);
 
+            // resources.[n].cache
+            if (resourceMap.get("cache") != null && !(resourceMap.get("cache") instanceof Boolean))
+                throw new ConfigException("resources.[n].cache: must be either null or a boolean");
+            final boolean cacheResource = !Boolean.FALSE.equals(resourceMap.get("cache"));
+
+            // resources.[n].precompress
+            if (resourceMap.get("precompress") != null && !(resourceMap.get("precompress") instanceof Boolean))
+                throw new ConfigException("resources.[n].precompress: must be either null or a boolean");
+            final boolean precompressResource = !Boolean.FALSE.equals(resourceMap.get("precompress"));
+
+            // resources.[n].serving-mode
+            final @NotNull FileResource.ServingMode resourceServingMode = parseServingMode(resourceMap.get("serving-mode"), "resources.[n].serving-mode", servingMode);
+
+            // resources.[n].limits
+            final @Nullable Object resourceLimitsObj = resourceMap.get("limits");
+            if (!(resourceLimitsObj instanceof Map) && resourceLimitsObj != null)
+                throw new ConfigException("resources.[n].limits: must be an object");
+            final @Nullable Limits resourceLimits = resourceLimitsObj == null ? null : Limits.fromYaml((Map<?, ?>) resourceLimitsObj, "resources.[n].limits", limits.transferSize());
+            if (resourceLimits != null && resourceLimits.connections() > 0)
+                throw new ConfigException("resources.[n].limits.connections: can only be set in the top-level `limits`");
+
+            if (resourceMap.get("proxy") != null) {
+                resources.add(limit(proxyResource(path, resourceMap, headers.with(resourceHeaders.orElse(null))), resourceLimits, resourceLimiters, previous));
+                continue;
+            }
+            if (resourceMap.get("pack") != null) {
+                resources.add(limit(packResource(path, resourceMap, headers.with(resourceHeaders.orElse(null)), rangeRequests), resourceLimits, resourceLimiters, previous));
+                continue;
+            }
+            if (mount) {
+                resources.add(limit(directoryResource(path, resourceMap, contentType, headers.with(resourceHeaders.orElse(null)), resourceServingMode, cacheResource && cache.enabled() ? cache : null, mappedFiles, blockCache.enabled() ? blockCache : null, rangeRequests), resourceLimits, resourceLimiters, previous));
+                continue;
+            }
+
             // resources.[n].files
             final @Nullable Object filesObj = resourceMap.get("files");
             if (!(filesObj instanceof Map)) throw new ConfigException("resources.[n].files: must be an object");
@@ -121,7 +287,7 @@ public record Config(int port, @NotNull FileResource @NotNull [] resources,
                 files.put(encoding, filePath);
             }
 
-            resources.add(new FileResource(path, contentType, files, etag.orElse(null), resourceHeaders.map(HashMap::new).orElse(null)));
+            resources.add(limit(new FileResource(path, contentType, files, etag.orElse(null), headers.with(resourceHeaders.orElse(null)), resourceServingMode, precompressResource, cacheResource && cache.enabled() ? cache : null, validators, mappedFiles, blockCache.enabled() ? blockCache : null, rangeRequests), resourceLimits, resourceLimiters, previous));
         }
 
         // error-pages
@@ -188,9 +354,522 @@ public record Config(int port, @NotNull FileResource @NotNull [] resources,
                 files.put(encoding, filePath);
             }
 
-            errorResources.put(key, new ErrorResource(contentType, files, etag.orElse(null), resourceHeaders.map(HashMap::new).orElse(null)));
+            errorResources.put(key, new ErrorResource(contentType, files, etag.orElse(null), headers.with(resourceHeaders.orElse(null)), servingMode, cache.enabled() ? cache : null, mappedFiles));
+        }
+        // default error pages
+        for (final int status : new int[]{404, 416, 429, 500, 502, 503, 504})
+            if (!errorResources.containsKey(status))
+                errorResources.put(status, new ErrorResource(
+                        "text/html",
+                        new HashMap<>() {{
+                            put(FileResource.Encoding.Identity, "haste://error/" + status + ".html");
+                        }},
+                        null,
+                        headers,
+                        FileResource.ServingMode.Stream,
+                        null,
+                        null
+                ));
+
+        // directory mounts are indexed after everything else has been validated, so that an invalid configuration never
+        // starts watching them
+        final @NotNull List<@NotNull DirectoryResource> directories = new ArrayList<>();
+        for (final @NotNull Resource resource : resources) {
+            if (!(resource instanceof final @NotNull DirectoryResource directory)) continue;
+            try {
+                directory.load();
+            }
+            catch (final @NotNull IOException e) {
+                directories.forEach(DirectoryResource::close);
+                throw new ConfigException("resources.[n].directory: could not index " + directory.root + ": " + e.getMessage());
+            }
+            directories.add(directory);
+        }
+
+        // the access log is opened last, so that an invalid configuration never opens it
+        final @Nullable AccessLogger accessLogger;
+        if (!accessLog.enabled()) accessLogger = null;
+        else if (previous != null && previous.accessLogger != null && previous.accessLogger.options.equals(accessLog)) accessLogger = previous.accessLogger;
+        else try {
+            accessLogger = new AccessLogger(accessLog);
+        }
+        catch (final @NotNull IOException e) {
+            directories.forEach(DirectoryResource::close);
+            throw new ConfigException("access-log.file: could not open " + accessLog.file() + ": " + e.getMessage());
+        }
+
+        return new Config(port, eventLoops, tls, http2, transport, new RouteTable<>(resources.toArray(new Resource[0])), Collections.unmodifiableMap(errorResources), headers, cache, mappedFiles, blockCache, validators, precompress, metrics, limiter, Collections.unmodifiableMap(resourceLimiters), accessLogger);
+    }
+
+    public @NotNull Resource @NotNull [] resources() {
+        return this.routes.resources();
+    }
+
+    /**
+     * Resources of the configuration that serve files
+     */
+    public @NotNull List<@NotNull FileResource> fileResources() {
+        return Arrays.stream(this.routes.resources()).filter(r -> r instanceof FileResource).map(r -> (FileResource) r).toList();
+    }
+
+    /**
+     * Directories mounted by the configuration
+     */
+    public @NotNull List<@NotNull DirectoryResource> directories() {
+        return Arrays.stream(this.routes.resources()).filter(r -> r instanceof DirectoryResource).map(r -> (DirectoryResource) r).toList();
+    }
+
+    /**
+     * Asset packs mounted by the configuration
+     */
+    public @NotNull List<@NotNull PackResource> packs() {
+        return Arrays.stream(this.routes.resources()).filter(r -> r instanceof PackResource).map(r -> (PackResource) r).toList();
+    }
+
+    /**
+     * Resources of the configuration forwarded to an upstream server
+     */
+    public @NotNull List<@NotNull ProxyResource> proxies() {
+        return Arrays.stream(this.routes.resources()).filter(r -> r instanceof ProxyResource).map(r -> (ProxyResource) r).toList();
+    }
+
+    /**
+     * Rate limiters of the configuration, including those of the resources
+     */
+    public @NotNull List<@NotNull RateLimiter> limiters() {
+        final @NotNull List<@NotNull RateLimiter> limiters = new ArrayList<>(this.resourceLimiters.values());
+        if (this.limiter != null) limiters.add(this.limiter);
+        return limiters;
+    }
+
+    /**
+     * Register the limits of a resource, reusing the limiter of the previous configuration (and with it the state of
+     * its clients) if the resource had the same limits there
+     */
+    private static @NotNull Resource limit(final @NotNull Resource resource, final @Nullable Limits limits, final @NotNull Map<@NotNull Resource, @NotNull RateLimiter> resourceLimiters, final @Nullable Config previous) {
+        if (limits == null || !limits.enabled()) return resource;
+        final @NotNull RateLimiter limiter = previous == null ? new RateLimiter(limits) : previous.resourceLimiters.entrySet().stream()
+                .filter(e -> e.getKey().url.equals(resource.url) && e.getValue().limits.equals(limits))
+                .map(Map.Entry::getValue)
+                .findFirst().orElseGet(() -> new RateLimiter(limits));
+        resourceLimiters.put(resource, limiter);
+        return resource;
+    }
+
+    private static @NotNull PackResource packResource(final @NotNull String path, final @NotNull Map<@NotNull String, @NotNull Object> resourceMap, final @NotNull ResponseHeaders headers, final @NotNull RangeRequests rangeRequests) throws ConfigException {
+        if (!path.endsWith("*"))
+            throw new ConfigException("resources.[n].path: must end with `*` for a pack, got " + path);
+        for (final @NotNull String key : new String[]{"files", "directory", "etag", "precompress", "content-type", "content-types", "watch", "cache", "serving-mode"})
+            if (resourceMap.get(key) != null)
+                throw new ConfigException("resources.[n]." + key + ": cannot be used with `pack`");
+
+        // resources.[n].pack
+        if (!(resourceMap.get("pack") instanceof final @NotNull String pack))
+            throw new ConfigException("resources.[n].pack: must be a string");
+        if (!new File(pack).isFile())
+            throw new ConfigException("resources.[n].pack: " + pack + " does not exist");
+        try {
+            return new PackResource(path, Path.of(pack), headers, rangeRequests);
+        }
+        catch (final @NotNull IOException e) {
+            throw new ConfigException("resources.[n].pack: could not open " + pack + ": " + e.getMessage());
+        }
+    }
+
+    private static @NotNull ProxyResource proxyResource(final @NotNull String path, final @NotNull Map<@NotNull String, @NotNull Object> resourceMap, final @NotNull ResponseHeaders headers) throws ConfigException {
+        for (final @NotNull String key : new String[]{"files", "directory", "pack", "etag", "precompress", "content-type", "content-types", "watch", "cache", "serving-mode"})
+            if (resourceMap.get(key) != null)
+                throw new ConfigException("resources.[n]." + key + ": cannot be used with `proxy`");
+        if (!(resourceMap.get("proxy") instanceof final @NotNull Map<?, ?> proxy))
+            throw new ConfigException("resources.[n].proxy: must be an object");
+        final @NotNull Proxy options = Proxy.fromYaml(proxy);
+        if (options.stripPrefix() && !path.endsWith("*"))
+            throw new ConfigException("resources.[n].path: must end with `*` to strip the prefix, got " + path);
+        return new ProxyResource(path, headers, options);
+    }
+
+    private static @NotNull DirectoryResource directoryResource(final @NotNull String path, final @NotNull Map<@NotNull String, @NotNull Object> resourceMap, final @NotNull String contentType, final @NotNull ResponseHeaders headers, final FileResource.@NotNull ServingMode servingMode, final @Nullable ResponseCache cache, final @NotNull MappedFiles mappedFiles, final @Nullable BlockCache blockCache, final @NotNull RangeRequests rangeRequests) throws ConfigException {
+        if (!path.endsWith("*"))
+            throw new ConfigException("resources.[n].path: must end with `*` for a directory, got " + path);
+        for (final @NotNull String key : new String[]{"files", "etag", "precompress"})
+            if (resourceMap.get(key) != null)
+                throw new ConfigException("resources.[n]." + key + ": cannot be used with `directory`");
+
+        // resources.[n].directory
+        if (!(resourceMap.get("directory") instanceof final @NotNull String directory))
+            throw new ConfigException("resources.[n].directory: must be a string");
+        if (!new File(directory).isDirectory())
+            throw new ConfigException("resources.[n].directory: " + directory + " is not a directory");
+
+        // resources.[n].content-types
+        final @Nullable Object contentTypesObj = resourceMap.get("content-types");
+        if (contentTypesObj != null && (!(contentTypesObj instanceof Map) || ((Map<?, ?>) contentTypesObj).entrySet().stream().anyMatch(e -> !(e.getKey() instanceof String) || !(e.getValue() instanceof String))))
+            throw new ConfigException("resources.[n].content-types: must be an object of file extensions to content types");
+        final @NotNull HashMap<@NotNull String, @NotNull String> contentTypes = new HashMap<>(MountResource.DEFAULT_CONTENT_TYPES);
+        if (contentTypesObj != null) for (final @NotNull Map.Entry<?, ?> entry : ((Map<?, ?>) contentTypesObj).entrySet())
+            contentTypes.put(((String) entry.getKey()).toLowerCase().replaceFirst("^\\.", ""), (String) entry.getValue());
+
+        // resources.[n].watch
+        if (resourceMap.get("watch") != null && !(resourceMap.get("watch") instanceof Boolean))
+            throw new ConfigException("resources.[n].watch: must be either null or a boolean");
+        final boolean watch = !Boolean.FALSE.equals(resourceMap.get("watch"));
+
+        return new DirectoryResource(path, Path.of(directory), contentTypes, contentType, headers, servingMode, cache, mappedFiles, blockCache, rangeRequests, watch);
+    }
+
+    private static @NotNull FileResource.ServingMode parseServingMode(final @Nullable Object value, final @NotNull String key, final FileResource.@NotNull ServingMode defaultValue) throws ConfigException {
+        if (value == null) return defaultValue;
+        final @NotNull String modes = Arrays.stream(FileResource.ServingMode.values()).map(FileResource.ServingMode::toString).collect(Collectors.joining(", "));
+        if (!(value instanceof final @NotNull String mode))
+            throw new ConfigException(key + ": must be one of " + modes);
+        return FileResource.ServingMode.fromString(mode).orElseThrow(() -> new ConfigException(key + ": must be one of " + modes + ", got " + mode));
+    }
+
+    private static long parseSize(final @Nullable Object value, final @NotNull String key, final long defaultValue) throws ConfigException {
+        if (value == null) return defaultValue;
+        if (!(value instanceof Integer || value instanceof Long))
+            throw new ConfigException(key + ": must be an integer");
+        final long size = ((Number) value).longValue();
+        if (size < 0) throw new ConfigException(key + ": must not be negative, got " + size);
+        return size;
+    }
+
+    /**
+     * TLS certificate, either as PEM certificate chain and private key or as a key store
+     */
+    public record Tls(@Nullable String cert, @Nullable String key, @Nullable String keystore, @Nullable String keystorePassword) {
+        private static @NotNull Tls fromYaml(final @NotNull Map<?, ?> tls) throws ConfigException {
+            for (final @NotNull String key : new String[]{"cert", "key", "keystore", "keystore-password"})
+                if (tls.get(key) != null && !(tls.get(key) instanceof String))
+                    throw new ConfigException("tls." + key + ": must be either null or a string");
+            final @NotNull Tls t = new Tls((String) tls.get("cert"), (String) tls.get("key"), (String) tls.get("keystore"), (String) tls.get("keystore-password"));
+            if (t.keystore == null && (t.cert == null || t.key == null))
+                throw new ConfigException("tls: either `cert` and `key` or `keystore` must be set");
+            if (t.keystore != null && (t.cert != null || t.key != null))
+                throw new ConfigException("tls: `cert`/`key` and `keystore` cannot be used together");
+            for (final @Nullable String file : new String[]{t.cert, t.key, t.keystore})
+                if (file != null && !new File(file).isFile())
+                    throw new ConfigException("tls: " + file + " does not exist");
+            return t;
+        }
+    }
+
+    /**
+     * HTTP/2 settings
+     *
+     * @param enabled              negotiate h2 with ALPN on TLS connections
+     * @param h2c                  accept cleartext HTTP/2 (prior knowledge or {@code Upgrade: h2c})
+     * @param maxConcurrentStreams maximum number of concurrent streams per connection
+     * @param initialWindowSize    initial flow-control window size of each stream, in bytes
+     * @param connectionWindowSize flow-control window size of each connection, in bytes
+     */
+    public record Http2(boolean enabled, boolean h2c, long maxConcurrentStreams, int initialWindowSize, int connectionWindowSize) {
+        private static @NotNull Http2 fromYaml(final @NotNull Map<?, ?> http2) throws ConfigException {
+            for (final @NotNull String key : new String[]{"enabled", "h2c"})
+                if (http2.get(key) != null && !(http2.get(key) instanceof Boolean))
+                    throw new ConfigException("http2." + key + ": must be either null or a boolean");
+            final long maxConcurrentStreams = parseSize(http2.get("max-concurrent-streams"), "http2.max-concurrent-streams", Http2Settings.DEFAULT_MAX_CONCURRENT_STREAMS);
+            final long initialWindowSize = parseSize(http2.get("initial-window-size"), "http2.initial-window-size", Http2Settings.DEFAULT_INITIAL_WINDOW_SIZE);
+            final long connectionWindowSize = parseSize(http2.get("connection-window-size"), "http2.connection-window-size", HttpServerOptions.DEFAULT_HTTP2_CONNECTION_WINDOW_SIZE);
+            if (maxConcurrentStreams > 0xFFFFFFFFL)
+                throw new ConfigException("http2.max-concurrent-streams: must be at most " + 0xFFFFFFFFL + ", got " + maxConcurrentStreams);
+            if (initialWindowSize > Integer.MAX_VALUE)
+                throw new ConfigException("http2.initial-window-size: must be at most " + Integer.MAX_VALUE + ", got " + initialWindowSize);
+            if (connectionWindowSize > Integer.MAX_VALUE)
+                throw new ConfigException("http2.connection-window-size: must be at most " + Integer.MAX_VALUE + ", got " + connectionWindowSize);
+            return new Http2(!Boolean.FALSE.equals(http2.get("enabled")), Boolean.TRUE.equals(http2.get("h2c")), maxConcurrentStreams, (int) initialWindowSize, (int) connectionWindowSize);
+        }
+    }
+
+    /**
+     * Socket-level settings of the listening port
+     *
+     * @param nativeTransport  use the native transport (epoll on Linux) if available, falling back to NIO otherwise
+     * @param tcpNoDelay       disable Nagle's algorithm
+     * @param tcpFastOpen      accept data in the SYN of returning clients (native transport only)
+     * @param tcpCork          coalesce writes into full segments (native transport only)
+     * @param tcpQuickAck      acknowledge segments immediately instead of delaying ACKs (native transport only)
+     * @param reusePort        bind with {@code SO_REUSEPORT} so the kernel spreads connections across the event loops
+     *                         (native transport only)
+     * @param acceptBacklog    maximum number of connections waiting to be accepted, or -1 for the system default
+     * @param sendBufferSize   socket send buffer size in bytes, or -1 for the system default
+     * @param receiveBufferSize socket receive buffer size in bytes, or -1 for the system default
+     * @param idleTimeout      milliseconds after which connections without traffic are closed, or 0 to never close them
+     * @param tcpKeepAlive     send TCP keep-alive probes on idle connections
+     */
+    public record Transport(boolean nativeTransport, boolean tcpNoDelay, boolean tcpFastOpen, boolean tcpCork, boolean tcpQuickAck, boolean reusePort, int acceptBacklog, int sendBufferSize, int receiveBufferSize, int idleTimeout, boolean tcpKeepAlive) {
+        private static @NotNull Transport fromYaml(final @NotNull Map<?, ?> transport) throws ConfigException {
+            for (final @NotNull String key : new String[]{"native", "tcp-no-delay", "tcp-fast-open", "tcp-cork", "tcp-quick-ack", "reuse-port", "tcp-keep-alive"})
+                if (transport.get(key) != null && !(transport.get(key) instanceof Boolean))
+                    throw new ConfigException("transport." + key + ": must be either null or a boolean");
+            final long acceptBacklog = parseSize(transport.get("accept-backlog"), "transport.accept-backlog", -1);
+            final long sendBufferSize = parseSize(transport.get("send-buffer-size"), "transport.send-buffer-size", -1);
+            final long receiveBufferSize = parseSize(transport.get("receive-buffer-size"), "transport.receive-buffer-size", -1);
+            final long idleTimeout = parseSize(transport.get("idle-timeout"), "transport.idle-timeout", 0);
+            if (acceptBacklog == 0 || acceptBacklog > Integer.MAX_VALUE)
+                throw new ConfigException("transport.accept-backlog: must be in range 1–" + Integer.MAX_VALUE + ", got " + acceptBacklog);
+            if (sendBufferSize == 0 || sendBufferSize > Integer.MAX_VALUE)
+                throw new ConfigException("transport.send-buffer-size: must be in range 1–" + Integer.MAX_VALUE + ", got " + sendBufferSize);
+            if (receiveBufferSize == 0 || receiveBufferSize > Integer.MAX_VALUE)
+                throw new ConfigException("transport.receive-buffer-size: must be in range 1–" + Integer.MAX_VALUE + ", got " + receiveBufferSize);
+            if (idleTimeout > Integer.MAX_VALUE)
+                throw new ConfigException("transport.idle-timeout: must be at most " + Integer.MAX_VALUE + ", got " + idleTimeout);
+            return new Transport(Boolean.TRUE.equals(transport.get("native")), !Boolean.FALSE.equals(transport.get("tcp-no-delay")), Boolean.TRUE.equals(transport.get("tcp-fast-open")), Boolean.TRUE.equals(transport.get("tcp-cork")), Boolean.TRUE.equals(transport.get("tcp-quick-ack")), Boolean.TRUE.equals(transport.get("reuse-port")), (int) acceptBacklog, (int) sendBufferSize, (int) receiveBufferSize, (int) idleTimeout, Boolean.TRUE.equals(transport.get("tcp-keep-alive")));
+        }
+
+        /**
+         * The settings in effect on a transport. Options that only the native transport supports are off on NIO.
+         *
+         * @param nativeTransport whether the native transport is in use
+         */
+        public @NotNull Transport effective(final boolean nativeTransport) {
+            if (nativeTransport) return this;
+            return new Transport(false, this.tcpNoDelay, false, false, false, false, this.acceptBacklog, this.sendBufferSize, this.receiveBufferSize, this.idleTimeout, this.tcpKeepAlive);
+        }
+
+        @Override
+        public @NotNull String toString() {
+            return "tcp-no-delay=" + this.tcpNoDelay
+                    + ", tcp-fast-open=" + this.tcpFastOpen
+                    + ", tcp-cork=" + this.tcpCork
+                    + ", tcp-quick-ack=" + this.tcpQuickAck
+                    + ", reuse-port=" + this.reusePort
+                    + ", accept-backlog=" + (this.acceptBacklog == -1 ? "default" : this.acceptBacklog)
+                    + ", send-buffer-size=" + (this.sendBufferSize == -1 ? "default" : this.sendBufferSize)
+                    + ", receive-buffer-size=" + (this.receiveBufferSize == -1 ? "default" : this.receiveBufferSize)
+                    + ", idle-timeout=" + (this.idleTimeout == 0 ? "none" : this.idleTimeout + " ms")
+                    + ", tcp-keep-alive=" + this.tcpKeepAlive;
+        }
+    }
+
+    /**
+     * Limits on the requests of each client (remote IP address). A limit of 0 disables it.
+     *
+     * @param requestsPerSecond sustained number of requests per second of each client
+     * @param burst             number of requests a client may make at once before being held to the rate
+     * @param connections       concurrent connections of each client
+     * @param transfers         concurrent large transfers of each client
+     * @param totalTransfers    concurrent large transfers of all clients together
+     * @param transferSize      size in bytes from which a response counts as a large transfer
+     * @param expiry            milliseconds after which an idle client is forgotten
+     */
+    public record Limits(double requestsPerSecond, int burst, int connections, int transfers, int totalTransfers, long transferSize, long expiry) {
+        public static final long DEFAULT_TRANSFER_SIZE = 1L << 20;
+
+        /**
+         * @param key                 configuration key, for error messages
+         * @param defaultTransferSize transfer size if not set
+         */
+        private static @NotNull Limits fromYaml(final @NotNull Map<?, ?> limits, final @NotNull String key, final long defaultTransferSize) throws ConfigException {
+            final @Nullable Object rateObj = limits.get("requests-per-second");
+            if (rateObj != null && !(rateObj instanceof Number))
+                throw new ConfigException(key + ".requests-per-second: must be a number");
+            final double requestsPerSecond = rateObj == null ? 0 : ((Number) rateObj).doubleValue();
+            if (requestsPerSecond < 0 || requestsPerSecond > 1e9)
+                throw new ConfigException(key + ".requests-per-second: must be in range 0–1000000000, got " + requestsPerSecond);
+            final long burst = parseSize(limits.get("burst"), key + ".burst", Math.max(1, (long) Math.ceil(requestsPerSecond)));
+            final long connections = parseSize(limits.get("connections"), key + ".connections", 0);
+            final long transfers = parseSize(limits.get("transfers"), key + ".transfers", 0);
+            final long totalTransfers = parseSize(limits.get("total-transfers"), key + ".total-transfers", 0);
+            for (final long value : new long[]{burst, connections, transfers, totalTransfers})
+                if (value > Integer.MAX_VALUE)
+                    throw new ConfigException(key + ": burst, connections and transfers must be at most " + Integer.MAX_VALUE + ", got " + value);
+            if (burst < 1) throw new ConfigException(key + ".burst: must be at least 1, got " + burst);
+            final long transferSize = parseSize(limits.get("transfer-size"), key + ".transfer-size", defaultTransferSize);
+            final long expiry = parseSize(limits.get("expiry"), key + ".expiry", 60_000);
+            if (expiry < 1000) throw new ConfigException(key + ".expiry: must be at least 1000, got " + expiry);
+            return new Limits(requestsPerSecond, (int) burst, (int) connections, (int) transfers, (int) totalTransfers, transferSize, expiry);
+        }
+
+        /**
+         * Whether any limit is set
+         */
+        public boolean enabled() {
+            return this.requestsPerSecond > 0 || this.connections > 0 || this.transfers > 0 || this.totalTransfers > 0;
+        }
+    }
+
+    /**
+     * Upstream server of a proxied resource
+     *
+     * @param upstream         URL of the upstream server ({@code http} or {@code https}), optionally with a base path
+     * @param stripPrefix      whether to replace the part of the resource path before a trailing {@code *} with the base
+     *                         path, instead of appending the whole request path to it
+     * @param maxConnections   maximum number of connections to the upstream
+     * @param connectTimeout   milliseconds to wait for a connection to the upstream
+     * @param timeout          milliseconds to wait for the upstream without receiving any data
+     * @param keepAliveTimeout seconds after which idle connections to the upstream are closed
+     * @param cache            micro-cache of the responses
+     */
+    public record Proxy(@NotNull String upstream, boolean stripPrefix, int maxConnections, int connectTimeout, long timeout, int keepAliveTimeout, @NotNull ProxyCache cache) {
+        private static @NotNull Proxy fromYaml(final @NotNull Map<?, ?> proxy) throws ConfigException {
+            if (!(proxy.get("upstream") instanceof final @NotNull String upstream))
+                throw new ConfigException("resources.[n].proxy.upstream: must be a string");
+            final @NotNull URI uri;
+            try {
+                uri = new URI(upstream);
+            }
+            catch (final @NotNull URISyntaxException e) {
+                throw new ConfigException("resources.[n].proxy.upstream: must be a URL, got " + upstream);
+            }
+            if (uri.getScheme() == null || !uri.getScheme().equalsIgnoreCase("http") && !uri.getScheme().equalsIgnoreCase("https") || uri.getHost() == null)
+                throw new ConfigException("resources.[n].proxy.upstream: must be an http or https URL with a host, got " + upstream);
+            if (uri.getRawQuery() != null || uri.getRawFragment() != null)
+                throw new ConfigException("resources.[n].proxy.upstream: must not have a query or fragment, got " + upstream);
+            if (proxy.get("strip-prefix") != null && !(proxy.get("strip-prefix") instanceof Boolean))
+                throw new ConfigException("resources.[n].proxy.strip-prefix: must be either null or a boolean");
+            final long maxConnections = parseSize(proxy.get("max-connections"), "resources.[n].proxy.max-connections", 32);
+            if (maxConnections < 1 || maxConnections > 65535)
+                throw new ConfigException("resources.[n].proxy.max-connections: must be in range 1–65535, got " + maxConnections);
+            final long connectTimeout = parseSize(proxy.get("connect-timeout"), "resources.[n].proxy.connect-timeout", 5000);
+            if (connectTimeout < 1 || connectTimeout > Integer.MAX_VALUE)
+                throw new ConfigException("resources.[n].proxy.connect-timeout: must be in range 1–" + Integer.MAX_VALUE + ", got " + connectTimeout);
+            final long timeout = parseSize(proxy.get("timeout"), "resources.[n].proxy.timeout", 30_000);
+            if (timeout < 1) throw new ConfigException("resources.[n].proxy.timeout: must be at least 1, got " + timeout);
+            final long keepAliveTimeout = parseSize(proxy.get("keep-alive-timeout"), "resources.[n].proxy.keep-alive-timeout", 60);
+            if (keepAliveTimeout < 1 || keepAliveTimeout > Integer.MAX_VALUE)
+                throw new ConfigException("resources.[n].proxy.keep-alive-timeout: must be in range 1–" + Integer.MAX_VALUE + ", got " + keepAliveTimeout);
+            final @Nullable Object cacheObj = proxy.get("cache");
+            if (!(cacheObj instanceof Map) && cacheObj != null)
+                throw new ConfigException("resources.[n].proxy.cache: must be an object");
+            final @NotNull ProxyCache cache = ProxyCache.fromYaml(cacheObj == null ? Map.of() : (Map<?, ?>) cacheObj);
+            return new Proxy(upstream, Boolean.TRUE.equals(proxy.get("strip-prefix")), (int) maxConnections, (int) connectTimeout, timeout, (int) keepAliveTimeout, cache);
+        }
+    }
+
+    /**
+     * Micro-cache of the responses of a proxied resource
+     *
+     * @param maxSize      maximum total size of the cached response bodies in bytes
+     * @param maxEntrySize responses with larger bodies are not cached
+     * @param ttl          milliseconds for which a response is served from the cache, at most its {@code max-age}
+     * @param stale        milliseconds for which an expired response is still served while it is revalidated
+     */
+    public record ProxyCache(long maxSize, long maxEntrySize, long ttl, long stale) {
+        private static @NotNull ProxyCache fromYaml(final @NotNull Map<?, ?> cache) throws ConfigException {
+            final long maxSize = parseSize(cache.get("max-size"), "resources.[n].proxy.cache.max-size", 16L << 20);
+            final long maxEntrySize = parseSize(cache.get("max-entry-size"), "resources.[n].proxy.cache.max-entry-size", 1L << 20);
+            if (maxEntrySize > Integer.MAX_VALUE)
+                throw new ConfigException("resources.[n].proxy.cache.max-entry-size: must be at most " + Integer.MAX_VALUE + ", got " + maxEntrySize);
+            final long ttl = parseSize(cache.get("ttl"), "resources.[n].proxy.cache.ttl", 1000);
+            final long stale = parseSize(cache.get("stale"), "resources.[n].proxy.cache.stale", 5000);
+            return new ProxyCache(maxSize, maxEntrySize, ttl, stale);
+        }
+
+        /**
+         * Whether responses are cached
+         */
+        public boolean enabled() {
+            return this.maxSize > 0 && this.ttl > 0;
+        }
+    }
+
+    /**
+     * Access log
+     *
+     * @param enabled       whether to log requests
+     * @param file          path of the log file, or {@code stdout}
+     * @param bufferSize    number of records that can wait to be written; more are dropped. A power of two.
+     * @param sample        fraction of requests to log
+     * @param flushInterval milliseconds between writes of the buffered records
+     */
+    public record AccessLog(boolean enabled, @NotNull String file, int bufferSize, double sample, long flushInterval) {
+        private static @NotNull AccessLog fromYaml(final @NotNull Map<?, ?> accessLog) throws ConfigException {
+            if (accessLog.get("enabled") != null && !(accessLog.get("enabled") instanceof Boolean))
+                throw new ConfigException("access-log.enabled: must be either null or a boolean");
+            if (accessLog.get("file") != null && !(accessLog.get("file") instanceof String))
+                throw new ConfigException("access-log.file: must be either null or a string");
+            final @NotNull String file = Optional.ofNullable((String) accessLog.get("file")).orElse("stdout");
+            final long bufferSize = parseSize(accessLog.get("buffer-size"), "access-log.buffer-size", 16384);
+            if (bufferSize < 2 || bufferSize > 1 << 24 || Long.bitCount(bufferSize) != 1)
+                throw new ConfigException("access-log.buffer-size: must be a power of two in range 2–" + (1 << 24) + ", got " + bufferSize);
+            final @Nullable Object sampleObj = accessLog.get("sample");
+            if (sampleObj != null && !(sampleObj instanceof Number))
+                throw new ConfigException("access-log.sample: must be a number");
+            final double sample = sampleObj == null ? 1 : ((Number) sampleObj).doubleValue();
+            if (sample <= 0 || sample > 1)
+                throw new ConfigException("access-log.sample: must be in range (0, 1], got " + sample);
+            final long flushInterval = parseSize(accessLog.get("flush-interval"), "access-log.flush-interval", 100);
+            if (flushInterval < 1 || flushInterval > 10_000)
+                throw new ConfigException("access-log.flush-interval: must be in range 1–10000, got " + flushInterval);
+            return new AccessLog(Boolean.TRUE.equals(accessLog.get("enabled")), file, (int) bufferSize, sample, flushInterval);
+        }
+    }
+
+    /**
+     * Generation of compressed variants for resources that only have an {@code identity} file
+     *
+     * @param enabled       whether to generate variants
+     * @param directory     directory where generated variants are stored
+     * @param types         compressible content types; {@code type/*} matches all subtypes
+     * @param minRatio      a variant is only used if its size is at most this fraction of the original size
+     * @param checkInterval milliseconds between checks for changed source files, or 0 to only check at startup
+     */
+    public record Precompress(boolean enabled, @NotNull String directory, @NotNull List<@NotNull String> types, double minRatio, long checkInterval) {
+        private static @NotNull Precompress fromYaml(final @NotNull Map<?, ?> precompress) throws ConfigException {
+            if (precompress.get("enabled") != null && !(precompress.get("enabled") instanceof Boolean))
+                throw new ConfigException("precompress.enabled: must be either null or a boolean");
+            if (precompress.get("directory") != null && !(precompress.get("directory") instanceof String))
+                throw new ConfigException("precompress.directory: must be either null or a string");
+            final @NotNull String directory = Optional.ofNullable((String) precompress.get("directory")).orElseGet(() -> new File(System.getProperty("java.io.tmpdir"), "haste-precompressed").getPath());
+            final @Nullable Object typesObj = precompress.get("types");
+            if (typesObj != null && (!(typesObj instanceof List) || ((List<?>) typesObj).stream().anyMatch(t -> !(t instanceof String))))
+                throw new ConfigException("precompress.types: must be an array of strings");
+            @SuppressWarnings("unchecked") final @NotNull List<@NotNull String> types = typesObj == null ? Precompressor.DEFAULT_TYPES : ((List<@NotNull String>) typesObj).stream().map(String::toLowerCase).toList();
+            final @Nullable Object minRatioObj = precompress.get("min-ratio");
+            if (minRatioObj != null && !(minRatioObj instanceof Number))
+                throw new ConfigException("precompress.min-ratio: must be a number");
+            final double minRatio = minRatioObj == null ? 0.9 : ((Number) minRatioObj).doubleValue();
+            if (minRatio <= 0 || minRatio > 1)
+                throw new ConfigException("precompress.min-ratio: must be in range (0, 1], got " + minRatio);
+            final long checkInterval = parseSize(precompress.get("check-interval"), "precompress.check-interval", 5000);
+            return new Precompress(Boolean.TRUE.equals(precompress.get("enabled")), directory, types, minRatio, checkInterval);
+        }
+    }
+
+    /**
+     * Handling of range requests
+     *
+     * @param maxCount    maximum number of ranges in a request; requests with more are answered with the full content
+     * @param coalesceGap ranges at most this many bytes apart are merged into one
+     */
+    public record RangeRequests(int maxCount, long coalesceGap) {
+        public static final @NotNull RangeRequests DEFAULT = new RangeRequests(100, 128);
+
+        private static @NotNull RangeRequests fromYaml(final @NotNull Map<?, ?> ranges) throws ConfigException {
+            final long maxCount = parseSize(ranges.get("max-count"), "ranges.max-count", DEFAULT.maxCount);
+            if (maxCount < 1 || maxCount > 10000)
+                throw new ConfigException("ranges.max-count: must be in range 1–10000, got " + maxCount);
+            final long coalesceGap = parseSize(ranges.get("coalesce-gap"), "ranges.coalesce-gap", DEFAULT.coalesceGap);
+            if (coalesceGap > 1L << 30)
+                throw new ConfigException("ranges.coalesce-gap: must be at most " + (1L << 30) + ", got " + coalesceGap);
+            return new RangeRequests((int) maxCount, coalesceGap);
+        }
+    }
+
+    /**
+     * Metrics endpoint
+     *
+     * @param enabled whether to collect and expose metrics
+     * @param port    port of a separate admin server for the metrics, or 0 to serve them on the main port
+     * @param path    path of the metrics
+     */
+    public record MetricsEndpoint(boolean enabled, int port, @NotNull String path) {
+        private static @NotNull MetricsEndpoint fromYaml(final @NotNull Map<?, ?> metrics) throws ConfigException {
+            if (metrics.get("enabled") != null && !(metrics.get("enabled") instanceof Boolean))
+                throw new ConfigException("metrics.enabled: must be either null or a boolean");
+            if (metrics.get("port") != null && !(metrics.get("port") instanceof Integer))
+                throw new ConfigException("metrics.port: must be either null or an integer");
+            final int port = Optional.ofNullable((Integer) metrics.get("port")).orElse(0);
+            if (port < 0 || port > 65535)
+                throw new ConfigException("metrics.port: must be in range 0–65535, got " + port);
+            if (metrics.get("path") != null && !(metrics.get("path") instanceof String))
+                throw new ConfigException("metrics.path: must be either null or a string");
+            final @NotNull String path = Optional.ofNullable((String) metrics.get("path")).orElse("/metrics");
+            if (!path.startsWith("/"))
+                throw new ConfigException("metrics.path: must start with `/`, got " + path);
+            return new MetricsEndpoint(Boolean.TRUE.equals(metrics.get("enabled")), port, path);
         }
-        return new Config(port, resources.toArray(new FileResource[0]), errorResources, headers.map(HashMap::new).orElse(new HashMap<>()));
     }
 
     public static class ConfigException extends RuntimeException {
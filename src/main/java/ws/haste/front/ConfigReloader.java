@@ -0,0 +1,259 @@
+package ws.haste.front;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+/**
+ * Holds the current configuration and replaces it when the configuration file changes or the process receives
+ * {@code SIGHUP}
+ * <p>
+ * A new configuration is loaded on a worker thread and published with a single volatile write, so requests always see
+ * either the old or the new configuration in full. In-flight responses finish with the resources they started with.
+ * The response cache, mappings and validators carry over to the new configuration unless their settings changed;
+ * files that change on disk are dropped from them right away instead of at the next revalidation. Directory mounts
+ * are indexed again by the new configuration, and the old configuration stops watching them. Replacing an asset pack
+ * reloads the configuration.
+ * <p>
+ * The port, event loops, TLS, HTTP/2 and metrics port settings only take effect after a restart.
+ */
+public final class ConfigReloader {
+    private static final long DEBOUNCE = 200;
+
+    private final @NotNull String configPath;
+    private final @Nullable Path configFile;
+    private volatile @NotNull Config config;
+    private @Nullable Vertx vertx;
+    private @Nullable Precompressor precompressor;
+    private @Nullable WatchService watchService;
+    private final @NotNull Map<@NotNull Path, @NotNull WatchKey> watchedDirectories = new HashMap<>();
+    /**
+     * Watched files (absolute paths) and the paths by which the configuration refers to them
+     */
+    private volatile @NotNull Map<@NotNull Path, @NotNull List<@NotNull String>> watchedFiles = Map.of();
+    /**
+     * Files loaded with the configuration, i.e. asset packs and error pages (absolute paths); changing one reloads the
+     * configuration
+     */
+    private volatile @NotNull Set<@NotNull Path> loadedFiles = Set.of();
+    private final @NotNull AtomicBoolean reloadScheduled = new AtomicBoolean(false);
+    private final @NotNull AtomicBoolean reloading = new AtomicBoolean(false);
+    /**
+     * Set when a reload is requested, and cleared when a reload starts; a reload requested while another is running is
+     * run once that one finishes, so the last change is never missed
+     */
+    private final @NotNull AtomicBoolean reloadRequested = new AtomicBoolean(false);
+
+    public ConfigReloader(final @NotNull String configPath, final @NotNull Config config) {
+        this.configPath = configPath;
+        this.configFile = configPath.startsWith("haste://") ? null : absolute(configPath);
+        this.config = config;
+    }
+
+    /**
+     * The current configuration
+     */
+    public @NotNull Config config() {
+        return this.config;
+    }
+
+    /**
+     * Start precompression and rate limiting, and watch the configuration and the files it refers to
+     */
+    public synchronized void start(final @NotNull Vertx vertx) {
+        this.vertx = vertx;
+        startPrecompressor(this.config);
+        this.config.limiters().forEach(l -> l.start(vertx));
+        if (!onHangup(this::reload))
+            Front.getLogger().warn("SIGHUP is not supported on this platform; configuration can only be reloaded by changing the file");
+        try {
+            this.watchService = FileSystems.getDefault().newWatchService();
+        }
+        catch (final @NotNull IOException e) {
+            Front.getLogger().warn("Could not watch configuration for changes: " + e.getMessage());
+            return;
+        }
+        watch(this.config);
+        final @NotNull Thread thread = new Thread(this::watchLoop, "haste-config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Load the configuration again and, if it is valid, switch to it. An invalid configuration is logged and ignored.
+     * If a reload is already running, the configuration is loaded again once it finishes, and the returned future
+     * fails.
+     */
+    public @NotNull Future<@NotNull Config> reload() {
+        final @NotNull Vertx vertx = Objects.requireNonNull(this.vertx);
+        this.reloadRequested.set(true);
+        if (!this.reloading.compareAndSet(false, true))
+            return Future.failedFuture(new IllegalStateException("Configuration is already being reloaded; it will be reloaded again afterwards"));
+        this.reloadRequested.set(false);
+        final @NotNull Config previous = this.config;
+        return vertx.executeBlocking(() -> Config.fromYaml(this.configPath, previous), false)
+                .onSuccess(config -> {
+                    this.config = config;
+                    applied(previous, config);
+                    Front.getLogger().info("Reloaded configuration (" + config.resources().length + " resources)");
+                })
+                .onFailure(e -> Front.getLogger().error("Configuration Error: " + e.getMessage() + "; keeping the previous configuration"))
+                .onComplete(ar -> {
+                    this.reloading.set(false);
+                    if (this.reloadRequested.get()) reload();
+                });
+    }
+
+    private synchronized void applied(final @NotNull Config previous, final @NotNull Config config) {
+        if (previous.port() != config.port() || previous.eventLoops() != config.eventLoops() || !Objects.equals(previous.tls(), config.tls()) || !previous.http2().equals(config.http2()) || !previous.transport().equals(config.transport()) || previous.metrics().port() != config.metrics().port())
+            Front.getLogger().warn("Changes to port, event-loops, tls, http2, transport and metrics.port take effect after a restart");
+        previous.directories().forEach(DirectoryResource::close);
+        final @Nullable AccessLogger accessLogger = previous.accessLogger();
+        // closing waits for the log to be written, which must not hold up the event loop
+        if (accessLogger != null && accessLogger != config.accessLogger()) Objects.requireNonNull(this.vertx).executeBlocking(() -> {
+            accessLogger.close();
+            return null;
+        }, false);
+        // requests still being forwarded by the previous configuration may take up to their timeout
+        for (final @NotNull ProxyResource proxy : previous.proxies())
+            Objects.requireNonNull(this.vertx).setTimer(proxy.options.connectTimeout() + proxy.options.timeout(), id -> proxy.close());
+        final @NotNull List<@NotNull RateLimiter> limiters = config.limiters();
+        for (final @NotNull RateLimiter limiter : previous.limiters())
+            if (!limiters.contains(limiter)) limiter.stop(Objects.requireNonNull(this.vertx));
+        limiters.forEach(l -> l.start(Objects.requireNonNull(this.vertx)));
+        if (this.precompressor != null) this.precompressor.stop(Objects.requireNonNull(this.vertx));
+        this.precompressor = null;
+        startPrecompressor(config);
+        if (this.watchService != null) watch(config);
+    }
+
+    private void startPrecompressor(final @NotNull Config config) {
+        if (!config.precompress().enabled()) return;
+        // error pages are preloaded, so they are not precompressed
+        this.precompressor = new Precompressor(config.precompress(), config.fileResources());
+        this.precompressor.start(Objects.requireNonNull(this.vertx));
+    }
+
+    /**
+     * Watch the directories of the configuration file and of all files and packs of a configuration
+     */
+    private void watch(final @NotNull Config config) {
+        final @NotNull Map<@NotNull Path, @NotNull List<@NotNull String>> files = new HashMap<>();
+        final @NotNull List<@NotNull FileResource> resources = new ArrayList<>(config.fileResources());
+        resources.addAll(config.errorResources().values());
+        for (final @NotNull FileResource resource : resources)
+            for (final @NotNull String file : resource.files().values())
+                if (!file.startsWith("haste://"))
+                    files.computeIfAbsent(absolute(file), p -> new ArrayList<>()).add(file);
+
+        final @NotNull Set<@NotNull Path> loaded = config.packs().stream().map(p -> absolute(p.pack.file.toString())).collect(Collectors.toSet());
+        for (final @NotNull ErrorResource resource : config.errorResources().values())
+            for (final @NotNull String file : resource.preloadedFiles())
+                if (!file.startsWith("haste://")) loaded.add(absolute(file));
+        final @NotNull List<@NotNull Path> watched = new ArrayList<>(files.keySet());
+        watched.addAll(loaded);
+        if (this.configFile != null) watched.add(this.configFile);
+        final @NotNull HashMap<@NotNull Path, @NotNull WatchKey> directories = new HashMap<>();
+        for (final @NotNull Path file : watched) {
+            final @Nullable Path directory = file.getParent();
+            if (directory == null || directories.containsKey(directory)) continue;
+            @Nullable WatchKey key = this.watchedDirectories.remove(directory);
+            if (key == null) try {
+                key = directory.register(Objects.requireNonNull(this.watchService), StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            }
+            catch (final @NotNull IOException e) {
+                Front.getLogger().warn("Could not watch " + directory + " for changes: " + e.getMessage());
+                continue;
+            }
+            directories.put(directory, key);
+        }
+        for (final @NotNull WatchKey key : this.watchedDirectories.values()) key.cancel();
+        this.watchedDirectories.clear();
+        this.watchedDirectories.putAll(directories);
+        this.watchedFiles = files;
+        this.loadedFiles = loaded;
+    }
+
+    private void watchLoop() {
+        final @NotNull WatchService watchService = Objects.requireNonNull(this.watchService);
+        while (true) {
+            final @NotNull WatchKey key;
+            try {
+                key = watchService.take();
+            }
+            catch (final @NotNull InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            final @NotNull Path directory = (Path) key.watchable();
+            for (final @NotNull WatchEvent<?> event : key.pollEvents()) {
+                if (!(event.context() instanceof final @NotNull Path name)) continue;
+                final @NotNull Path file = directory.resolve(name);
+                if (file.equals(this.configFile) || this.loadedFiles.contains(file)) scheduleReload();
+                final @Nullable List<@NotNull String> paths = this.watchedFiles.get(file);
+                if (paths != null) changed(paths);
+            }
+            key.reset();
+        }
+    }
+
+    /**
+     * Reload once the configuration file has stopped changing, as editors often write a file in several steps
+     */
+    private void scheduleReload() {
+        if (!this.reloadScheduled.compareAndSet(false, true)) return;
+        Objects.requireNonNull(this.vertx).setTimer(DEBOUNCE, id -> {
+            this.reloadScheduled.set(false);
+            reload();
+        });
+    }
+
+    private void changed(final @NotNull List<@NotNull String> paths) {
+        final @NotNull Config config = this.config;
+        for (final @NotNull String path : paths) {
+            config.cache().invalidate(path);
+            config.mappedFiles().invalidate(path);
+            config.blockCache().invalidate(path);
+            if (config.validators() != null) config.validators().invalidate(path);
+        }
+    }
+
+    /**
+     * Run a handler whenever the process receives {@code SIGHUP}. {@code sun.misc.Signal} is not part of the Java API,
+     * but there is no public replacement.
+     *
+     * @return whether the handler could be installed
+     */
+    @SuppressWarnings("sunapi")
+    private static boolean onHangup(final @NotNull Runnable handler) {
+        try {
+            sun.misc.Signal.handle(new sun.misc.Signal("HUP"), signal -> handler.run());
+            return true;
+        }
+        catch (final @NotNull IllegalArgumentException e) {
+            // unknown signal on this platform, or reserved by the JVM
+            return false;
+        }
+    }
+
+    private static @NotNull Path absolute(final @NotNull String path) {
+        return Path.of(path).toAbsolutePath().normalize();
+    }
+}
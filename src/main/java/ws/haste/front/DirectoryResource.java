@@ -0,0 +1,335 @@
+package ws.haste.front;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A directory mounted under a URL prefix
+ * <p>
+ * All files under the directory are indexed when the configuration is loaded, with their size, modification time and
+ * precompressed {@code .gz} and {@code .br} siblings, and the index is kept current by watching the directory. Requests
+ * are answered from the index alone: a path that is not in it is not found, without touching the file system. Hidden
+ * files and directories (whose names start with {@code .}) and symbolic links are never indexed, so nothing outside
+ * the directory can be served.
+ * <p>
+ * The entity tag of a file is derived from its modification time and size rather than its content.
+ */
+public final class DirectoryResource extends MountResource {
+    private static final @NotNull Map<FileResource.@NotNull Encoding, @NotNull String> SIBLINGS = Map.of(Encoding.Gzip, ".gz", Encoding.Brotli, ".br");
+
+    public final @NotNull Path root;
+    private final @NotNull Map<@NotNull String, @NotNull String> contentTypes;
+    private final boolean watch;
+
+    /**
+     * Files on disk by path relative to the root, with {@code /} as separator
+     */
+    private final @NotNull ConcurrentHashMap<@NotNull String, @NotNull Stat> stats = new ConcurrentHashMap<>();
+    /**
+     * Servable files by path relative to the root
+     */
+    private final @NotNull ConcurrentHashMap<@NotNull String, @NotNull Variants> index = new ConcurrentHashMap<>();
+    private volatile @Nullable WatchService watchService;
+    private final @NotNull Map<@NotNull WatchKey, @NotNull Path> watchedDirectories = new ConcurrentHashMap<>();
+
+    /**
+     * @param url          path pattern, ending with {@code *}; the part before it is stripped from request paths
+     * @param root         directory to serve
+     * @param contentTypes content types by lower-case file extension
+     * @param contentType  content type of files whose extension is not in {@code contentTypes}
+     * @param headers      headers of the resource, including the global headers
+     * @param watch        whether to keep the index current by watching the directory
+     */
+    public DirectoryResource(final @NotNull String url, final @NotNull Path root, final @NotNull Map<@NotNull String, @NotNull String> contentTypes, final @NotNull String contentType, final @Nullable ResponseHeaders headers, final @NotNull ServingMode servingMode, final @Nullable ResponseCache cache, final @Nullable MappedFiles mappedFiles, final @Nullable BlockCache blockCache, final Config.@NotNull RangeRequests rangeRequests, final boolean watch) {
+        super(url, contentType, headers, servingMode, cache, mappedFiles, blockCache, rangeRequests);
+        this.root = root.toAbsolutePath().normalize();
+        this.contentTypes = Map.copyOf(contentTypes);
+        this.watch = watch;
+    }
+
+    @Override
+    public int size() {
+        return this.index.size();
+    }
+
+    /**
+     * Index the directory, in parallel, and start watching it. Blocks until the index is complete.
+     */
+    public synchronized void load() throws IOException {
+        final long start = System.nanoTime();
+        if (this.watch) this.watchService = this.root.getFileSystem().newWatchService();
+        try {
+            scan(this.root);
+        }
+        catch (final @NotNull IOException e) {
+            close();
+            throw e;
+        }
+        Front.getLogger().info("Indexed " + size() + " files in " + this.root + " (" + (System.nanoTime() - start) / 1_000_000 + " ms)");
+        if (this.watchService == null) return;
+        final @NotNull Thread thread = new Thread(this::watchLoop, "haste-directory-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop watching the directory. The index remains usable, e.g. by requests that are still being served.
+     */
+    public synchronized void close() {
+        if (this.watchService == null) return;
+        try {
+            this.watchService.close();
+        }
+        catch (final @NotNull IOException e) {
+            Front.getLogger().warn("Could not stop watching " + this.root + ": " + e.getMessage());
+        }
+        this.watchService = null;
+    }
+
+    @Override
+    protected @Nullable Variants find(final @NotNull String path) {
+        return this.index.get(path);
+    }
+
+    /**
+     * Index a directory and everything under it, registering each directory with the watch service before listing it
+     * so that no change is missed
+     */
+    private void scan(final @NotNull Path directory) throws IOException {
+        final @NotNull List<@NotNull String> found = new ArrayList<>();
+        final @NotNull ForkJoinPool pool = new ForkJoinPool(Math.max(4, Runtime.getRuntime().availableProcessors()));
+        try {
+            final @NotNull ScanTask task = new ScanTask(directory);
+            pool.invoke(task);
+            task.collect(found);
+        }
+        catch (final @NotNull UncheckedIOException e) {
+            throw e.getCause();
+        }
+        finally {
+            pool.shutdown();
+        }
+        // the index is built once all siblings are known
+        for (final @NotNull String path : found) update(path);
+    }
+
+    /**
+     * Lists one directory, stats its files and forks a task for each subdirectory. Tasks are never serialised.
+     */
+    @SuppressWarnings("serial")
+    private final class ScanTask extends RecursiveAction {
+        private final @NotNull Path directory;
+        private final @NotNull List<@NotNull String> files = new ArrayList<>();
+        private final @NotNull List<@NotNull ScanTask> subdirectories = new ArrayList<>();
+
+        private ScanTask(final @NotNull Path directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                register(this.directory);
+                try (final @NotNull DirectoryStream<@NotNull Path> entries = Files.newDirectoryStream(this.directory)) {
+                    for (final @NotNull Path entry : entries) {
+                        if (hidden(entry)) continue;
+                        final @NotNull BasicFileAttributes attributes;
+                        try {
+                            attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                        }
+                        catch (final @NotNull NoSuchFileException e) {
+                            continue;
+                        }
+                        if (attributes.isDirectory()) this.subdirectories.add(new ScanTask(entry));
+                        else if (attributes.isRegularFile()) {
+                            final @NotNull String path = relativize(entry);
+                            stats.put(path, new Stat(attributes.size(), attributes.lastModifiedTime().toMillis()));
+                            this.files.add(path);
+                        }
+                    }
+                }
+            }
+            catch (final @NotNull NoSuchFileException e) {
+                // deleted while being indexed
+                if (this.directory.equals(root)) throw new UncheckedIOException(e);
+                return;
+            }
+            catch (final @NotNull IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            invokeAll(this.subdirectories);
+        }
+
+        private void collect(final @NotNull List<@NotNull String> found) {
+            found.addAll(this.files);
+            for (final @NotNull ScanTask subdirectory : this.subdirectories) subdirectory.collect(found);
+        }
+    }
+
+    private void register(final @NotNull Path directory) throws IOException {
+        final @Nullable WatchService watchService = this.watchService;
+        if (watchService == null) return;
+        try {
+            this.watchedDirectories.put(directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), directory);
+        }
+        catch (final @NotNull ClosedWatchServiceException ignored) {
+        }
+    }
+
+    private static boolean hidden(final @NotNull Path path) {
+        final @Nullable Path name = path.getFileName();
+        return name != null && name.toString().startsWith(".");
+    }
+
+    private @NotNull String relativize(final @NotNull Path path) {
+        final @NotNull String relative = this.root.relativize(path).toString();
+        return path.getFileSystem().getSeparator().equals("/") ? relative : relative.replace(path.getFileSystem().getSeparator(), "/");
+    }
+
+    /**
+     * Rebuild the index entry of a file from the known stats: the file itself, with its precompressed siblings
+     */
+    private void update(final @NotNull String path) {
+        final @Nullable Stat stat = this.stats.get(path);
+        if (stat == null) {
+            this.index.remove(path);
+            return;
+        }
+        final @NotNull EnumMap<@NotNull Encoding, @NotNull String> files = new EnumMap<>(Encoding.class);
+        final Validators.@Nullable Validator @NotNull [] validators = new Validators.Validator[Encoding.values().length];
+        files.put(Encoding.Identity, this.root.resolve(path).toString());
+        validators[Encoding.Identity.ordinal()] = stat.validator(Encoding.Identity);
+        for (final @NotNull Map.Entry<@NotNull Encoding, @NotNull String> sibling : SIBLINGS.entrySet()) {
+            final @Nullable Stat siblingStat = this.stats.get(path + sibling.getValue());
+            if (siblingStat == null) continue;
+            files.put(sibling.getKey(), this.root.resolve(path + sibling.getValue()).toString());
+            validators[sibling.getKey().ordinal()] = siblingStat.validator(sibling.getKey());
+        }
+        this.index.put(path, variants(files, contentType(path, this.contentTypes, this.contentType), validators, null));
+    }
+
+    /**
+     * Update the index after a file or directory has been created, modified or deleted
+     */
+    private void changed(final @NotNull Path file, final @NotNull WatchEvent.Kind<?> kind) {
+        final @NotNull String path = relativize(file);
+        final @NotNull List<@NotNull String> affected = new ArrayList<>();
+        @Nullable BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        }
+        catch (final @NotNull IOException e) {
+            attributes = null;
+        }
+        if (attributes != null && attributes.isDirectory()) {
+            // a directory is modified whenever its entries change, which are reported on their own
+            if (kind != StandardWatchEventKinds.ENTRY_CREATE) return;
+            try {
+                scan(file);
+            }
+            catch (final @NotNull IOException e) {
+                Front.getLogger().warn("Could not index " + file + ": " + e.getMessage());
+            }
+            return;
+        }
+        if (attributes != null && attributes.isRegularFile())
+            this.stats.put(path, new Stat(attributes.size(), attributes.lastModifiedTime().toMillis()));
+        else {
+            // a deleted directory takes everything under it along
+            this.stats.remove(path);
+            final @NotNull String directory = path + "/";
+            for (final @NotNull String p : this.stats.keySet())
+                if (p.startsWith(directory) && this.stats.remove(p) != null) affected.add(p);
+        }
+        affected.add(path);
+        for (final @NotNull String p : affected) {
+            invalidate(p);
+            update(p);
+            for (final @NotNull String extension : SIBLINGS.values())
+                if (p.endsWith(extension)) update(p.substring(0, p.length() - extension.length()));
+        }
+    }
+
+    private void invalidate(final @NotNull String path) {
+        final @NotNull String file = this.root.resolve(path).toString();
+        if (this.cache != null) this.cache.invalidate(file);
+        if (this.mappedFiles != null) this.mappedFiles.invalidate(file);
+        if (this.blockCache != null) this.blockCache.invalidate(file);
+    }
+
+    private void watchLoop() {
+        while (true) {
+            final @Nullable WatchService watchService = this.watchService;
+            if (watchService == null) return;
+            final @NotNull WatchKey key;
+            try {
+                key = watchService.take();
+            }
+            catch (final @NotNull InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            final @Nullable Path directory = this.watchedDirectories.get(key);
+            for (final @NotNull WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    rescan();
+                    break;
+                }
+                if (directory == null || !(event.context() instanceof final @NotNull Path name) || hidden(name)) continue;
+                changed(directory.resolve(name), event.kind());
+            }
+            if (!key.reset()) this.watchedDirectories.remove(key);
+        }
+    }
+
+    /**
+     * Index the whole directory again, e.g. after events were lost
+     */
+    private void rescan() {
+        Front.getLogger().warn("Lost track of changes in " + this.root + "; indexing it again");
+        final @NotNull Map<@NotNull String, @NotNull Stat> previous = new HashMap<>(this.stats);
+        this.stats.clear();
+        try {
+            scan(this.root);
+        }
+        catch (final @NotNull IOException e) {
+            Front.getLogger().warn("Could not index " + this.root + ": " + e.getMessage());
+        }
+        for (final @NotNull Map.Entry<@NotNull String, @NotNull Stat> entry : previous.entrySet()) {
+            if (entry.getValue().equals(this.stats.get(entry.getKey()))) continue;
+            invalidate(entry.getKey());
+            update(entry.getKey());
+        }
+    }
+
+    /**
+     * Size and modification time of a file
+     */
+    private record Stat(long size, long lastModified) {
+        private Validators.@NotNull Validator validator(final @NotNull Encoding encoding) {
+            final @NotNull String etag = Long.toHexString(this.lastModified) + "-" + Long.toHexString(this.size);
+            return new Validators.Validator('"' + (encoding == Encoding.Identity ? etag : etag + "-" + encoding) + '"', this.lastModified, this.size);
+        }
+    }
+}
@@ -5,8 +5,12 @@ import org.jetbrains.annotations.Nullable;
 
 import java.util.HashMap;
 
+/**
+ * An error page. Its files are loaded into memory when the configuration is loaded, so errors are answered without
+ * touching the disk. Error pages are not precompressed, as generated variants would be read from the disk.
+ */
 public final class ErrorResource extends FileResource {
-    public ErrorResource(final @NotNull String contentType, final @NotNull HashMap<@NotNull Encoding, @NotNull String> files, final @Nullable String etag, final @Nullable HashMap<@NotNull String, @NotNull String> headers) {
-        super("", contentType, files, etag, headers);
+    public ErrorResource(final @NotNull String contentType, final @NotNull HashMap<@NotNull Encoding, @NotNull String> files, final @Nullable String etag, final @Nullable ResponseHeaders headers, final @NotNull ServingMode servingMode, final @Nullable ResponseCache cache, final @Nullable MappedFiles mappedFiles) {
+        super("", contentType, files, etag, headers, servingMode, false, cache, null, mappedFiles, null, Config.RangeRequests.DEFAULT, true);
     }
 }
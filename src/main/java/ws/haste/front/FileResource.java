@@ -1,225 +1,395 @@
 package ws.haste.front;
 
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
 import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.AsyncFile;
+import io.vertx.core.file.OpenOptions;
+import io.vertx.core.http.HttpHeaders;
 import io.vertx.core.http.HttpMethod;
 import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.http.HttpServerResponse;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
-import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
-import java.util.Random;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 public class FileResource extends Resource {
     public final @NotNull String contentType;
-    public final @NotNull HashMap<@NotNull Encoding, @NotNull String> files;
+    private volatile @NotNull Variants variants;
     public final @Nullable String etag;
+    public final @NotNull ServingMode servingMode;
+    public final boolean precompress;
+    protected final @Nullable ResponseCache cache;
+    private final @Nullable Validators validators;
+    protected final @Nullable MappedFiles mappedFiles;
+    protected final @Nullable BlockCache blockCache;
+    private final Config.@NotNull RangeRequests rangeRequests;
+    /**
+     * Contents of files loaded when the resource is created, by file path
+     */
+    private final @NotNull Map<@NotNull String, ResponseCache.@NotNull Entry> preloaded;
 
-    public FileResource(final @NotNull String url, final @NotNull String contentType, final @NotNull HashMap<@NotNull Encoding, @NotNull String> files, final @Nullable String etag, final @Nullable HashMap<@NotNull String, @Nullable String> headers) {
-        super(url, headers == null ? new HashMap<>() : headers);
+    /**
+     * @param etag          fixed entity tag, used instead of the computed one for all encodings
+     * @param headers       headers of the resource, including the global headers
+     * @param validators    computed validators, or {@code null} to not compute any
+     * @param mappedFiles   mappings used by the {@code mmap} serving mode; without them, files are streamed instead
+     * @param blockCache    cache of blocks from which range requests are served in the {@code stream} serving mode
+     * @param rangeRequests limits and coalescing of range requests
+     */
+    public FileResource(final @NotNull String url, final @NotNull String contentType, final @NotNull HashMap<@NotNull Encoding, @NotNull String> files, final @Nullable String etag, final @Nullable ResponseHeaders headers, final @NotNull ServingMode servingMode, final boolean precompress, final @Nullable ResponseCache cache, final @Nullable Validators validators, final @Nullable MappedFiles mappedFiles, final @Nullable BlockCache blockCache, final Config.@NotNull RangeRequests rangeRequests) {
+        this(url, contentType, files, etag, headers, servingMode, precompress, cache, validators, mappedFiles, blockCache, rangeRequests, false);
+    }
+
+    /**
+     * @param preloadAll whether to load all files up front; built-in {@code haste://} files always are
+     */
+    protected FileResource(final @NotNull String url, final @NotNull String contentType, final @NotNull HashMap<@NotNull Encoding, @NotNull String> files, final @Nullable String etag, final @Nullable ResponseHeaders headers, final @NotNull ServingMode servingMode, final boolean precompress, final @Nullable ResponseCache cache, final @Nullable Validators validators, final @Nullable MappedFiles mappedFiles, final @Nullable BlockCache blockCache, final Config.@NotNull RangeRequests rangeRequests, final boolean preloadAll) {
+        super(url, (headers == null ? ResponseHeaders.EMPTY : headers).with("Content-Type", contentType));
         this.contentType = contentType;
-        this.files = files;
+        this.variants = new Variants(files, this.headers, contentType);
         this.etag = etag;
+        this.servingMode = servingMode;
+        this.precompress = precompress;
+        this.cache = cache;
+        this.validators = validators;
+        this.mappedFiles = mappedFiles;
+        this.blockCache = servingMode == ServingMode.Stream ? blockCache : null;
+        this.rangeRequests = rangeRequests;
+        this.preloaded = preload(files.values(), preloadAll);
+    }
+
+    /**
+     * Load files into read-only buffers. Files that cannot be read are left to be served from disk, or, if built in,
+     * with a 404 error.
+     *
+     * @param all whether to load files on disk too, or only built-in {@code haste://} files
+     */
+    private static @NotNull Map<@NotNull String, ResponseCache.@NotNull Entry> preload(final @NotNull Collection<@NotNull String> files, final boolean all) {
+        final @NotNull HashMap<@NotNull String, ResponseCache.@NotNull Entry> preloaded = new HashMap<>();
+        for (final @NotNull String file : files) {
+            if (!all && !file.startsWith("haste://")) continue;
+            try (final @Nullable InputStream is = file.startsWith("haste://") ? Front.getInternalFile(file).orElse(null) : new FileInputStream(file)) {
+                if (is != null) preloaded.put(file, ResponseCache.Entry.of(is.readAllBytes()));
+            }
+            catch (final @NotNull IOException e) {
+                Front.getLogger().warn("Could not load " + file + ": " + e.getMessage());
+            }
+        }
+        return Map.copyOf(preloaded);
     }
 
-    private @NotNull Encoding @NotNull [] fileEncodings() {
-        return this.files.keySet().toArray(new Encoding[0]);
+    /**
+     * Files of this resource by encoding. The returned map is an immutable snapshot.
+     */
+    public @NotNull Map<@NotNull Encoding, @NotNull String> files() {
+        return this.variants.files;
     }
 
-    private @NotNull Encoding pickEncoding(@NotNull HttpServerRequest req) throws WebServerException {
-        final @NotNull WeightedEncoding @NotNull [] reqEncodings = WeightedEncoding.fromRequest(req);
-        final @NotNull Encoding @NotNull [] fileEncodings = this.fileEncodings();
-        final @NotNull Optional<@NotNull WeightedEncoding> pick = Arrays.stream(reqEncodings).filter(e -> Arrays.stream(fileEncodings).anyMatch(f -> f == e.encoding)).findFirst();
-        if (pick.isPresent() && pick.get().encoding == Encoding.Identity && !WeightedEncoding.identityAllowed(reqEncodings)) {
-            throw new WebServerException(415, new HashMap<>() {{
-                put("Accept-Encoding", Arrays.stream(fileEncodings).map(Encoding::toString).collect(Collectors.joining(", ")));
-            }});
-        }
-        return pick.map(weightedEncoding -> weightedEncoding.encoding).orElse(Encoding.Identity);
+    /**
+     * Paths of the files that were loaded up front
+     */
+    public @NotNull Set<@NotNull String> preloadedFiles() {
+        return this.preloaded.keySet();
+    }
+
+    /**
+     * Add or replace the file for an encoding, e.g. a generated precompressed variant
+     */
+    public synchronized void putFile(final @NotNull Encoding encoding, final @NotNull String filePath) {
+        final @NotNull HashMap<@NotNull Encoding, @NotNull String> files = new HashMap<>(this.variants.files);
+        files.put(encoding, filePath);
+        this.variants = new Variants(files, this.headers, this.contentType);
+    }
+
+    /**
+     * Remove the file for an encoding
+     */
+    public synchronized void removeFile(final @NotNull Encoding encoding) {
+        final @NotNull HashMap<@NotNull Encoding, @NotNull String> files = new HashMap<>(this.variants.files);
+        files.remove(encoding);
+        this.variants = new Variants(files, this.headers, this.contentType);
+    }
+
+    private @NotNull Future<@NotNull Optional<ResponseCache.@NotNull Entry>> cached(final @NotNull String filePath) {
+        if (this.cache == null) return Future.succeededFuture(Optional.empty());
+        return this.cache.get(filePath);
+    }
+
+    /**
+     * Evaluate {@code If-None-Match} and, in its absence, {@code If-Modified-Since}
+     */
+    private static boolean notModified(final @NotNull HttpServerRequest req, final @Nullable String etag, final long lastModified) {
+        final @Nullable String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null) return etag != null && Validators.matchesAny(ifNoneMatch, etag);
+        final @Nullable String ifModifiedSince = req.getHeader("If-Modified-Since");
+        if (ifModifiedSince == null || lastModified <= 0) return false;
+        final long since = Validators.parseDate(ifModifiedSince);
+        return since != -1 && lastModified / 1000 * 1000 <= since;
+    }
+
+    private static @NotNull Encoding pickEncoding(final @NotNull HttpServerRequest req, final @NotNull Variants variants) throws WebServerException {
+        final @Nullable Encoding encoding = AcceptEncoding.negotiate(req.getHeader(HttpHeaders.ACCEPT_ENCODING), variants.mask);
+        if (encoding == null) throw new WebServerException(415, new HashMap<>() {{
+            put("Accept-Encoding", variants.files.keySet().stream().map(Encoding::toString).collect(Collectors.joining(", ")));
+        }});
+        return encoding;
     }
 
-    public void serve(final @NotNull HttpServerRequest req) throws WebServerException {
+    @Override
+    public @NotNull Future<@NotNull Void> serve(final @NotNull HttpServerRequest req) throws WebServerException {
+        return serve(req, this.variants);
+    }
+
+    /**
+     * Serve one of the given files, negotiated with the request
+     */
+    protected final @NotNull Future<@NotNull Void> serve(final @NotNull HttpServerRequest req, final @NotNull Variants variants) throws WebServerException {
         final @NotNull HttpMethod method = req.method();
         if (method != HttpMethod.HEAD && method != HttpMethod.GET) throw new WebServerException(405);
-        final @NotNull Encoding encoding = pickEncoding(req);
-        final @NotNull String file = this.files.get(encoding);
+        final boolean head = method == HttpMethod.HEAD;
+        final @NotNull Encoding encoding = pickEncoding(req, variants);
+        WebServer.negotiated(encoding);
+        final @NotNull String file = variants.files.get(encoding);
         final @NotNull HttpServerResponse res = req.response();
-        super.writeHead(res);
-        if (etag != null) {
-            res.headers().set("ETag", etag);
-            final @NotNull Optional<@NotNull String> ifNoneMatch = Optional.ofNullable(req.getHeader("If-None-Match"));
-            if (ifNoneMatch.map(etag::equals).orElse(false)) {
-                res.setStatusCode(304);
-                res.headers().set("Content-Length", contentType);
-                res.end();
-                return;
-            }
-        }
-        final @NotNull Optional<@NotNull String> rangesHeader = Optional.ofNullable(req.getHeader("Range"));
-        final @NotNull Optional<@NotNull Ranges> r = rangesHeader.map(Ranges::fromString);
+        variants.headers[encoding.ordinal()].apply(res);
+        final Validators.@Nullable Validator validator = variants.validators != null ? variants.validators[encoding.ordinal()]
+                : this.validators == null ? null : this.validators.get(file);
+        final @Nullable String etag = this.etag != null ? this.etag : validator == null ? null : validator.etag;
+        final long lastModified = validator == null ? 0 : validator.lastModified;
+        if (etag != null) res.headers().set(HttpHeaders.ETAG, etag);
+        if (validator != null && validator.lastModifiedHeader != null) res.headers().set(HttpHeaders.LAST_MODIFIED, validator.lastModifiedHeader);
         final int currentStatus = res.getStatusCode();
-        if (file.startsWith("haste://") || currentStatus < 200 || currentStatus >= 300 || r.isEmpty() || r.get().ranges.length == 0 || !r.get().unit.equalsIgnoreCase("bytes")) {
-            serveFile(file, encoding, res);
+        final boolean successful = currentStatus >= 200 && currentStatus < 300;
+        if (successful && notModified(req, etag, lastModified)) {
+            res.setStatusCode(304);
+            return res.end();
+        }
+        final @Nullable String rangeHeader = req.getHeader("Range");
+        final @Nullable String ifRange = req.getHeader("If-Range");
+        final @Nullable Ranges r = !successful || rangeHeader == null || ifRange != null && !Validators.rangeApplies(ifRange, etag, lastModified) ? null : Ranges.fromString(rangeHeader);
+        final @Nullable Ranges requested = r == null || r.ranges.length == 0 || !r.unit.equalsIgnoreCase("bytes") || !r.valid() ? null : r;
+        final ResponseCache.@Nullable Entry preloaded = this.preloaded.isEmpty() ? null : this.preloaded.get(file);
+        if (preloaded != null) return serve(file, preloaded.size(), preloaded, null, null, requested, variants, head, res);
+        if (file.startsWith("haste://")) return Future.failedFuture(new WebServerException(404));
+        final MappedFiles.@Nullable Mapping mapped = variants.mappings == null ? null : variants.mappings[encoding.ordinal()];
+        if (mapped != null) return serve(file, mapped.size, null, mapped, null, requested, variants, head, res);
+        // HEAD only needs the size: do not load the file into the cache or map it
+        if (head) {
+            if (variants.validators != null && validator != null) return serve(file, validator.size, null, null, null, requested, variants, true, res);
+            return Front.vertx().fileSystem().props(file)
+                    .recover(e -> Future.failedFuture(new WebServerException(404, e)))
+                    .compose(props -> serve(file, props.size(), null, null, null, requested, variants, true, res));
+        }
+        return cached(file).compose(cached -> {
+            if (cached.isPresent()) return serve(file, cached.get().size(), cached.get(), null, null, requested, variants, false, res);
+            if (servingMode == ServingMode.Mmap && this.mappedFiles != null)
+                return this.mappedFiles.get(file).compose(mapping -> serve(file, mapping.size, null, mapping, null, requested, variants, false, res));
+            // the size is known up front for indexed files
+            if (variants.validators != null && validator != null) return serve(file, validator.size, null, null, blocks(file, validator.size, validator.lastModified, requested, req), requested, variants, false, res);
+            // sendfile sets the Content-Length itself
+            if (requested == null && servingMode == ServingMode.SendFile) return serveFull(file, -1, null, null, false, res);
+            return Front.vertx().fileSystem().props(file)
+                    .recover(e -> Future.failedFuture(new WebServerException(404, e)))
+                    .compose(props -> serve(file, props.size(), null, null, blocks(file, props.size(), props.lastModifiedTime(), requested, req), requested, variants, false, res));
+        });
+    }
+
+    /**
+     * Reader of the block cache for a range request, or {@code null} to read the file directly
+     */
+    private BlockCache.@Nullable Reader blocks(final @NotNull String file, final long size, final long lastModified, final @Nullable Ranges requested, final @NotNull HttpServerRequest req) {
+        if (this.blockCache == null || this.servingMode != ServingMode.Stream || requested == null) return null;
+        return this.blockCache.reader(file, size, lastModified, req.remoteAddress() == null ? null : req.remoteAddress().hostAddress());
+    }
+
+    /**
+     * @param blocks reader of the block cache, from which ranges are sent instead of from the file
+     */
+    private @NotNull Future<@NotNull Void> serve(final @NotNull String file, final long size, final ResponseCache.@Nullable Entry cached, final MappedFiles.@Nullable Mapping mapping, final BlockCache.@Nullable Reader blocks, final @Nullable Ranges requested, final @NotNull Variants variants, final boolean head, final @NotNull HttpServerResponse res) {
+        if (requested == null) return serveFull(file, size, cached, mapping, head, res);
+        // too many ranges, or overlapping ranges that add up to more than the whole file: ignore the Range header
+        if (requested.ranges.length > this.rangeRequests.maxCount()) return serveFull(file, size, cached, mapping, head, res);
+        final @NotNull Ranges.OptimisedRanges optimisedRanges = requested.optimiseRanges(size, this.rangeRequests.coalesceGap());
+        if (optimisedRanges.requestedLength > size) return serveFull(file, size, cached, mapping, head, res);
+        final @NotNull Ranges.AbsoluteRange @NotNull [] ranges = optimisedRanges.ranges;
+        if (ranges.length == 0) return Future.failedFuture(new WebServerException(416, new HashMap<>() {{
+            put("Content-Range", "bytes */" + size);
+        }}));
+        res.setStatusCode(206);
+        if (ranges.length == 1) {
+            final @NotNull Ranges.AbsoluteRange range = ranges[0];
+            final long length = range.end - range.start + 1;
+            res.headers().set(HttpHeaders.CONTENT_RANGE, "bytes " + range.start + "-" + range.end + "/" + size);
+            res.headers().set(HttpHeaders.CONTENT_LENGTH, String.valueOf(length));
+            if (head) return res.end();
+            if (cached != null) return res.end(cached.slice(range.start, range.end));
+            if (mapping != null) return write(mapping, range.start, length, res).compose(v -> res.end());
+            if (blocks != null) return blocks.write(range.start, length, res).compose(v -> res.end());
+            if (servingMode == ServingMode.SendFile) return sendFile(file, range.start, length, res);
+            return open(file).compose(f -> copy(f, range.start, length, res).eventually(() -> f.close())).compose(v -> res.end());
+        }
+
+        final @NotNull MultipartRanges multipart = new MultipartRanges(variants.partHeaderPrefix, ranges, size);
+        res.headers().set(HttpHeaders.CONTENT_TYPE, multipart.contentType());
+        res.headers().set(HttpHeaders.CONTENT_LENGTH, String.valueOf(multipart.length()));
+        if (head) return res.end();
+        if (cached != null) return multipart.write((offset, count) -> {
+            res.write(cached.slice(offset, offset + count - 1));
+            return drained(res);
+        }, res);
+        if (mapping != null) return multipart.write((offset, count) -> write(mapping, offset, count, res), res);
+        if (blocks != null) return multipart.write((offset, count) -> blocks.write(offset, count, res), res);
+        return open(file).compose(f -> multipart.write((offset, count) -> copy(f, offset, count, res), res).eventually(() -> f.close()));
+    }
+
+    /**
+     * @param size size of the file, or -1 when it is sent with sendfile, which determines the size itself
+     */
+    private @NotNull Future<@NotNull Void> serveFull(final @NotNull String filePath, final long size, final ResponseCache.@Nullable Entry cached, final MappedFiles.@Nullable Mapping mapping, final boolean head, final @NotNull HttpServerResponse res) {
+        if (cached != null) res.headers().set(HttpHeaders.CONTENT_LENGTH, cached.contentLength);
+        else if (size >= 0) res.headers().set(HttpHeaders.CONTENT_LENGTH, String.valueOf(size));
+        if (head) return res.end();
+        if (cached != null) return res.end(cached.buffer);
+        if (mapping != null) return write(mapping, 0, size, res).compose(v -> res.end());
+        if (servingMode == ServingMode.SendFile) return sendFile(filePath, 0, Long.MAX_VALUE, res);
+        return open(filePath).compose(f -> copy(f, 0, size, res).eventually(() -> f.close())).compose(v -> res.end());
+    }
+
+    private static final int chunkSize = 65536;
+    /**
+     * Size of the slices a mapped file is written in. Slices are not copied, so they can be larger than the chunks
+     * read from files; they only bound how far a response may get ahead of its write queue.
+     */
+    private static final int mappedChunkSize = 1 << 20;
+
+    private static @NotNull Future<@NotNull AsyncFile> open(final @NotNull String filePath) {
+        return Front.vertx().fileSystem().open(filePath, new OpenOptions().setRead(true).setWrite(false).setCreate(false))
+                .recover(e -> Future.failedFuture(new WebServerException(404, e)));
+    }
+
+    /**
+     * Copy a region of a file to the response in chunks. The next chunk is only read once the response's write queue
+     * has room, so a slow client never causes more than one chunk to be buffered. Fails if the file ends before the
+     * region does, as the response length has already been announced.
+     */
+    private static @NotNull Future<@NotNull Void> copy(final @NotNull AsyncFile file, final long position, final long length, final @NotNull HttpServerResponse res) {
+        final @NotNull Promise<@NotNull Void> promise = Promise.promise();
+        copy(file, position, position + length, res, promise);
+        return promise.future();
+    }
+
+    private static void copy(final @NotNull AsyncFile file, final long position, final long end, final @NotNull HttpServerResponse res, final @NotNull Promise<@NotNull Void> promise) {
+        if (position >= end) {
+            promise.complete();
             return;
         }
-        if (false) {
-            // TODO: memcached pages
+        if (res.closed()) {
+            promise.fail(new IOException("Connection closed"));
+            return;
         }
-        else {
-            final long size = new File(file).length();
-            final @NotNull Ranges.OptimisedRanges optimisedRanges = r.get().optimiseRanges(size);
-            final @NotNull Ranges.AbsoluteRange @NotNull [] ranges = optimisedRanges.ranges;
-            if (ranges.length == 0) {
-                serveFile(file, encoding, res);
+        final int bytesToRead = (int) Math.min(chunkSize, end - position);
+        file.read(Buffer.buffer(bytesToRead), 0, position, bytesToRead).onComplete(ar -> {
+            if (ar.failed()) {
+                promise.fail(ar.cause());
                 return;
             }
-            if (!optimisedRanges.allSatisfiable()) throw new WebServerException(416, new HashMap<>() {{
-                put("Content-Range", "bytes */" + size);
-            }});
-            res.setChunked(true);
-            if (ranges.length == 1) {
-                final @NotNull Ranges.AbsoluteRange range = ranges[0];
-                final @NotNull RandomAccessFile raf;
-                try {
-                    raf = new RandomAccessFile(file, "r");
-                }
-                catch (final @NotNull IOException e) {
-                    throw new WebServerException(404, e);
-                }
-                try {
-                    res.setStatusCode(206);
-                    res.headers().set("Content-Type", contentType);
-                    res.headers().set("Content-Range", "bytes " + range.start + "-" + range.end + "/" + size);
-
-                    raf.seek(range.start);
-                    long remainingBytes = range.end - range.start + 1;
-                    while (remainingBytes > 0) {
-                        int bytesToRead = (int) Math.min(chunkSize, remainingBytes);
-                        final byte @NotNull [] buffer = new byte[bytesToRead];
-                        final int read = raf.read(buffer);
-                        if (read == -1) break;
-                        res.write(Buffer.buffer(buffer));
-                        remainingBytes -= read;
-                    }
-                }
-                catch (final @NotNull IOException e) {
-                    throw new WebServerException(500, e);
-                }
-                finally {
-                    try {
-                        raf.close();
-                    }
-                    catch (final @NotNull IOException ignored) {}
-                }
-                res.end();
+            final @NotNull Buffer chunk = ar.result();
+            if (chunk.length() == 0) {
+                promise.fail(new IOException("Unexpected end of file"));
+                return;
             }
-            else {
-                final @NotNull RandomAccessFile raf;
-                try {
-                    raf = new RandomAccessFile(file, "r");
-                }
-                catch (final @NotNull IOException e) {
-                    throw new WebServerException(404, e);
-                }
-                final @NotNull String boundary = generateBoundary();
-                res.setStatusCode(206);
-                res.headers().set("Content-Type", "multipart/byteranges; boundary=" + boundary);
-                if (encoding != Encoding.Identity) res.headers().set("Content-Encoding", encoding.toString());
-
-                for (final @NotNull Ranges.AbsoluteRange range : ranges) try {
-                    res.write("--" + boundary + CRLF + "Content-Type: " + this.contentType + CRLF + "Content-Range: bytes " + range.start + "-" + range.end + "/" + size + CRLF + CRLF);
-                    raf.seek(range.start);
-                    long remainingBytes = range.end - range.start + 1;
-                    while (remainingBytes > 0) {
-                        int bytesToRead = (int) Math.min(chunkSize, remainingBytes);
-                        final byte @NotNull [] buffer = new byte[bytesToRead];
-                        final int read = raf.read(buffer);
-                        if (read == -1) break;
-                        res.write(Buffer.buffer(buffer));
-                        remainingBytes -= read;
-                    }
-                    res.write(CRLF + CRLF);
-                }
-                catch (final @NotNull IOException e) {
-                    throw new WebServerException(500, e);
-                }
-                res.write("--" + boundary + "--");
-                res.write(CRLF);
-                res.end();
+            res.write(chunk);
+            final long next = position + chunk.length();
+            if (!res.writeQueueFull()) {
+                copy(file, next, end, res, promise);
+                return;
             }
-        }
+            Metrics.stallStarted();
+            res.drainHandler(v -> {
+                resumed(res);
+                copy(file, next, end, res, promise);
+            });
+            res.closeHandler(v -> {
+                resumed(res);
+                promise.fail(new IOException("Connection closed"));
+            });
+        });
     }
-    private static final int chunkSize = 4096;
-    private static final @NotNull String CRLF = "\r\n";
-
-    private void serveFile(final @NotNull String filePath, final @NotNull Encoding encoding, final @NotNull HttpServerResponse res) throws WebServerException {
-        res.headers().set("Content-Type", this.contentType);
-        if (encoding != Encoding.Identity) res.headers().set("Content-Encoding", encoding.toString());
-        if (false) {
-            // TODO: memcached
-        }
-        else {
-            final @NotNull File file = new File(filePath);
-            if (filePath.startsWith("haste://")) {
-                final @NotNull Optional<@NotNull InputStream> inputStream = Front.getInternalFile(filePath);
-                if (inputStream.isEmpty()) throw new WebServerException(404);
-                res.setChunked(true);
-                // send in 4KB chunks
-                try {
-                    long remainingBytes = inputStream.get().available();
-                    while (remainingBytes > 0) {
-                        int bytesToRead = (int) Math.min(chunkSize, remainingBytes);
-                        final byte @NotNull [] buffer = new byte[bytesToRead];
-                        final int read = inputStream.get().read(buffer);
-                        if (read == -1) break;
-                        res.write(Buffer.buffer(buffer));
-                        remainingBytes -= read;
-                    }
-                }
-                catch (final @NotNull IOException e) {
-                    throw new WebServerException(500, e);
-                }
-                finally {
-                    res.end();
-                }
-            }
-            // send file in 4KB chunks
-            else try (final @NotNull RandomAccessFile raf = new RandomAccessFile(file, "r")) {
-                res.setChunked(true);
-                long remainingBytes = file.length();
-                while (remainingBytes > 0) {
-                    int bytesToRead = (int) Math.min(chunkSize, remainingBytes);
-                    final byte @NotNull [] buffer = new byte[bytesToRead];
-                    final int read = raf.read(buffer);
-                    if (read == -1) break;
-                    res.write(Buffer.buffer(buffer));
-                    remainingBytes -= read;
-                }
-            }
-            catch (final @NotNull IOException e) {
-                throw new WebServerException(500, e);
+
+    /**
+     * Write a region of a mapped file to the response as zero-copy slices, pausing while the write queue is full
+     */
+    private static @NotNull Future<@NotNull Void> write(final MappedFiles.@NotNull Mapping mapping, final long position, final long length, final @NotNull HttpServerResponse res) {
+        final @NotNull Promise<@NotNull Void> promise = Promise.promise();
+        write(mapping, position, position + length, res, promise);
+        return promise.future();
+    }
+
+    private static void write(final MappedFiles.@NotNull Mapping mapping, long position, final long end, final @NotNull HttpServerResponse res, final @NotNull Promise<@NotNull Void> promise) {
+        while (position < end) {
+            if (res.closed()) {
+                promise.fail(new IOException("Connection closed"));
+                return;
             }
-            finally {
-                res.end();
+            final @NotNull Buffer slice = mapping.slice(position, (int) Math.min(mappedChunkSize, end - position));
+            res.write(slice);
+            position += slice.length();
+            if (position < end && res.writeQueueFull()) {
+                final long next = position;
+                Metrics.stallStarted();
+                res.drainHandler(v -> {
+                    resumed(res);
+                    write(mapping, next, end, res, promise);
+                });
+                res.closeHandler(v -> {
+                    resumed(res);
+                    promise.fail(new IOException("Connection closed"));
+                });
+                return;
             }
         }
+        promise.complete();
     }
 
+    /**
+     * @return a future completed once the response's write queue has room
+     */
+    static @NotNull Future<@NotNull Void> drained(final @NotNull HttpServerResponse res) {
+        if (!res.writeQueueFull()) return Future.succeededFuture();
+        final @NotNull Promise<@NotNull Void> promise = Promise.promise();
+        Metrics.stallStarted();
+        res.drainHandler(v -> {
+            resumed(res);
+            promise.complete();
+        });
+        res.closeHandler(v -> {
+            resumed(res);
+            promise.fail(new IOException("Connection closed"));
+        });
+        return promise.future();
+    }
 
-    private static final char @NotNull [] boundaryCharacters = "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
-    private static final int boundaryLength = 8;
-    private static final char @NotNull [] boundary = new char[boundaryLength];
-    private static @NotNull String generateBoundary() {
-        final @NotNull Random r = new Random();
-        for (int i = 0; i < boundaryLength; ++i) boundary[i] = boundaryCharacters[r.nextInt(boundaryCharacters.length)];
-        return new String(boundary);
+    private static void resumed(final @NotNull HttpServerResponse res) {
+        res.drainHandler(null);
+        res.closeHandler(null);
+        Metrics.stallEnded();
+    }
+
+    /**
+     * Send a region of a file using the kernel's sendfile, with a {@code Content-Length}
+     */
+    private static @NotNull Future<@NotNull Void> sendFile(final @NotNull String filePath, final long offset, final long length, final @NotNull HttpServerResponse res) {
+        return res.sendFile(filePath, offset, length).recover(e -> Future.failedFuture(res.headWritten() ? e : new WebServerException(404, e)));
     }
 
     public enum Encoding {
@@ -243,34 +413,86 @@ public class FileResource extends Resource {
         }
     }
 
-    public record WeightedEncoding(@NotNull Encoding encoding, float weight) {
-
-        public static @NotNull Optional<@NotNull WeightedEncoding> fromString(final @NotNull String s) {
-            final @NotNull String @NotNull [] parts = Arrays.stream(s.split(";", 2)).map(String::strip).toArray(String[]::new);
-            if (parts.length == 0) return Optional.empty();
-            final @NotNull String encoding = parts[0];
-            final @NotNull Optional<@NotNull Encoding> e = Encoding.fromString(encoding);
-            if (e.isEmpty()) return Optional.empty();
-            final float weight;
-            if (parts.length == 1) weight = 0f;
-            else {
-                final @NotNull String @NotNull [] weightParts = parts[1].split("=", 2);
-                if (weightParts.length != 2) return Optional.empty();
-                weight = WebServer.parseFloat(weightParts[1]).orElse(-1f);
-                if (weight < 0f || weight > 1f) return Optional.empty();
-            }
-            return Optional.of(new WeightedEncoding(e.get(), weight));
+    public enum ServingMode {
+        /**
+         * Read the file in chunks and write them to the response
+         */
+        Stream("stream"),
+        /**
+         * Send full files and single ranges with the kernel's sendfile; files never pass through the heap
+         */
+        SendFile("sendfile"),
+        /**
+         * Map files into memory once and write slices of the mapping; files never pass through the heap and are not
+         * opened per request
+         */
+        Mmap("mmap");
+
+        private final @NotNull String name;
+
+        ServingMode(final @NotNull String name) {
+            this.name = name;
+        }
+
+        public static @NotNull Optional<@NotNull ServingMode> fromString(final @NotNull String s) {
+            for (final @NotNull ServingMode m : ServingMode.values())
+                if (m.name.equals(s)) return Optional.of(m);
+            return Optional.empty();
+        }
+
+        @Override
+        public @NotNull String toString() {
+            return this.name;
+        }
+    }
+
+    /**
+     * Immutable snapshot of the files of a resource, with the response headers of each
+     */
+    public static final class Variants {
+        private final @NotNull Map<@NotNull Encoding, @NotNull String> files;
+        private final int mask;
+        /**
+         * Headers by {@link Encoding#ordinal()}: the resource headers with {@code Content-Encoding} and {@code Vary}
+         */
+        private final @Nullable ResponseHeaders @NotNull [] headers;
+        private final byte @NotNull [] partHeaderPrefix;
+        /**
+         * Validators by {@link Encoding#ordinal()} if they are known up front, in which case the files are served
+         * without checking them on disk
+         */
+        private final Validators.@Nullable Validator @Nullable [] validators;
+        /**
+         * Content by {@link Encoding#ordinal()} if it is already mapped into memory, e.g. from an {@link AssetPack}
+         */
+        private final MappedFiles.@Nullable Mapping @Nullable [] mappings;
+
+        private Variants(final @NotNull Map<@NotNull Encoding, @NotNull String> files, final @NotNull ResponseHeaders resourceHeaders, final @NotNull String contentType) {
+            this(files, headers(files.keySet(), resourceHeaders), MultipartRanges.partHeaderPrefix(contentType), null, null);
         }
 
-        public static @NotNull WeightedEncoding @NotNull [] fromRequest(final @NotNull HttpServerRequest req) {
-            final @NotNull Optional<@NotNull String> header = Optional.ofNullable(req.getHeader("Accept-Encoding"));
-            return header.map(s -> Arrays.stream(s.split(",")).map(WeightedEncoding::fromString).filter(Optional::isPresent).map(Optional::get).toArray(WeightedEncoding[]::new)).orElseGet(() -> new WeightedEncoding[]{});
+        /**
+         * @param headers          headers by encoding, from {@link #headers}
+         * @param partHeaderPrefix from {@link MultipartRanges#partHeaderPrefix}
+         */
+        Variants(final @NotNull Map<@NotNull Encoding, @NotNull String> files, final @Nullable ResponseHeaders @NotNull [] headers, final byte @NotNull [] partHeaderPrefix, final Validators.@Nullable Validator @Nullable [] validators, final MappedFiles.@Nullable Mapping @Nullable [] mappings) {
+            this.files = Map.copyOf(files);
+            this.mask = AcceptEncoding.mask(files.keySet());
+            this.headers = headers;
+            this.partHeaderPrefix = partHeaderPrefix;
+            this.validators = validators;
+            this.mappings = mappings;
         }
 
-        public static boolean identityAllowed(final @NotNull WeightedEncoding @NotNull [] encodings) {
-            final @NotNull Optional<@NotNull WeightedEncoding> identity = Arrays.stream(encodings).filter(e -> e.encoding == Encoding.Identity).findFirst();
-            final @NotNull Optional<@NotNull WeightedEncoding> catchAll = Arrays.stream(encodings).filter(e -> e.encoding == Encoding.CatchAll).findFirst();
-            return !((identity.isEmpty() && catchAll.isPresent() && catchAll.get().weight == 0f) || (identity.isPresent() && identity.get().weight == 0f));
+        /**
+         * Derive the headers of each encoding from the resource headers
+         */
+        static @Nullable ResponseHeaders @NotNull [] headers(final @NotNull Set<@NotNull Encoding> encodings, final @NotNull ResponseHeaders resourceHeaders) {
+            final @Nullable ResponseHeaders @NotNull [] headers = new ResponseHeaders[Encoding.values().length];
+            final @NotNull ResponseHeaders base = encodings.size() > 1 ? resourceHeaders.with("Vary", "Accept-Encoding") : resourceHeaders;
+            for (final @NotNull Encoding encoding : encodings)
+                headers[encoding.ordinal()] = encoding == Encoding.Identity ? base : base.with("Content-Encoding", encoding.toString());
+            return headers;
         }
     }
 }
@@ -1,9 +1,12 @@
 package ws.haste.front;
 
+import io.vertx.core.DeploymentOptions;
 import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.InputStream;
@@ -11,19 +14,25 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletionException;
 
 /**
  * Main class
  */
 public class Front {
     public static void main(final @NotNull String @NotNull [] args) {
+        if (args.length > 0 && args[0].equals("pack")) {
+            AssetPack.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         start();
     }
 
     public static void start() {
+        final @NotNull String configPath = findConfig();
         final @NotNull Config config;
         try {
-            config = findConfig();
+            config = Config.fromYaml(configPath);
         }
         catch (final @NotNull Config.ConfigException e) {
             logger.fatal("Configuration Error: " + e.getMessage());
@@ -33,11 +42,43 @@ public class Front {
         final @NotNull List<@NotNull Integer> portsRequireRoot = Arrays.asList(80, 443);
         if (portsRequireRoot.contains(config.port()) && Optional.ofNullable(System.getProperty("user.name")).map(u -> !u.equals("root")).orElse(false))
             getLogger().warn("Requested port is " + config.port() + ". This port may require administrative privileges.");
-        final @NotNull WebServer ws = new WebServer(config);
+
+        getLogger().info("Starting...");
+        final @NotNull Vertx vertx = createVertx(new VertxOptions().setEventLoopPoolSize(config.eventLoops()).setPreferNativeTransport(config.transport().nativeTransport()));
+        if (config.transport().nativeTransport() && !vertx.isNativeTransportEnabled())
+            getLogger().warn("Native transport is not available, using NIO: " + Optional.ofNullable(vertx.unavailableNativeTransportCause()).map(Throwable::getMessage).orElse("unknown cause"));
+        final @NotNull ConfigReloader reloader = new ConfigReloader(configPath, config);
+        try {
+            vertx.deployVerticle(() -> new WebServer(reloader), new DeploymentOptions().setInstances(config.eventLoops()))
+                    .toCompletionStage().toCompletableFuture().join();
+        }
+        catch (final @NotNull CompletionException e) {
+            logger.fatal("Failed to start server: " + e.getCause().getMessage());
+            System.exit(1);
+            return;
+        }
+        getLogger().info("Listening on port " + config.port() + " (" + config.eventLoops() + " event loops)");
+        getLogger().info("Transport: " + (vertx.isNativeTransportEnabled() ? "native" : "nio") + " (" + config.transport().effective(vertx.isNativeTransportEnabled()) + ")");
+
+        if (config.metrics().enabled() && config.metrics().port() != 0) {
+            final @NotNull Config.MetricsEndpoint metrics = config.metrics();
+            vertx.createHttpServer()
+                    .requestHandler(req -> {
+                        if (req.path().equals(metrics.path())) WebServer.serveMetrics(req);
+                        else req.response().setStatusCode(404).end();
+                    })
+                    .listen(metrics.port())
+                    .onSuccess(s -> getLogger().info("Serving metrics on port " + metrics.port() + " at " + metrics.path()))
+                    .onFailure(e -> getLogger().error("Failed to start metrics server: " + e.getMessage()));
+        }
+
+        reloader.start(vertx);
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             getLogger().info("Stopping...");
-            ws.stop();
+            vertx.close().toCompletionStage().toCompletableFuture().join();
+            final @Nullable AccessLogger accessLogger = reloader.config().accessLogger();
+            if (accessLogger != null) accessLogger.close();
         }));
     }
 
@@ -45,12 +86,28 @@ public class Front {
         return logger;
     }
 
-    public final static @NotNull Vertx vertx = Vertx.vertx();
+    /**
+     * Get the Vert.x instance. If the server has not been started, an instance with default options is created.
+     */
+    public static @NotNull Vertx vertx() {
+        final @Nullable Vertx v = vertx;
+        return v != null ? v : createVertx(new VertxOptions());
+    }
+
+    private static synchronized @NotNull Vertx createVertx(final @NotNull VertxOptions options) {
+        if (vertx == null) vertx = Vertx.vertx(options);
+        return vertx;
+    }
+
+    private static volatile @Nullable Vertx vertx;
     private static final @NotNull Logger logger = LogManager.getLogger(Front.class);
 
-    private static @NotNull Config findConfig() throws Config.ConfigException {
+    /**
+     * Find the path of the configuration file
+     */
+    private static @NotNull String findConfig() {
         final @NotNull Optional<@NotNull String> env = Optional.ofNullable(System.getenv("HASTE_CONFIG"));
-        if (env.isPresent()) return Config.fromYaml(env.get());
+        if (env.isPresent()) return env.get();
 
         final @NotNull HashSet<@NotNull String> locations = new HashSet<>(Arrays.asList(
                 "haste.yaml",
@@ -59,9 +116,9 @@ public class Front {
                 "/etc/haste/config.yml"
         ));
         for (final @NotNull String location : locations)
-            if (new File(location).exists()) return Config.fromYaml(location);
+            if (new File(location).exists()) return location;
         getLogger().warn("Did not find configuration file, using default config");
-        return Config.fromYaml("haste://config.yaml");
+        return "haste://config.yaml";
     }
 
     public static @NotNull Optional<@NotNull InputStream> getInternalFile(final @NotNull String filePath) {
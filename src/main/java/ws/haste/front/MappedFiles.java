@@ -0,0 +1,174 @@
+package ws.haste.front;
+
+import io.netty.buffer.Unpooled;
+import io.vertx.core.Future;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.FileProps;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Memory mappings of files served with the {@code mmap} serving mode
+ * <p>
+ * Each file is mapped once, read-only, and the mapping is shared by all requests and event loops. Responses are
+ * written as slices of the mapping, so file contents are never copied into the heap and the page cache does the
+ * caching. Mappings are checked against the file's modification time and size at most once per check interval and
+ * replaced when the file changes; the least recently used ones are released once the total mapped size exceeds the
+ * budget.
+ * <p>
+ * A released mapping is unmapped by the garbage collector once no response is using it anymore. Files should be
+ * replaced by renaming a new file over them rather than rewritten in place, as a mapping of a truncated file cannot be
+ * read past the new end.
+ */
+public final class MappedFiles {
+    /**
+     * Files are mapped in segments of this size, as a single mapping cannot exceed 2 GiB
+     */
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+
+    public final long maxSize;
+    public final long checkInterval;
+
+    private final @NotNull LinkedHashMap<@NotNull String, @NotNull Mapping> mappings = new LinkedHashMap<>(16, 0.75f, true);
+    private long size = 0;
+
+    /**
+     * @param maxSize       total number of bytes that may be mapped at once
+     * @param checkInterval milliseconds after which a mapping is checked against the file on disk
+     */
+    public MappedFiles(final long maxSize, final long checkInterval) {
+        this.maxSize = maxSize;
+        this.checkInterval = checkInterval;
+    }
+
+    /**
+     * Get the mapping of a file, mapping it if needed. Mapping is done on a worker thread.
+     *
+     * @param filePath path of the file on disk
+     * @return the mapping, or a failed future with a {@link WebServerException} if the file cannot be mapped
+     */
+    public @NotNull Future<@NotNull Mapping> get(final @NotNull String filePath) {
+        final long now = System.currentTimeMillis();
+        final @Nullable Mapping mapped;
+        synchronized (this) {
+            mapped = this.mappings.get(filePath);
+        }
+        if (mapped != null && now - mapped.validatedAt < this.checkInterval) return Future.succeededFuture(mapped);
+
+        return Front.vertx().fileSystem().props(filePath).compose(props -> {
+            if (mapped != null && mapped.lastModified == props.lastModifiedTime() && mapped.size == props.size()) {
+                mapped.validatedAt = now;
+                return Future.succeededFuture(mapped);
+            }
+            if (mapped != null) remove(filePath, mapped);
+            if (!props.isRegularFile()) return Future.failedFuture(new WebServerException(404));
+            return Front.vertx().executeBlocking(() -> {
+                final @NotNull Mapping mapping = map(filePath, props, now);
+                put(filePath, mapping);
+                return mapping;
+            }, false);
+        }).recover(e -> Future.failedFuture(e instanceof WebServerException ? e : new WebServerException(404, e)));
+    }
+
+    /**
+     * Release the mapping of a file
+     */
+    public synchronized void invalidate(final @NotNull String filePath) {
+        final @Nullable Mapping mapping = this.mappings.remove(filePath);
+        if (mapping != null) this.size -= mapping.size;
+    }
+
+    private synchronized void remove(final @NotNull String filePath, final @NotNull Mapping mapping) {
+        if (this.mappings.remove(filePath, mapping)) this.size -= mapping.size;
+    }
+
+    private synchronized void put(final @NotNull String filePath, final @NotNull Mapping mapping) {
+        final @Nullable Mapping previous = this.mappings.put(filePath, mapping);
+        if (previous != null) this.size -= previous.size;
+        this.size += mapping.size;
+        final @NotNull Iterator<Map.@NotNull Entry<@NotNull String, @NotNull Mapping>> it = this.mappings.entrySet().iterator();
+        while (this.size > this.maxSize && it.hasNext()) {
+            final @NotNull Mapping eldest = it.next().getValue();
+            if (eldest == mapping) continue;
+            it.remove();
+            this.size -= eldest.size;
+        }
+    }
+
+    private static @NotNull Mapping map(final @NotNull String filePath, final @NotNull FileProps props, final long now) throws IOException {
+        try (final @NotNull FileChannel channel = FileChannel.open(Path.of(filePath), StandardOpenOption.READ)) {
+            // the file may have grown since props were read; map no more than was announced
+            return new Mapping(map(channel, Math.min(props.size(), channel.size())), 0, Math.min(props.size(), channel.size()), props.lastModifiedTime(), now);
+        }
+    }
+
+    /**
+     * Map a whole file right away, outside of any budget, e.g. an {@link AssetPack} that is mapped for as long as it is
+     * served
+     */
+    public static @NotNull Mapping map(final @NotNull Path file) throws IOException {
+        try (final @NotNull FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            return new Mapping(map(channel, size), 0, size, Files.getLastModifiedTime(file).toMillis(), Long.MAX_VALUE);
+        }
+    }
+
+    private static @NotNull MappedByteBuffer @NotNull [] map(final @NotNull FileChannel channel, final long size) throws IOException {
+        final @NotNull MappedByteBuffer @NotNull [] segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT)];
+        for (int i = 0; i < segments.length; ++i) {
+            final long position = (long) i << SEGMENT_SHIFT;
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(SEGMENT_SIZE, size - position));
+        }
+        return segments;
+    }
+
+    public static final class Mapping {
+        private final @NotNull MappedByteBuffer @NotNull [] segments;
+        /**
+         * Position of this mapping in the segments, non-zero for a {@link #region}
+         */
+        private final long offset;
+        public final long size;
+        public final long lastModified;
+        private volatile long validatedAt;
+
+        private Mapping(final @NotNull MappedByteBuffer @NotNull [] segments, final long offset, final long size, final long lastModified, final long validatedAt) {
+            this.segments = segments;
+            this.offset = offset;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.validatedAt = validatedAt;
+        }
+
+        /**
+         * Zero-copy view of the mapping starting at {@code position}. The view is shorter than {@code maxLength} if it
+         * would cross a segment boundary.
+         */
+        public @NotNull Buffer slice(final long position, final int maxLength) {
+            final long absolute = this.offset + position;
+            final @NotNull MappedByteBuffer segment = this.segments[(int) (absolute >>> SEGMENT_SHIFT)];
+            final int offset = (int) (absolute & (SEGMENT_SIZE - 1));
+            return Buffers.wrap(Unpooled.wrappedBuffer(segment.slice(offset, Math.min(maxLength, segment.capacity() - offset))));
+        }
+
+        /**
+         * A part of this mapping, sharing its memory
+         */
+        public @NotNull Mapping region(final long position, final long length) {
+            if (position < 0 || length < 0 || position + length > this.size)
+                throw new IndexOutOfBoundsException("Region " + position + "+" + length + " is outside of the mapping (" + this.size + " bytes)");
+            return new Mapping(this.segments, this.offset + position, length, this.lastModified, this.validatedAt);
+        }
+    }
+}
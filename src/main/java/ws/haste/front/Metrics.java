@@ -0,0 +1,236 @@
+package ws.haste.front;
+
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpServerResponse;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server metrics, exported in the Prometheus text format
+ * <p>
+ * Counters and histogram buckets are striped {@link LongAdder}s that are allocated when a resource is first
+ * configured, so recording a request does not allocate or lock. Metrics are kept by resource path and therefore
+ * survive configuration reloads.
+ */
+public final class Metrics {
+    private Metrics() {}
+
+    /**
+     * Status codes counted individually; all others are counted as {@code other}
+     */
+    private static final int @NotNull [] STATUSES = {200, 206, 304, 400, 404, 405, 415, 416, 429, 500, 503};
+    /**
+     * Upper bounds of the latency histogram buckets, in seconds
+     */
+    private static final @NotNull String @NotNull [] BUCKETS = {"0.0005", "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5", "10"};
+    private static final long @NotNull [] BUCKET_NANOS = new long[BUCKETS.length];
+    static {
+        for (int i = 0; i < BUCKETS.length; ++i) BUCKET_NANOS[i] = (long) (Double.parseDouble(BUCKETS[i]) * 1e9);
+    }
+    private static final FileResource.@NotNull Encoding @NotNull [] ENCODINGS = FileResource.Encoding.values();
+
+    private static final @NotNull ConcurrentHashMap<@NotNull String, @NotNull ResourceMetrics> resources = new ConcurrentHashMap<>();
+    /**
+     * Requests that did not match any resource
+     */
+    public static final @NotNull ResourceMetrics unmatched = new ResourceMetrics();
+
+    private static final @NotNull LongAdder openConnections = new LongAdder();
+    private static final @NotNull LongAdder stalledResponses = new LongAdder();
+    private static final @NotNull LongAdder stalls = new LongAdder();
+    private static final @NotNull LongAdder accessLogDropped = new LongAdder();
+    private static final @NotNull LongAdder blockHits = new LongAdder();
+    private static final @NotNull LongAdder blockMisses = new LongAdder();
+    private static final @NotNull LongAdder blocksRead = new LongAdder();
+
+    /**
+     * Get the metrics of a resource, creating them if needed. Meant to be called when a resource is configured.
+     */
+    public static @NotNull ResourceMetrics resource(final @NotNull String url) {
+        return resources.computeIfAbsent(url, u -> new ResourceMetrics());
+    }
+
+    public static void connectionOpened() {
+        openConnections.increment();
+    }
+
+    public static void connectionClosed() {
+        openConnections.decrement();
+    }
+
+    /**
+     * A response's write queue is full, so sending is paused until the client has caught up
+     */
+    public static void stallStarted() {
+        stalledResponses.increment();
+        stalls.increment();
+    }
+
+    public static void stallEnded() {
+        stalledResponses.decrement();
+    }
+
+    /**
+     * An access log record was dropped because the log buffer was full
+     */
+    public static void accessLogDropped() {
+        accessLogDropped.increment();
+    }
+
+    public static long accessLogDroppedCount() {
+        return accessLogDropped.sum();
+    }
+
+    /**
+     * A block needed by a range response was found in the block cache
+     */
+    public static void blockHit() {
+        blockHits.increment();
+    }
+
+    /**
+     * A block needed by a range response had to be read, or was already being read
+     */
+    public static void blockMiss() {
+        blockMisses.increment();
+    }
+
+    /**
+     * Blocks were read from disk into the block cache, including blocks read ahead
+     */
+    public static void blocksRead(final int count) {
+        blocksRead.add(count);
+    }
+
+    /**
+     * Record a response that has ended, or whose connection was closed before it ended
+     *
+     * @param encoding encoding negotiated for the response, or {@code null} to take it from its
+     *                 {@code Content-Encoding} header, e.g. for proxied responses
+     * @param start    {@link System#nanoTime()} when the request was received
+     */
+    public static void record(final @NotNull ResourceMetrics metrics, final @NotNull HttpServerResponse res, final FileResource.@Nullable Encoding encoding, final long start) {
+        final long duration = System.nanoTime() - start;
+        metrics.requests[statusIndex(res.getStatusCode())].increment();
+        metrics.bytes[encoding != null ? encoding.ordinal() : encodingIndex(res.headers().get(HttpHeaders.CONTENT_ENCODING))].add(res.bytesWritten());
+        int bucket = 0;
+        while (bucket < BUCKET_NANOS.length && duration > BUCKET_NANOS[bucket]) ++bucket;
+        metrics.latency[bucket].increment();
+        metrics.latencySum.add(duration);
+    }
+
+    private static int statusIndex(final int status) {
+        for (int i = 0; i < STATUSES.length; ++i) if (STATUSES[i] == status) return i;
+        return STATUSES.length;
+    }
+
+    private static int encodingIndex(final @Nullable String contentEncoding) {
+        if (contentEncoding == null) return FileResource.Encoding.Identity.ordinal();
+        for (final @NotNull FileResource.Encoding e : ENCODINGS)
+            if (e.toString().equalsIgnoreCase(contentEncoding)) return e.ordinal();
+        return FileResource.Encoding.Identity.ordinal();
+    }
+
+    /**
+     * Render all metrics in the Prometheus text exposition format
+     */
+    public static @NotNull String export() {
+        final @NotNull StringBuilder sb = new StringBuilder();
+        sb.append("# HELP haste_requests_total Responses sent, by resource and status code\n");
+        sb.append("# TYPE haste_requests_total counter\n");
+        forEachResource((label, m) -> {
+            for (int i = 0; i <= STATUSES.length; ++i) {
+                final long count = m.requests[i].sum();
+                if (count == 0) continue;
+                sb.append("haste_requests_total{resource=\"").append(label).append("\",status=\"")
+                        .append(i < STATUSES.length ? String.valueOf(STATUSES[i]) : "other").append("\"} ").append(count).append('\n');
+            }
+        });
+
+        sb.append("# HELP haste_response_bytes_total Body bytes sent, by resource and content encoding\n");
+        sb.append("# TYPE haste_response_bytes_total counter\n");
+        forEachResource((label, m) -> {
+            for (final @NotNull FileResource.Encoding e : ENCODINGS) {
+                final long bytes = m.bytes[e.ordinal()].sum();
+                if (bytes == 0) continue;
+                sb.append("haste_response_bytes_total{resource=\"").append(label).append("\",encoding=\"").append(e).append("\"} ").append(bytes).append('\n');
+            }
+        });
+
+        sb.append("# HELP haste_request_duration_seconds Time from receiving a request until its response has been written\n");
+        sb.append("# TYPE haste_request_duration_seconds histogram\n");
+        forEachResource((label, m) -> {
+            long cumulative = 0;
+            for (int i = 0; i <= BUCKETS.length; ++i) {
+                cumulative += m.latency[i].sum();
+                sb.append("haste_request_duration_seconds_bucket{resource=\"").append(label).append("\",le=\"")
+                        .append(i < BUCKETS.length ? BUCKETS[i] : "+Inf").append("\"} ").append(cumulative).append('\n');
+            }
+            sb.append("haste_request_duration_seconds_sum{resource=\"").append(label).append("\"} ").append(m.latencySum.sum() / (double) TimeUnit.SECONDS.toNanos(1)).append('\n');
+            sb.append("haste_request_duration_seconds_count{resource=\"").append(label).append("\"} ").append(cumulative).append('\n');
+        });
+
+        sb.append("# HELP haste_open_connections Open client connections\n");
+        sb.append("# TYPE haste_open_connections gauge\n");
+        sb.append("haste_open_connections ").append(openConnections.sum()).append('\n');
+        sb.append("# HELP haste_stalled_responses Responses waiting for a client to drain its write queue\n");
+        sb.append("# TYPE haste_stalled_responses gauge\n");
+        sb.append("haste_stalled_responses ").append(stalledResponses.sum()).append('\n');
+        sb.append("# HELP haste_stalls_total Times a response was paused because its write queue was full\n");
+        sb.append("# TYPE haste_stalls_total counter\n");
+        sb.append("haste_stalls_total ").append(stalls.sum()).append('\n');
+        sb.append("# HELP haste_access_log_dropped_total Access log records dropped because the log buffer was full\n");
+        sb.append("# TYPE haste_access_log_dropped_total counter\n");
+        sb.append("haste_access_log_dropped_total ").append(accessLogDropped.sum()).append('\n');
+        sb.append("# HELP haste_block_cache_requests_total Blocks needed by range responses, by whether they were cached\n");
+        sb.append("# TYPE haste_block_cache_requests_total counter\n");
+        sb.append("haste_block_cache_requests_total{result=\"hit\"} ").append(blockHits.sum()).append('\n');
+        sb.append("haste_block_cache_requests_total{result=\"miss\"} ").append(blockMisses.sum()).append('\n');
+        sb.append("# HELP haste_block_cache_reads_total Blocks read from disk into the block cache, including blocks read ahead\n");
+        sb.append("# TYPE haste_block_cache_reads_total counter\n");
+        sb.append("haste_block_cache_reads_total ").append(blocksRead.sum()).append('\n');
+        return sb.toString();
+    }
+
+    private interface ResourceConsumer {
+        void accept(final @NotNull String label, final @NotNull ResourceMetrics metrics);
+    }
+
+    private static void forEachResource(final @NotNull ResourceConsumer consumer) {
+        for (final @NotNull Map.Entry<@NotNull String, @NotNull ResourceMetrics> entry : resources.entrySet())
+            if (entry.getValue().used()) consumer.accept(escape(entry.getKey()), entry.getValue());
+        if (unmatched.used()) consumer.accept("", unmatched);
+    }
+
+    private static @NotNull String escape(final @NotNull String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Metrics of one resource
+     */
+    public static final class ResourceMetrics {
+        private final @NotNull LongAdder @NotNull [] requests = adders(STATUSES.length + 1);
+        private final @NotNull LongAdder @NotNull [] bytes = adders(ENCODINGS.length);
+        private final @NotNull LongAdder @NotNull [] latency = adders(BUCKETS.length + 1);
+        private final @NotNull LongAdder latencySum = new LongAdder();
+
+        private ResourceMetrics() {}
+
+        private boolean used() {
+            for (final @NotNull LongAdder adder : this.requests) if (adder.sum() != 0) return true;
+            return false;
+        }
+
+        private static @NotNull LongAdder @NotNull [] adders(final int n) {
+            final @NotNull LongAdder @NotNull [] adders = new LongAdder[n];
+            for (int i = 0; i < n; ++i) adders[i] = new LongAdder();
+            return adders;
+        }
+    }
+}
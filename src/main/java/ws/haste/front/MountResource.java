@@ -0,0 +1,169 @@
+package ws.haste.front;
+
+import io.vertx.core.Future;
+import io.vertx.core.http.HttpServerRequest;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A tree of files mounted under a URL prefix, such as a directory or an asset pack
+ * <p>
+ * The part of the path pattern before its final {@code *} is stripped from request paths, and the rest is looked up
+ * in the index of the mount. Paths are percent-decoded first; paths with {@code .} or {@code ..} segments, backslashes
+ * or NUL characters are not found. A path that ends with {@code /} serves the {@code index.html} of that directory.
+ */
+public abstract class MountResource extends FileResource {
+    /**
+     * Served for a path that ends with {@code /}
+     */
+    private static final @NotNull String INDEX = "index.html";
+    /**
+     * Content types by file extension, used unless the configuration overrides them
+     */
+    public static final @NotNull Map<@NotNull String, @NotNull String> DEFAULT_CONTENT_TYPES = Map.ofEntries(
+            Map.entry("html", "text/html; charset=utf-8"),
+            Map.entry("htm", "text/html; charset=utf-8"),
+            Map.entry("css", "text/css; charset=utf-8"),
+            Map.entry("js", "text/javascript; charset=utf-8"),
+            Map.entry("mjs", "text/javascript; charset=utf-8"),
+            Map.entry("json", "application/json"),
+            Map.entry("map", "application/json"),
+            Map.entry("webmanifest", "application/manifest+json"),
+            Map.entry("xml", "application/xml"),
+            Map.entry("txt", "text/plain; charset=utf-8"),
+            Map.entry("csv", "text/csv; charset=utf-8"),
+            Map.entry("md", "text/markdown; charset=utf-8"),
+            Map.entry("svg", "image/svg+xml"),
+            Map.entry("png", "image/png"),
+            Map.entry("jpg", "image/jpeg"),
+            Map.entry("jpeg", "image/jpeg"),
+            Map.entry("gif", "image/gif"),
+            Map.entry("webp", "image/webp"),
+            Map.entry("avif", "image/avif"),
+            Map.entry("ico", "image/vnd.microsoft.icon"),
+            Map.entry("woff", "font/woff"),
+            Map.entry("woff2", "font/woff2"),
+            Map.entry("ttf", "font/ttf"),
+            Map.entry("otf", "font/otf"),
+            Map.entry("wasm", "application/wasm"),
+            Map.entry("pdf", "application/pdf"),
+            Map.entry("zip", "application/zip"),
+            Map.entry("gz", "application/gzip"),
+            Map.entry("mp3", "audio/mpeg"),
+            Map.entry("ogg", "audio/ogg"),
+            Map.entry("mp4", "video/mp4"),
+            Map.entry("webm", "video/webm")
+    );
+
+    private final @NotNull String prefix;
+    /**
+     * Headers by content type and set of encodings, shared by all files with the same ones
+     */
+    private final @NotNull ConcurrentHashMap<@NotNull String, @Nullable ResponseHeaders @NotNull []> headerBlocks = new ConcurrentHashMap<>();
+    private final @NotNull ConcurrentHashMap<@NotNull String, byte @NotNull []> partHeaderPrefixes = new ConcurrentHashMap<>();
+
+    /**
+     * @param url         path pattern, ending with {@code *}
+     * @param contentType content type of files whose type is not known otherwise
+     * @param headers     headers of the resource, including the global headers
+     */
+    protected MountResource(final @NotNull String url, final @NotNull String contentType, final @Nullable ResponseHeaders headers, final @NotNull ServingMode servingMode, final @Nullable ResponseCache cache, final @Nullable MappedFiles mappedFiles, final @Nullable BlockCache blockCache, final Config.@NotNull RangeRequests rangeRequests) {
+        super(url, contentType, new HashMap<>(), null, headers, servingMode, false, cache, null, mappedFiles, blockCache, rangeRequests);
+        this.prefix = url.substring(0, url.length() - 1);
+    }
+
+    /**
+     * Number of servable files
+     */
+    public abstract int size();
+
+    /**
+     * Look up a file of the mount
+     *
+     * @param path decoded path relative to the mount, with {@code /} as separator
+     * @return the file and its variants, or {@code null} if there is no such file
+     */
+    protected abstract @Nullable Variants find(final @NotNull String path);
+
+    @Override
+    public @NotNull Future<@NotNull Void> serve(final @NotNull HttpServerRequest req) throws WebServerException {
+        final @Nullable String path = relativePath(req.path());
+        final @Nullable Variants variants = path == null ? null : find(path.isEmpty() || path.endsWith("/") ? path + INDEX : path);
+        if (variants == null) throw new WebServerException(404);
+        return serve(req, variants);
+    }
+
+    /**
+     * Build the variants of a file, sharing the headers with all files of the same content type and encodings
+     *
+     * @param validators validators by {@link Encoding#ordinal()}
+     * @param mappings   mapped content by {@link Encoding#ordinal()}, or {@code null} to serve the files from disk
+     */
+    protected final @NotNull Variants variants(final @NotNull Map<@NotNull Encoding, @NotNull String> files, final @NotNull String contentType, final Validators.@Nullable Validator @NotNull [] validators, final MappedFiles.@Nullable Mapping @Nullable [] mappings) {
+        final @Nullable ResponseHeaders @NotNull [] headers = this.headerBlocks.computeIfAbsent(AcceptEncoding.mask(files.keySet()) + ";" + contentType, k -> Variants.headers(files.keySet(), this.headers.with("Content-Type", contentType)));
+        final byte @NotNull [] partHeaderPrefix = this.partHeaderPrefixes.computeIfAbsent(contentType, MultipartRanges::partHeaderPrefix);
+        return new Variants(files, headers, partHeaderPrefix, validators, mappings);
+    }
+
+    /**
+     * Resolve a request path to a path relative to the mount
+     *
+     * @return the decoded path, or {@code null} if it cannot be decoded or has {@code .} or {@code ..} segments
+     */
+    private @Nullable String relativePath(final @NotNull String requestPath) {
+        int start = Math.min(this.prefix.length(), requestPath.length());
+        while (start < requestPath.length() && requestPath.charAt(start) == '/') ++start;
+        final @Nullable String path = requestPath.indexOf('%', start) == -1 ? requestPath.substring(start) : decode(requestPath, start);
+        if (path == null || path.indexOf('\\') != -1 || path.indexOf('\0') != -1) return null;
+        int segment = 0;
+        while (segment <= path.length()) {
+            int end = path.indexOf('/', segment);
+            if (end == -1) end = path.length();
+            final int length = end - segment;
+            if (length == 1 && path.charAt(segment) == '.' || length == 2 && path.startsWith("..", segment)) return null;
+            segment = end + 1;
+        }
+        return path;
+    }
+
+    /**
+     * Decode percent-encoded UTF-8
+     *
+     * @return the decoded string, or {@code null} if an escape is malformed
+     */
+    private static @Nullable String decode(final @NotNull String s, final int start) {
+        final @NotNull ByteArrayOutputStream bytes = new ByteArrayOutputStream(s.length() - start);
+        for (int i = start; i < s.length(); ++i) {
+            final char c = s.charAt(i);
+            if (c != '%') {
+                if (c >= 0x80) return null;
+                bytes.write(c);
+                continue;
+            }
+            if (i + 2 >= s.length()) return null;
+            final int high = Character.digit(s.charAt(i + 1), 16);
+            final int low = Character.digit(s.charAt(i + 2), 16);
+            if (high == -1 || low == -1) return null;
+            bytes.write(high << 4 | low);
+            i += 2;
+        }
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Content type of a file by its extension
+     *
+     * @param contentTypes content types by lower-case file extension
+     */
+    public static @NotNull String contentType(final @NotNull String path, final @NotNull Map<@NotNull String, @NotNull String> contentTypes, final @NotNull String defaultContentType) {
+        final int dot = path.lastIndexOf('.');
+        if (dot == -1 || dot < path.lastIndexOf('/')) return defaultContentType;
+        return contentTypes.getOrDefault(path.substring(dot + 1).toLowerCase(), defaultContentType);
+    }
+}
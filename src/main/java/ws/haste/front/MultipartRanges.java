@@ -0,0 +1,135 @@
+package ws.haste.front;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Body of a {@code multipart/byteranges} response
+ * <p>
+ * All part headers are encoded up front, as the exact length of the body is sent in {@code Content-Length}. Parts are
+ * written one after another, each only once the previous one has been handed to the connection, so a slow client never
+ * causes more than one part to be buffered.
+ */
+public final class MultipartRanges {
+    private static final byte @NotNull [] CRLF = {'\r', '\n'};
+    private static final char @NotNull [] BOUNDARY_CHARACTERS = "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+    private static final int BOUNDARY_LENGTH = 24;
+
+    private final @NotNull String boundary;
+    private final Ranges.@NotNull AbsoluteRange @NotNull [] ranges;
+    private final @NotNull Buffer @NotNull [] partHeaders;
+    private final @NotNull Buffer closing;
+    private final long length;
+
+    /**
+     * @param partHeaderPrefix the part headers up to the first byte position: {@code Content-Type} followed by
+     *                         {@code Content-Range: bytes }, encoded once per resource with {@link #partHeaderPrefix}
+     * @param ranges           satisfiable ranges in ascending order, without overlaps
+     * @param size             size of the representation
+     */
+    public MultipartRanges(final byte @NotNull [] partHeaderPrefix, final Ranges.@NotNull AbsoluteRange @NotNull [] ranges, final long size) {
+        this.boundary = generateBoundary();
+        this.ranges = ranges;
+        // every delimiter but the first starts with the CRLF that ends the previous part
+        final byte @NotNull [] delimiter = ("\r\n--" + this.boundary + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        final byte @NotNull [] suffix = ("/" + size + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        this.closing = Buffer.buffer(("\r\n--" + this.boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        this.partHeaders = new Buffer[ranges.length];
+        long length = this.closing.length();
+        for (int i = 0; i < ranges.length; ++i) {
+            final int skip = i == 0 ? CRLF.length : 0;
+            this.partHeaders[i] = Buffer.buffer(delimiter.length - skip + partHeaderPrefix.length + 40 + suffix.length)
+                    .appendBytes(delimiter, skip, delimiter.length - skip)
+                    .appendBytes(partHeaderPrefix)
+                    .appendString(Long.toString(ranges[i].start))
+                    .appendByte((byte) '-')
+                    .appendString(Long.toString(ranges[i].end))
+                    .appendBytes(suffix);
+            length += this.partHeaders[i].length() + ranges[i].end - ranges[i].start + 1;
+        }
+        this.length = length;
+    }
+
+    /**
+     * Encode the part headers of a resource up to the first byte position
+     */
+    public static byte @NotNull [] partHeaderPrefix(final @NotNull String contentType) {
+        return ("Content-Type: " + contentType + "\r\nContent-Range: bytes ").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Value of the {@code Content-Type} header of the response
+     */
+    public @NotNull String contentType() {
+        return "multipart/byteranges; boundary=" + this.boundary;
+    }
+
+    /**
+     * Exact length of the body in bytes
+     */
+    public long length() {
+        return this.length;
+    }
+
+    /**
+     * Write the body and end the response
+     *
+     * @param writer writes the content of each range
+     */
+    public @NotNull Future<@NotNull Void> write(final @NotNull RegionWriter writer, final @NotNull HttpServerResponse res) {
+        final @NotNull Promise<@NotNull Void> written = Promise.promise();
+        writeParts(writer, 0, res, written);
+        return written.future().compose(v -> res.end(this.closing));
+    }
+
+    /**
+     * Write parts from the given index in a loop, only waiting for writes that have not completed yet, so that
+     * writers that complete immediately do not nest a call per part
+     */
+    private void writeParts(final @NotNull RegionWriter writer, final int index, final @NotNull HttpServerResponse res, final @NotNull Promise<@NotNull Void> written) {
+        for (int i = index; i < this.ranges.length; ++i) {
+            final Ranges.@NotNull AbsoluteRange range = this.ranges[i];
+            res.write(this.partHeaders[i]);
+            final @NotNull Future<@NotNull Void> part = writer.write(range.start, range.end - range.start + 1);
+            if (!part.isComplete()) {
+                final int next = i + 1;
+                part.onComplete(r -> {
+                    if (r.succeeded()) writeParts(writer, next, res, written);
+                    else written.fail(r.cause());
+                });
+                return;
+            }
+            if (part.failed()) {
+                written.fail(part.cause());
+                return;
+            }
+        }
+        written.complete();
+    }
+
+    /**
+     * Generate a boundary. Boundaries are random per response so that they are unlikely to occur in the content.
+     */
+    private static @NotNull String generateBoundary() {
+        final @NotNull ThreadLocalRandom r = ThreadLocalRandom.current();
+        final char @NotNull [] boundary = new char[BOUNDARY_LENGTH];
+        for (int i = 0; i < BOUNDARY_LENGTH; ++i) boundary[i] = BOUNDARY_CHARACTERS[r.nextInt(BOUNDARY_CHARACTERS.length)];
+        return new String(boundary);
+    }
+
+    /**
+     * Writes a region of a file to the response
+     */
+    public interface RegionWriter {
+        /**
+         * @return a future completed once the region has been written and the response can take more
+         */
+        @NotNull Future<@NotNull Void> write(final long position, final long length);
+    }
+}
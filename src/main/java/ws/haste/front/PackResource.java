@@ -0,0 +1,58 @@
+package ws.haste.front;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An {@link AssetPack} mounted under a URL prefix
+ * <p>
+ * The pack is mapped once when the configuration is loaded and every asset is served as a slice of the mapping, with
+ * the ETag derived from the content hash stored in the pack. A pack that is replaced on disk is picked up by the next
+ * configuration reload; the replaced pack stays mapped until no response uses it anymore.
+ */
+public final class PackResource extends MountResource {
+    public final @NotNull AssetPack pack;
+    private final @NotNull HashMap<@NotNull String, @NotNull Variants> index;
+
+    /**
+     * @param url     path pattern, ending with {@code *}
+     * @param file    the pack
+     * @param headers headers of the resource, including the global headers
+     */
+    public PackResource(final @NotNull String url, final @NotNull Path file, final @Nullable ResponseHeaders headers, final Config.@NotNull RangeRequests rangeRequests) throws IOException {
+        super(url, "application/octet-stream", headers, ServingMode.Mmap, null, null, null, rangeRequests);
+        this.pack = AssetPack.open(file);
+        this.index = new HashMap<>(this.pack.assets.size() * 4 / 3 + 1);
+        for (final AssetPack.@NotNull Asset asset : this.pack.assets) {
+            if (!asset.variants().containsKey(Encoding.Identity)) continue;
+            final @NotNull EnumMap<@NotNull Encoding, @NotNull String> files = new EnumMap<>(Encoding.class);
+            final Validators.@Nullable Validator @NotNull [] validators = new Validators.Validator[Encoding.values().length];
+            final MappedFiles.@Nullable Mapping @NotNull [] mappings = new MappedFiles.Mapping[Encoding.values().length];
+            for (final @NotNull Map.Entry<@NotNull Encoding, AssetPack.@NotNull Content> variant : asset.variants().entrySet()) {
+                final AssetPack.@NotNull Content content = variant.getValue();
+                final int i = variant.getKey().ordinal();
+                // not a real path, but identifies the content in logs
+                files.put(variant.getKey(), file + "!/" + asset.path() + (variant.getKey() == Encoding.Identity ? "" : ";" + variant.getKey()));
+                validators[i] = new Validators.Validator(Validators.etag(content.sha256()), asset.lastModified(), content.length());
+                mappings[i] = this.pack.mapping.region(content.position(), content.length());
+            }
+            this.index.put(asset.path(), variants(files, asset.contentType(), validators, mappings));
+        }
+    }
+
+    @Override
+    public int size() {
+        return this.index.size();
+    }
+
+    @Override
+    protected @Nullable Variants find(final @NotNull String path) {
+        return this.index.get(path);
+    }
+}
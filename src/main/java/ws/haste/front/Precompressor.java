@@ -0,0 +1,264 @@
+package ws.haste.front;
+
+import io.vertx.core.Vertx;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Generates compressed variants of resources that only have an {@code identity} file
+ * <p>
+ * Variants are written to a cache directory, named after the SHA-256 hash of the uncompressed content, so unchanged
+ * files are not compressed again after a restart. A variant that is not meaningfully smaller than the original is
+ * recorded with an empty {@code .none} marker instead. Source files are checked periodically; when one changes, its
+ * generated variants are withdrawn and rebuilt.
+ * <p>
+ * Brotli variants are not generated, as there is no Brotli encoder in the Java standard library.
+ */
+public final class Precompressor {
+    private final Config.@NotNull Precompress options;
+    private final @NotNull Collection<@NotNull FileResource> resources;
+    private final @NotNull ConcurrentHashMap<@NotNull FileResource, @NotNull Generated> generated = new ConcurrentHashMap<>();
+    private final @NotNull AtomicBoolean running = new AtomicBoolean(false);
+    private long timer = -1;
+
+    public Precompressor(final Config.@NotNull Precompress options, final @NotNull Collection<@NotNull FileResource> resources) {
+        this.options = options;
+        this.resources = resources;
+    }
+
+    /**
+     * Precompress all resources on a worker thread, then keep checking the source files for changes
+     */
+    public void start(final @NotNull Vertx vertx) {
+        runInBackground(vertx);
+        if (options.checkInterval() > 0) timer = vertx.setPeriodic(options.checkInterval(), id -> runInBackground(vertx));
+    }
+
+    /**
+     * Stop checking for changes. Variants that have already been generated stay in place.
+     */
+    public void stop(final @NotNull Vertx vertx) {
+        if (timer != -1) vertx.cancelTimer(timer);
+        timer = -1;
+    }
+
+    private void runInBackground(final @NotNull Vertx vertx) {
+        if (!running.compareAndSet(false, true)) return;
+        vertx.executeBlocking(() -> {
+            run();
+            return null;
+        }, false).onComplete(ar -> {
+            running.set(false);
+            if (ar.failed()) Front.getLogger().error("Precompression failed", ar.cause());
+        });
+    }
+
+    /**
+     * Precompress all resources on the current thread
+     */
+    public void run() throws IOException {
+        Files.createDirectories(Path.of(options.directory()));
+        for (final @NotNull FileResource resource : resources) {
+            if (!resource.precompress || !compressible(resource.contentType, options.types())) continue;
+            try {
+                precompress(resource);
+            }
+            catch (final @NotNull IOException e) {
+                Front.getLogger().warn("Could not precompress " + resource.files().get(FileResource.Encoding.Identity) + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Whether a content type is one of the compressible types
+     *
+     * @param types content types; {@code type/*} matches all subtypes
+     */
+    static boolean compressible(final @NotNull String contentType, final @NotNull List<@NotNull String> types) {
+        final @NotNull String type = contentType.split(";", 2)[0].strip().toLowerCase();
+        for (final @NotNull String pattern : types) {
+            if (pattern.endsWith("/*") ? type.startsWith(pattern.substring(0, pattern.length() - 1)) : type.equals(pattern))
+                return true;
+        }
+        return false;
+    }
+
+    private void precompress(final @NotNull FileResource resource) throws IOException {
+        final @Nullable String source = resource.files().get(FileResource.Encoding.Identity);
+        if (source == null) return;
+        final boolean internal = source.startsWith("haste://");
+        final long lastModified = internal ? 0 : new File(source).lastModified();
+        final long size = internal ? 0 : new File(source).length();
+
+        final @Nullable Generated previous = generated.get(resource);
+        if (previous != null && previous.lastModified == lastModified && previous.size == size) return;
+        if (previous != null) for (final @NotNull FileResource.Encoding encoding : previous.encodings)
+            resource.removeFile(encoding);
+
+        final @NotNull String hash = hash(source);
+        final @NotNull Map<FileResource.@NotNull Encoding, @NotNull Path> files = new EnumMap<>(FileResource.Encoding.class);
+        for (final @NotNull Map.Entry<FileResource.@NotNull Encoding, @NotNull String> variant : EXTENSIONS.entrySet()) {
+            final @NotNull FileResource.Encoding encoding = variant.getKey();
+            if (resource.files().containsKey(encoding)) continue;
+            variant(source, hash, encoding, variant.getValue()).ifPresent(file -> files.put(encoding, file));
+        }
+        // the file may have been replaced while it was read; its new content is compressed on the next check
+        if (!internal && (new File(source).lastModified() != lastModified || new File(source).length() != size)) return;
+        final @NotNull Set<FileResource.@NotNull Encoding> encodings = EnumSet.noneOf(FileResource.Encoding.class);
+        for (final @NotNull Map.Entry<FileResource.@NotNull Encoding, @NotNull Path> file : files.entrySet()) {
+            resource.putFile(file.getKey(), file.getValue().toString());
+            encodings.add(file.getKey());
+        }
+        generated.put(resource, new Generated(lastModified, size, encodings));
+    }
+
+    /**
+     * Get the compressed variant of a file from the cache directory, creating it if needed
+     *
+     * @return the path of the variant, or empty if compression does not make the file meaningfully smaller
+     */
+    private @NotNull Optional<@NotNull Path> variant(final @NotNull String source, final @NotNull String hash, final FileResource.@NotNull Encoding encoding, final @NotNull String extension) throws IOException {
+        final @NotNull Path target = Path.of(options.directory(), hash + extension);
+        final @NotNull Path none = Path.of(options.directory(), hash + extension + ".none");
+        if (Files.isRegularFile(target)) return Optional.of(target);
+        if (Files.exists(none)) return Optional.empty();
+
+        final @NotNull Path temp = Files.createTempFile(Path.of(options.directory()), hash, extension + ".tmp");
+        try {
+            final long originalSize;
+            final @NotNull MessageDigest digest = sha256();
+            try (final @NotNull CountingInputStream in = new CountingInputStream(new DigestInputStream(open(source), digest));
+                 final @NotNull OutputStream out = compress(encoding, Files.newOutputStream(temp))) {
+                in.transferTo(out);
+                originalSize = in.count;
+            }
+            // the variant is named after the content it was compressed from, which must be the hashed content
+            if (!HexFormat.of().formatHex(digest.digest()).equals(hash))
+                throw new IOException("file changed while it was being compressed");
+            if (Files.size(temp) > originalSize * options.minRatio()) {
+                Files.createFile(none);
+                return Optional.empty();
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return Optional.of(target);
+        }
+        finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    static @NotNull OutputStream compress(final FileResource.@NotNull Encoding encoding, final @NotNull OutputStream out) throws IOException {
+        return switch (encoding) {
+            case Gzip -> new GZIPOutputStream(out, 65536) {{
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }};
+            case Deflate -> new DeflaterOutputStream(out, new Deflater(Deflater.BEST_COMPRESSION), 65536, false) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    def.end();
+                }
+            };
+            default -> throw new IllegalArgumentException("Cannot compress " + encoding);
+        };
+    }
+
+    private static @NotNull InputStream open(final @NotNull String source) throws IOException {
+        if (!source.startsWith("haste://")) return new FileInputStream(source);
+        return Front.getInternalFile(source).orElseThrow(() -> new IOException("Built-in resource " + source + " not found"));
+    }
+
+    private static @NotNull MessageDigest sha256() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (final @NotNull NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static @NotNull String hash(final @NotNull String source) throws IOException {
+        final @NotNull MessageDigest digest = sha256();
+        try (final @NotNull InputStream in = new DigestInputStream(open(source), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Default compressible content types
+     */
+    public static final @NotNull List<@NotNull String> DEFAULT_TYPES = List.of(
+            "text/*",
+            "application/javascript",
+            "application/json",
+            "application/manifest+json",
+            "application/xml",
+            "application/xhtml+xml",
+            "application/rss+xml",
+            "application/atom+xml",
+            "application/wasm",
+            "image/svg+xml",
+            "image/x-icon",
+            "font/ttf",
+            "font/otf"
+    );
+
+    private static final @NotNull Map<FileResource.@NotNull Encoding, @NotNull String> EXTENSIONS = Map.of(
+            FileResource.Encoding.Gzip, ".gz",
+            FileResource.Encoding.Deflate, ".zz"
+    );
+
+    /**
+     * State of a source file when its variants were generated
+     */
+    private record Generated(long lastModified, long size, @NotNull Set<FileResource.@NotNull Encoding> encodings) {}
+
+    private static final class CountingInputStream extends FilterInputStream {
+        private long count = 0;
+
+        private CountingInputStream(final @NotNull InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b != -1) ++count;
+            return b;
+        }
+
+        @Override
+        public int read(final byte @NotNull [] b, final int off, final int len) throws IOException {
+            final int n = super.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,479 @@
+package ws.haste.front;
+
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.MultiMap;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.core.http.PoolOptions;
+import io.vertx.core.http.RequestOptions;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A resource forwarded to an upstream HTTP server
+ * <p>
+ * Requests go over a pool of keep-alive connections to the upstream, and request and response bodies are streamed
+ * through with backpressure. Responses to {@code GET} requests that a shared cache may store are kept in a small
+ * in-memory micro-cache for a short time: concurrent misses for the same URL wait for the one request in flight
+ * instead of all going to the upstream, and an expired response is still served for a while, while a single background
+ * request revalidates it.
+ */
+public final class ProxyResource extends Resource {
+    /**
+     * Headers that only apply to a single connection and are not forwarded
+     */
+    private static final @NotNull Set<@NotNull String> HOP_BY_HOP = Set.of("connection", "keep-alive", "proxy-authenticate", "proxy-authorization", "proxy-connection", "te", "trailer", "transfer-encoding", "upgrade");
+    /**
+     * Statuses of responses that may be cached without explicit freshness information (RFC 9110, section 15.1)
+     */
+    private static final @NotNull Set<@NotNull Integer> CACHEABLE_STATUSES = Set.of(200, 203, 204, 300, 301, 404, 410);
+
+    public final Config.@NotNull Proxy options;
+    private final @NotNull String host;
+    private final int port;
+    private final boolean ssl;
+    /**
+     * Path of the upstream URL, without a trailing slash
+     */
+    private final @NotNull String basePath;
+    /**
+     * Length of the part of request paths that is replaced by the base path, if the prefix is stripped
+     */
+    private final int prefixLength;
+    private volatile @Nullable HttpClient client;
+
+    /**
+     * Cached responses by URL and {@code Accept-Encoding}, least recently used first
+     */
+    private final @NotNull LinkedHashMap<@NotNull String, @NotNull Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size = 0;
+    /**
+     * Requests to the upstream whose response may be cached, by cache key. Completed with the new entry, or with
+     * {@code null} if the response was not cached.
+     */
+    private final @NotNull ConcurrentHashMap<@NotNull String, @NotNull Future<@Nullable Entry>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * @param url path pattern; with {@link Config.Proxy#stripPrefix()}, the part before a trailing {@code *} is
+     *            replaced by the path of the upstream URL
+     */
+    public ProxyResource(final @NotNull String url, final @NotNull ResponseHeaders headers, final Config.@NotNull Proxy options) {
+        super(url, headers);
+        this.options = options;
+        final @NotNull URI upstream = URI.create(options.upstream());
+        this.ssl = upstream.getScheme().equalsIgnoreCase("https");
+        this.host = upstream.getHost();
+        this.port = upstream.getPort() != -1 ? upstream.getPort() : this.ssl ? 443 : 80;
+        final @NotNull String path = upstream.getRawPath() == null ? "" : upstream.getRawPath();
+        this.basePath = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+        this.prefixLength = options.stripPrefix() && url.endsWith("*") ? url.length() - 1 : 0;
+    }
+
+    /**
+     * Connection pool to the upstream, created on the first request
+     */
+    private @NotNull HttpClient client() {
+        final @Nullable HttpClient client = this.client;
+        if (client != null) return client;
+        synchronized (this) {
+            if (this.client == null) this.client = Front.vertx().createHttpClient(
+                    new HttpClientOptions()
+                            .setKeepAlive(true)
+                            .setKeepAliveTimeout(this.options.keepAliveTimeout())
+                            .setConnectTimeout(this.options.connectTimeout())
+                            .setTcpNoDelay(true)
+                            .setSsl(this.ssl)
+                            .setDecompressionSupported(false),
+                    new PoolOptions().setHttp1MaxSize(this.options.maxConnections()));
+            return this.client;
+        }
+    }
+
+    /**
+     * Close the connections to the upstream
+     */
+    public void close() {
+        final @Nullable HttpClient client = this.client;
+        if (client != null) client.close();
+    }
+
+    @Override
+    public @NotNull Future<@NotNull Void> serve(final @NotNull HttpServerRequest req) {
+        final Config.@NotNull ProxyCache cache = this.options.cache();
+        if (!cache.enabled() || req.method() != HttpMethod.GET && req.method() != HttpMethod.HEAD || req.getHeader(HttpHeaders.AUTHORIZATION) != null || req.getHeader("Range") != null)
+            return forward(req, null, null);
+        final @NotNull String key = key(req);
+        final @Nullable Entry entry = get(key);
+        final long now = System.nanoTime();
+        if (entry != null && now - entry.expires < 0) return send(req, entry);
+        if (entry != null && now - entry.staleUntil < 0) {
+            revalidate(key, entry);
+            return send(req, entry);
+        }
+        // only complete responses are stored, so HEAD requests are never collapsed
+        if (req.method() == HttpMethod.HEAD) return forward(req, null, null);
+
+        final @Nullable Future<@Nullable Entry> inflight = this.pending.get(key);
+        if (inflight != null) return follow(req, inflight);
+        final @NotNull Promise<@Nullable Entry> promise = Promise.promise();
+        final @Nullable Future<@Nullable Entry> raced = this.pending.putIfAbsent(key, promise.future());
+        if (raced != null) return follow(req, raced);
+        promise.future().onComplete(ar -> this.pending.remove(key, promise.future()));
+        return forward(req, key, promise);
+    }
+
+    /**
+     * Serve a request once the request in flight for the same URL completes, from its response if it was cached, or
+     * else from the upstream
+     */
+    private @NotNull Future<@NotNull Void> follow(final @NotNull HttpServerRequest req, final @NotNull Future<@Nullable Entry> inflight) {
+        final @NotNull Context context = Vertx.currentContext();
+        final @NotNull Promise<@NotNull Void> promise = Promise.promise();
+        // the request in flight may complete on another event loop
+        inflight.onComplete(ar -> context.runOnContext(v -> {
+            if (req.response().closed()) promise.fail(new IOException("Connection closed"));
+            else if (ar.succeeded() && ar.result() != null) send(req, ar.result()).onComplete(promise);
+            else forward(req, null, null).onComplete(promise);
+        }));
+        return promise.future();
+    }
+
+    /**
+     * Forward a request to the upstream and stream the response back
+     *
+     * @param key  cache key, if the response may be cached
+     * @param fill completed with the cached entry, or {@code null} if the response was not cached
+     */
+    private @NotNull Future<@NotNull Void> forward(final @NotNull HttpServerRequest req, final @Nullable String key, final @Nullable Promise<@Nullable Entry> fill) {
+        req.pause();
+        final @NotNull Future<@NotNull Void> served = request(req.method(), uri(req))
+                .compose(creq -> {
+                    copyRequestHeaders(req, creq.headers());
+                    // a cached response must be complete, so the client's own validators are not forwarded
+                    if (fill != null) creq.headers().remove(HttpHeaders.IF_NONE_MATCH).remove(HttpHeaders.IF_MODIFIED_SINCE);
+                    return hasBody(req) ? creq.send(req) : creq.send();
+                })
+                .recover(ProxyResource::upstreamError)
+                .compose(cres -> respond(req, cres, key, fill));
+        if (fill != null) served.onFailure(e -> fill.tryComplete(null));
+        return served;
+    }
+
+    private @NotNull Future<@NotNull HttpClientRequest> request(final @NotNull HttpMethod method, final @NotNull String uri) {
+        return client().request(new RequestOptions()
+                .setMethod(method)
+                .setHost(this.host)
+                .setPort(this.port)
+                .setURI(uri)
+                .setIdleTimeout(this.options.timeout()));
+    }
+
+    /**
+     * @return the request's URI on the upstream
+     */
+    private @NotNull String uri(final @NotNull HttpServerRequest req) {
+        final @NotNull String path = req.path();
+        final @NotNull String rest = path.length() >= this.prefixLength ? path.substring(this.prefixLength) : "";
+        final @NotNull StringBuilder uri = new StringBuilder(this.basePath);
+        if (this.prefixLength > 0 && !rest.startsWith("/")) uri.append('/');
+        uri.append(rest);
+        if (uri.isEmpty()) uri.append('/');
+        if (req.query() != null) uri.append('?').append(req.query());
+        return uri.toString();
+    }
+
+    private static <T> @NotNull Future<T> upstreamError(final @NotNull Throwable e) {
+        return Future.failedFuture(new WebServerException(e instanceof TimeoutException ? 504 : 502, e));
+    }
+
+    private static boolean hasBody(final @NotNull HttpServerRequest req) {
+        if (req.version() == HttpVersion.HTTP_2) return !req.isEnded();
+        final @Nullable String contentLength = req.getHeader(HttpHeaders.CONTENT_LENGTH);
+        return req.getHeader(HttpHeaders.TRANSFER_ENCODING) != null || contentLength != null && WebServer.parseLong(contentLength).orElse(0L) > 0;
+    }
+
+    private static void copyRequestHeaders(final @NotNull HttpServerRequest req, final @NotNull MultiMap headers) {
+        final @NotNull Set<@NotNull String> excluded = excluded(req.headers());
+        excluded.add("host");
+        for (final Map.@NotNull Entry<@NotNull String, @NotNull String> header : req.headers())
+            if (!header.getKey().startsWith(":") && !excluded.contains(header.getKey().toLowerCase(Locale.ROOT)))
+                headers.add(header.getKey(), header.getValue());
+        if (req.remoteAddress() != null) {
+            final @Nullable String forwardedFor = req.getHeader("X-Forwarded-For");
+            final @NotNull String address = req.remoteAddress().hostAddress();
+            headers.set("X-Forwarded-For", forwardedFor == null ? address : forwardedFor + ", " + address);
+        }
+        headers.set("X-Forwarded-Proto", req.isSSL() ? "https" : "http");
+        if (req.authority() != null) headers.set("X-Forwarded-Host", req.authority().toString());
+    }
+
+    /**
+     * Hop-by-hop headers, including those listed in the {@code Connection} header, in lower case
+     */
+    private static @NotNull Set<@NotNull String> excluded(final @NotNull MultiMap headers) {
+        final @NotNull Set<@NotNull String> excluded = new HashSet<>(HOP_BY_HOP);
+        for (final @NotNull String connection : headers.getAll(HttpHeaders.CONNECTION))
+            for (final @NotNull String token : connection.split(","))
+                if (!token.isBlank()) excluded.add(token.trim().toLowerCase(Locale.ROOT));
+        return excluded;
+    }
+
+    private static @NotNull MultiMap endToEnd(final @NotNull MultiMap headers) {
+        final @NotNull Set<@NotNull String> excluded = excluded(headers);
+        final @NotNull MultiMap result = MultiMap.caseInsensitiveMultiMap();
+        for (final Map.@NotNull Entry<@NotNull String, @NotNull String> header : headers)
+            if (!excluded.contains(header.getKey().toLowerCase(Locale.ROOT))) result.add(header.getKey(), header.getValue());
+        return result;
+    }
+
+    /**
+     * Stream an upstream response to the client, collecting its body for the cache if it may be stored
+     */
+    private @NotNull Future<@NotNull Void> respond(final @NotNull HttpServerRequest req, final @NotNull HttpClientResponse cres, final @Nullable String key, final @Nullable Promise<@Nullable Entry> fill) {
+        final @NotNull HttpServerResponse res = req.response();
+        final @NotNull MultiMap headers = endToEnd(cres.headers());
+        res.setStatusCode(cres.statusCode());
+        res.headers().addAll(headers);
+        this.headers.apply(res);
+        final boolean body = req.method() != HttpMethod.HEAD && cres.statusCode() != 204 && cres.statusCode() != 304;
+        if (body && res.headers().get(HttpHeaders.CONTENT_LENGTH) == null && req.version() != HttpVersion.HTTP_2) res.setChunked(true);
+
+        final long ttl = fill == null ? 0 : ttl(cres.statusCode(), headers);
+        final long maxEntrySize = this.options.cache().maxEntrySize();
+        final @Nullable String length = headers.get(HttpHeaders.CONTENT_LENGTH);
+        final long contentLength = length == null ? -1 : WebServer.parseLong(length).orElse(Long.MAX_VALUE);
+        final @Nullable Buffer collected = ttl > 0 && contentLength <= maxEntrySize ? Buffer.buffer(contentLength >= 0 ? (int) contentLength : 4096) : null;
+        if (fill != null && collected == null) fill.tryComplete(null);
+
+        final @NotNull Promise<@NotNull Void> promise = Promise.promise();
+        final boolean[] overflow = {false};
+        final boolean[] stalled = {false};
+        cres.exceptionHandler(promise::tryFail);
+        // a client that goes away stops the upstream response, rather than it being read to the end for nobody
+        res.closeHandler(v -> {
+            if (stalled[0]) resumed(res, stalled);
+            promise.tryFail(new IOException("Connection closed"));
+        });
+        cres.handler(chunk -> {
+            if (promise.future().isComplete()) return;
+            if (collected != null && !overflow[0]) {
+                if (collected.length() + chunk.length() > maxEntrySize) overflow[0] = true;
+                else collected.appendBuffer(chunk);
+            }
+            if (!body) return;
+            res.write(chunk);
+            if (!res.writeQueueFull()) return;
+            cres.pause();
+            stalled[0] = true;
+            Metrics.stallStarted();
+            res.drainHandler(v -> {
+                resumed(res, stalled);
+                cres.resume();
+            });
+        });
+        cres.endHandler(v -> {
+            if (promise.future().isComplete()) return;
+            if (fill != null && collected != null) {
+                if (overflow[0]) fill.tryComplete(null);
+                else {
+                    // the buffer is no longer written to, so responses can share it
+                    final @NotNull Entry entry = Entry.of(cres.statusCode(), headers, collected, age(headers), System.nanoTime(), ttl, this.options.cache().stale());
+                    put(Objects.requireNonNull(key), entry);
+                    fill.tryComplete(entry);
+                }
+            }
+            res.end().onComplete(promise);
+        });
+        promise.future().onComplete(ar -> {
+            res.closeHandler(null);
+            // stop reading from the upstream; the connection is not reused
+            if (ar.failed() && !res.ended()) cres.request().reset();
+        });
+        return promise.future();
+    }
+
+    private static void resumed(final @NotNull HttpServerResponse res, final boolean @NotNull [] stalled) {
+        res.drainHandler(null);
+        stalled[0] = false;
+        Metrics.stallEnded();
+    }
+
+    /**
+     * Serve a cached response
+     */
+    private @NotNull Future<@NotNull Void> send(final @NotNull HttpServerRequest req, final @NotNull Entry entry) {
+        final @NotNull HttpServerResponse res = req.response();
+        res.setStatusCode(entry.status);
+        res.headers().addAll(entry.headers);
+        this.headers.apply(res);
+        res.headers().set(HttpHeaders.AGE, String.valueOf(entry.age + (System.nanoTime() - entry.stored) / 1_000_000_000));
+        final @Nullable String etag = entry.headers.get(HttpHeaders.ETAG);
+        final @Nullable String ifNoneMatch = req.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (etag != null && ifNoneMatch != null && matches(ifNoneMatch, etag)) {
+            res.setStatusCode(304);
+            res.headers().remove(HttpHeaders.CONTENT_LENGTH);
+            return res.end();
+        }
+        if (req.method() == HttpMethod.HEAD) return res.end();
+        return res.end(entry.body.slice());
+    }
+
+    private static boolean matches(final @NotNull String ifNoneMatch, final @NotNull String etag) {
+        final @NotNull String opaque = etag.startsWith("W/") ? etag.substring(2) : etag;
+        for (final @NotNull String tag : ifNoneMatch.split(",")) {
+            final @NotNull String t = tag.trim();
+            if (t.equals("*") || (t.startsWith("W/") ? t.substring(2) : t).equals(opaque)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Revalidate a stale entry in the background, unless it is already being revalidated
+     */
+    private void revalidate(final @NotNull String key, final @NotNull Entry entry) {
+        final @NotNull Promise<@Nullable Entry> promise = Promise.promise();
+        if (this.pending.putIfAbsent(key, promise.future()) != null) return;
+        promise.future().onComplete(ar -> this.pending.remove(key, promise.future()));
+        request(HttpMethod.GET, key.substring(key.indexOf(' ') + 1))
+                .compose(creq -> {
+                    creq.headers().addAll(requestHeaders(key));
+                    if (entry.headers.get(HttpHeaders.ETAG) != null) creq.headers().set(HttpHeaders.IF_NONE_MATCH, entry.headers.get(HttpHeaders.ETAG));
+                    if (entry.headers.get(HttpHeaders.LAST_MODIFIED) != null) creq.headers().set(HttpHeaders.IF_MODIFIED_SINCE, entry.headers.get(HttpHeaders.LAST_MODIFIED));
+                    return creq.send();
+                })
+                .compose(cres -> {
+                    final @NotNull MultiMap headers = endToEnd(cres.headers());
+                    if (cres.statusCode() == 304) {
+                        // the validated response keeps its body; updated headers replace the stored ones
+                        final @NotNull MultiMap merged = MultiMap.caseInsensitiveMultiMap().addAll(entry.headers);
+                        for (final @NotNull String name : headers.names()) if (!name.equalsIgnoreCase(HttpHeaders.CONTENT_LENGTH.toString())) merged.set(name, headers.getAll(name));
+                        final long ttl = ttl(entry.status, merged);
+                        return cres.end().map(v -> ttl > 0 ? Entry.of(entry.status, merged, entry.body, age(headers), System.nanoTime(), ttl, this.options.cache().stale()) : null);
+                    }
+                    final long ttl = ttl(cres.statusCode(), headers);
+                    return cres.body().map(body -> ttl > 0 && body.length() <= this.options.cache().maxEntrySize() ? Entry.of(cres.statusCode(), headers, body, age(headers), System.nanoTime(), ttl, this.options.cache().stale()) : null);
+                })
+                .onComplete(ar -> {
+                    if (ar.succeeded() && ar.result() != null) put(key, ar.result());
+                    // an entry that can no longer be cached is dropped once it expires
+                    else if (ar.succeeded()) remove(key, entry);
+                    else Front.getLogger().warn("Could not revalidate " + key + ": " + ar.cause().getMessage());
+                    promise.tryComplete(ar.succeeded() ? ar.result() : null);
+                });
+    }
+
+    /**
+     * @return how long a response may be cached in nanoseconds, or 0 if it may not be cached
+     */
+    private long ttl(final int status, final @NotNull MultiMap headers) {
+        if (!CACHEABLE_STATUSES.contains(status) || headers.contains(HttpHeaders.SET_COOKIE)) return 0;
+        final @Nullable String vary = headers.get(HttpHeaders.VARY);
+        if (vary != null) for (final @NotNull String name : vary.split(","))
+            if (!name.isBlank() && !name.trim().equalsIgnoreCase("Accept-Encoding")) return 0;
+        long ttl = this.options.cache().ttl();
+        long maxAge = -1;
+        long sMaxAge = -1;
+        for (final @NotNull String cacheControl : headers.getAll(HttpHeaders.CACHE_CONTROL))
+            for (final @NotNull String directive : cacheControl.split(",")) {
+                final @NotNull String d = directive.trim().toLowerCase(Locale.ROOT);
+                if (d.equals("no-store") || d.equals("no-cache") || d.equals("private")) return 0;
+                if (d.startsWith("max-age=")) maxAge = WebServer.parseLong(d.substring(8)).orElse(0L);
+                if (d.startsWith("s-maxage=")) sMaxAge = WebServer.parseLong(d.substring(9)).orElse(0L);
+            }
+        final long age = sMaxAge >= 0 ? sMaxAge : maxAge;
+        if (age >= 0) ttl = Math.min(ttl, age * 1000);
+        return ttl * 1_000_000;
+    }
+
+    private static long age(final @NotNull MultiMap headers) {
+        final @Nullable String age = headers.get(HttpHeaders.AGE);
+        return age == null ? 0 : Math.max(0, WebServer.parseLong(age).orElse(0L));
+    }
+
+    /**
+     * Cache key: the URL and, as responses may vary by it, the {@code Accept-Encoding} of the request
+     */
+    private @NotNull String key(final @NotNull HttpServerRequest req) {
+        final @Nullable String acceptEncoding = req.getHeader(HttpHeaders.ACCEPT_ENCODING);
+        return (acceptEncoding == null ? "" : acceptEncoding.replace(" ", "")) + " " + uri(req);
+    }
+
+    private synchronized @Nullable Entry get(final @NotNull String key) {
+        final @Nullable Entry entry = this.entries.get(key);
+        if (entry != null && System.nanoTime() - entry.staleUntil >= 0) {
+            this.entries.remove(key);
+            this.size -= entry.body.length();
+            return null;
+        }
+        return entry;
+    }
+
+    private synchronized void put(final @NotNull String key, final @NotNull Entry entry) {
+        final @Nullable Entry previous = this.entries.put(key, entry);
+        if (previous != null) this.size -= previous.body.length();
+        this.size += entry.body.length();
+        final @NotNull Iterator<@NotNull Entry> it = this.entries.values().iterator();
+        while (this.size > this.options.cache().maxSize() && it.hasNext()) {
+            this.size -= it.next().body.length();
+            it.remove();
+        }
+    }
+
+    private synchronized void remove(final @NotNull String key, final @NotNull Entry entry) {
+        final @Nullable Entry current = this.entries.get(key);
+        if (current == null || current.body != entry.body) return;
+        this.entries.remove(key);
+        this.size -= entry.body.length();
+    }
+
+    /**
+     * Headers of the background request that revalidates an entry
+     */
+    private static @NotNull MultiMap requestHeaders(final @NotNull String key) {
+        final @NotNull MultiMap headers = MultiMap.caseInsensitiveMultiMap();
+        final @NotNull String acceptEncoding = key.substring(0, key.indexOf(' '));
+        if (!acceptEncoding.isEmpty()) headers.set(HttpHeaders.ACCEPT_ENCODING, acceptEncoding);
+        return headers;
+    }
+
+    /**
+     * A cached response
+     *
+     * @param age        {@code Age} of the response when it was received, in seconds
+     * @param stored     {@link System#nanoTime()} when the response was received
+     * @param expires    {@link System#nanoTime()} until which the response is fresh
+     * @param staleUntil {@link System#nanoTime()} until which the response may be served while it is revalidated
+     */
+    private record Entry(int status, @NotNull MultiMap headers, @NotNull Buffer body, long age, long stored, long expires, long staleUntil) {
+        /**
+         * @param ttl   nanoseconds for which the response is fresh
+         * @param stale milliseconds for which the response may be served once it has expired
+         */
+        static @NotNull Entry of(final int status, final @NotNull MultiMap headers, final @NotNull Buffer body, final long age, final long stored, final long ttl, final long stale) {
+            return new Entry(status, headers, body, age, stored, stored + ttl, stored + ttl + stale * 1_000_000);
+        }
+    }
+}
@@ -8,7 +8,6 @@ import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Optional;
-import java.util.stream.Collectors;
 
 public class Ranges {
     public final @NotNull String unit;
@@ -19,9 +18,33 @@ public class Ranges {
         this.ranges = ranges;
     }
 
+    /**
+     * Check that every range is syntactically valid. A header with an invalid range must be ignored as a whole.
+     */
+    public boolean valid() {
+        for (final @NotNull Range range : this.ranges)
+            if (!range.valid()) return false;
+        return true;
+    }
+
     public @NotNull OptimisedRanges optimiseRanges(final long size) {
-        final @NotNull List<@NotNull AbsoluteRange> ranges = Arrays.stream(this.ranges).map(r -> r.toAbsoluteRange(size)).collect(Collectors.toList());
-        if (ranges.size() <= 1) return new OptimisedRanges(this.unit, ranges.toArray(new AbsoluteRange[0]), size);
+        return optimiseRanges(size, 0);
+    }
+
+    /**
+     * Resolve the ranges against a representation, drop the unsatisfiable ones and merge those that overlap, are
+     * adjacent or are separated by at most {@code coalesceGap} bytes
+     */
+    public @NotNull OptimisedRanges optimiseRanges(final long size, final long coalesceGap) {
+        final @NotNull List<@NotNull AbsoluteRange> ranges = new ArrayList<>(this.ranges.length);
+        long requestedLength = 0;
+        for (final @NotNull Range r : this.ranges) {
+            final @NotNull AbsoluteRange range = r.toAbsoluteRange(size);
+            if (!range.satisfiable()) continue;
+            ranges.add(range);
+            requestedLength += range.end - range.start + 1;
+        }
+        if (ranges.size() <= 1) return new OptimisedRanges(this.unit, ranges.toArray(new AbsoluteRange[0]), size, requestedLength);
 
         // Sort the ranges based on the start value
         ranges.sort(Comparator.comparingLong(a -> a.start));
@@ -32,8 +55,8 @@ public class Ranges {
         for (int i = 1; i < ranges.size(); ++i) {
             @NotNull AbsoluteRange nextRange = ranges.get(i);
 
-            // Check if the next range overlaps or is adjacent to the current range
-            if (nextRange.start <= currentRange.end) {
+            // Check if the next range overlaps, is adjacent to or is close enough to the current range
+            if (nextRange.start - currentRange.end <= coalesceGap + 1) {
                 // Merge the ranges
                 currentRange.end = Math.max(currentRange.end, nextRange.end);
             }
@@ -48,25 +71,25 @@ public class Ranges {
         // Add the last range
         optimizedRanges.add(currentRange);
 
-        return new OptimisedRanges(this.unit, optimizedRanges.toArray(new AbsoluteRange[0]), size);
+        return new OptimisedRanges(this.unit, optimizedRanges.toArray(new AbsoluteRange[0]), size, requestedLength);
     }
 
     public static class OptimisedRanges extends Ranges {
+        /**
+         * Satisfiable ranges in ascending order, without overlaps
+         */
         public @NotNull AbsoluteRange @NotNull [] ranges;
         public final long size;
-        public OptimisedRanges(final @NotNull String unit, final @NotNull AbsoluteRange @NotNull [] ranges, final long size) {
+        /**
+         * Total length of the satisfiable ranges as requested, before merging; more than {@link #size} if they overlap
+         */
+        public final long requestedLength;
+
+        public OptimisedRanges(final @NotNull String unit, final @NotNull AbsoluteRange @NotNull [] ranges, final long size, final long requestedLength) {
             super(unit, ranges);
             this.ranges = ranges;
             this.size = size;
-        }
-
-        /**
-         * Check if all ranges can be satisfied
-         */
-        public boolean allSatisfiable() {
-            for (final @NotNull AbsoluteRange range : this.ranges)
-                if (!range.satisfiable()) return false;
-            return true;
+            this.requestedLength = requestedLength;
         }
     }
 
@@ -89,11 +112,25 @@ public class Ranges {
             return new AbsoluteRange(this.start, this.end, size);
         }
 
+        /**
+         * Either {@code first-last} with {@code first <= last}, {@code first-} or a suffix {@code -length}
+         */
+        public boolean valid() {
+            if (this.start == null) return this.end != null && this.end >= 0;
+            return this.start >= 0 && (this.end == null || this.end >= this.start);
+        }
+
+        /**
+         * Parse a single range. A range that cannot be parsed is returned as an invalid range.
+         */
         public static @NotNull Range fromString(final @NotNull String rangeHeader) {
             final @NotNull String @NotNull [] parts = rangeHeader.strip().split("-", 2);
             if (parts.length != 2) return new Range(null, null);
-            final @NotNull Optional<@NotNull Long> start = WebServer.parseLong(parts[0].strip());
-            final @NotNull Optional<@NotNull Long> end = WebServer.parseLong(parts[1].strip());
+            final @NotNull String startString = parts[0].strip();
+            final @NotNull String endString = parts[1].strip();
+            final @NotNull Optional<@NotNull Long> start = WebServer.parseLong(startString);
+            final @NotNull Optional<@NotNull Long> end = WebServer.parseLong(endString);
+            if (start.isEmpty() && !startString.isEmpty() || end.isEmpty() && !endString.isEmpty()) return new Range(null, null);
             return new Range(start.orElse(null), end.orElse(null));
         }
     }
@@ -103,20 +140,28 @@ public class Ranges {
         long end;
         final long size;
 
+        /**
+         * Resolve a range against a representation of {@code size} bytes: a suffix range selects the last bytes and a
+         * last position past the end is clamped to the end
+         */
         public AbsoluteRange(final @Nullable Long start, final @Nullable Long end, final long size) {
             super(start, end);
-            final long s = super.start == null ? 0 : super.start;
-            final long e = super.end == null ? size - 1 : super.end;
-            this.start = Math.min(s, e);
-            this.end = Math.max(s, e);
+            if (start == null) {
+                this.start = Math.max(0, size - (end == null ? 0 : end));
+                this.end = end == null || end == 0 ? -1 : size - 1;
+            }
+            else {
+                this.start = start;
+                this.end = end == null ? size - 1 : Math.min(end, size - 1);
+            }
             this.size = size;
         }
 
         /**
-         * Check if this range is satisfiable
+         * Check if this range is satisfiable, i.e. selects at least one byte of the representation
          */
         public boolean satisfiable() {
-            return this.start >= 0 && this.start < this.size && this.end >= 0 && this.end < this.size;
+            return this.start >= 0 && this.start < this.size && this.end >= this.start;
         }
     }
 }
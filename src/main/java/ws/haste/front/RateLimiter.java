@@ -0,0 +1,293 @@
+package ws.haste.front;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpServerResponse;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits on the requests, connections and large transfers of each client (remote IP address)
+ * <p>
+ * The request rate of each client is a token bucket kept as a single timestamp (the generic cell rate algorithm): a
+ * request takes a token with one compare-and-set, without locks or timers per client. Clients are spread over shards,
+ * and a periodic sweep drops the clients of one shard at a time that have been idle for the expiry time and whose
+ * bucket is full again, so forgetting a client never changes its limits.
+ */
+public final class RateLimiter {
+    private static final int SHARDS = 64;
+
+    public final Config.@NotNull Limits limits;
+    /**
+     * Nanoseconds per token, or 0 if the request rate is not limited
+     */
+    private final long interval;
+    /**
+     * How far ahead of the current time the bucket may be drawn, in nanoseconds
+     */
+    private final long tolerance;
+    private final @NotNull ConcurrentHashMap<@NotNull String, @NotNull Client> @NotNull [] shards;
+    /**
+     * Large transfers of all clients
+     */
+    private final @NotNull AtomicInteger transfers = new AtomicInteger();
+    private int nextShard = 0;
+    private long timer = -1;
+
+    @SuppressWarnings("unchecked")
+    public RateLimiter(final Config.@NotNull Limits limits) {
+        this.limits = limits;
+        this.interval = limits.requestsPerSecond() > 0 ? Math.max(1, (long) (1_000_000_000 / limits.requestsPerSecond())) : 0;
+        this.tolerance = this.interval * (limits.burst() - 1);
+        this.shards = (ConcurrentHashMap<@NotNull String, @NotNull Client>[]) new ConcurrentHashMap<?, ?>[SHARDS];
+        for (int i = 0; i < SHARDS; ++i) this.shards[i] = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Start expiring idle clients
+     */
+    public void start(final @NotNull Vertx vertx) {
+        if (this.timer != -1) return;
+        this.timer = vertx.setPeriodic(Math.max(100, this.limits.expiry() / SHARDS), id -> sweep());
+    }
+
+    public void stop(final @NotNull Vertx vertx) {
+        if (this.timer != -1) vertx.cancelTimer(this.timer);
+        this.timer = -1;
+    }
+
+    /**
+     * Number of clients currently tracked
+     */
+    public int size() {
+        int size = 0;
+        for (final @NotNull ConcurrentHashMap<@NotNull String, @NotNull Client> shard : this.shards) size += shard.size();
+        return size;
+    }
+
+    /**
+     * Get the state of a client, creating it on its first request
+     *
+     * @param address remote IP address
+     */
+    public @NotNull Client client(final @NotNull String address) {
+        final @NotNull ConcurrentHashMap<@NotNull String, @NotNull Client> shard = this.shards[(address.hashCode() & 0x7fffffff) % SHARDS];
+        @Nullable Client client = shard.get(address);
+        if (client == null) client = shard.computeIfAbsent(address, a -> new Client());
+        client.lastSeen = System.nanoTime();
+        return client;
+    }
+
+    private void sweep() {
+        final @NotNull ConcurrentHashMap<@NotNull String, @NotNull Client> shard = this.shards[this.nextShard];
+        this.nextShard = (this.nextShard + 1) % SHARDS;
+        final long now = System.nanoTime();
+        final long expiry = this.limits.expiry() * 1_000_000;
+        // a client looked up concurrently may still be removed; it then starts over with a full bucket
+        shard.values().removeIf(c -> now - c.lastSeen > expiry && c.connections.get() == 0 && c.transfers.get() == 0 && c.tat.get() - now <= 0);
+    }
+
+    /**
+     * Check a request against the limits of the server and of the resource, and take a token from both. A request
+     * refused by either limit takes nothing from the other.
+     * <p>
+     * If large transfers are limited, the request holds a transfer slot from now on, so concurrent requests cannot all
+     * pass the check before any of them is counted. The slot is given back once the response headers show that it is
+     * not a large transfer, or once the response has been sent.
+     *
+     * @param limiter         limits of the server, if any
+     * @param resourceLimiter limits of the resource, if any
+     * @param address         remote IP address
+     * @return the transfer to track with {@link Transfer#start(HttpServerResponse)} and {@link Transfer#end()}, or
+     * {@code null} if no transfers are limited
+     * @throws WebServerException 429 if the client exceeds a limit, or 503 if the resource or server has too many
+     *                            large transfers in progress, with a {@code Retry-After} header
+     */
+    public static @Nullable Transfer admit(final @Nullable RateLimiter limiter, final @Nullable RateLimiter resourceLimiter, final @NotNull String address) throws WebServerException {
+        final @Nullable Client client = limiter == null ? null : limiter.client(address);
+        final @Nullable Client resourceClient = resourceLimiter == null ? null : resourceLimiter.client(address);
+        if (limiter != null) limiter.check(Objects.requireNonNull(client));
+        if (resourceLimiter != null) resourceLimiter.check(Objects.requireNonNull(resourceClient));
+
+        final @Nullable AtomicInteger @NotNull [] counters = {
+                client != null && limiter.limits.transfers() > 0 ? client.transfers : null,
+                limiter != null && limiter.limits.totalTransfers() > 0 ? limiter.transfers : null,
+                resourceClient != null && resourceLimiter.limits.transfers() > 0 ? resourceClient.transfers : null,
+                resourceLimiter != null && resourceLimiter.limits.totalTransfers() > 0 ? resourceLimiter.transfers : null
+        };
+        long transferSize = Long.MAX_VALUE;
+        if (counters[0] != null || counters[1] != null) transferSize = limiter.limits.transferSize();
+        if (counters[2] != null || counters[3] != null) transferSize = Math.min(transferSize, resourceLimiter.limits.transferSize());
+        final @Nullable Transfer transfer = transferSize == Long.MAX_VALUE ? null : new Transfer(counters, new int[]{
+                limiter == null ? 0 : limiter.limits.transfers(),
+                limiter == null ? 0 : limiter.limits.totalTransfers(),
+                resourceLimiter == null ? 0 : resourceLimiter.limits.transfers(),
+                resourceLimiter == null ? 0 : resourceLimiter.limits.totalTransfers()
+        }, transferSize);
+        if (transfer != null) transfer.reserve();
+
+        // another request of the client may have taken the last token since the check
+        try {
+            if (limiter != null) limiter.take(Objects.requireNonNull(client));
+            if (resourceLimiter != null) try {
+                resourceLimiter.take(Objects.requireNonNull(resourceClient));
+            }
+            catch (final @NotNull WebServerException e) {
+                if (limiter != null) limiter.refund(Objects.requireNonNull(client));
+                throw e;
+            }
+        }
+        catch (final @NotNull WebServerException e) {
+            if (transfer != null) transfer.end();
+            throw e;
+        }
+        return transfer;
+    }
+
+    /**
+     * Check that a client has a token left, without taking it
+     */
+    private void check(final @NotNull Client client) throws WebServerException {
+        if (this.interval == 0) return;
+        final long wait = client.wait(this.interval, this.tolerance);
+        if (wait > 0) throw limited(429, (wait + 999_999_999) / 1_000_000_000);
+    }
+
+    private void take(final @NotNull Client client) throws WebServerException {
+        if (this.interval == 0) return;
+        final long wait = client.take(this.interval, this.tolerance);
+        if (wait > 0) throw limited(429, (wait + 999_999_999) / 1_000_000_000);
+    }
+
+    /**
+     * Give back a token taken for a request that was refused by another limit
+     */
+    private void refund(final @NotNull Client client) {
+        if (this.interval > 0) client.tat.addAndGet(-this.interval);
+    }
+
+    /**
+     * Error for a request over a limit
+     *
+     * @param retryAfter seconds after which the client may try again
+     */
+    public static @NotNull WebServerException limited(final int status, final long retryAfter) {
+        return new WebServerException(status, new HashMap<>() {{
+            put("Retry-After", String.valueOf(retryAfter));
+        }});
+    }
+
+    /**
+     * State of a client
+     */
+    public static final class Client {
+        /**
+         * Theoretical arrival time: the time at which the bucket is full again, in {@link System#nanoTime()}
+         */
+        private final @NotNull AtomicLong tat = new AtomicLong(System.nanoTime());
+        public final @NotNull AtomicInteger connections = new AtomicInteger();
+        public final @NotNull AtomicInteger transfers = new AtomicInteger();
+        private volatile long lastSeen;
+
+        /**
+         * Number of nanoseconds until a token is available, or 0 if one is available now
+         */
+        private long wait(final long interval, final long tolerance) {
+            final long now = System.nanoTime();
+            final long tat = this.tat.get();
+            return Math.max(0, (tat - now > 0 ? tat : now) - now - tolerance);
+        }
+
+        /**
+         * Take a token
+         *
+         * @return 0 if a token was taken, or the number of nanoseconds until one is available
+         */
+        private long take(final long interval, final long tolerance) {
+            final long now = System.nanoTime();
+            while (true) {
+                final long tat = this.tat.get();
+                final long next = (tat - now > 0 ? tat : now) + interval;
+                final long wait = next - now - interval - tolerance;
+                if (wait > 0) return wait;
+                if (this.tat.compareAndSet(tat, next)) return 0;
+            }
+        }
+    }
+
+    /**
+     * A slot for a large transfer, held from the admission of a request until its response turns out to be small, or
+     * has been sent
+     */
+    public static final class Transfer {
+        /**
+         * Transfers of the client and of all clients for the server, then for the resource; {@code null} if not limited
+         */
+        private final @Nullable AtomicInteger @NotNull [] counters;
+        /**
+         * Maximum of each counter
+         */
+        private final int @NotNull [] limits;
+        private final long size;
+        private boolean held = false;
+        private boolean ended = false;
+
+        private Transfer(final @Nullable AtomicInteger @NotNull [] counters, final int @NotNull [] limits, final long size) {
+            this.counters = counters;
+            this.limits = limits;
+            this.size = size;
+        }
+
+        /**
+         * Take a slot from each counter, or none if one of them is full
+         *
+         * @throws WebServerException 429 if the client, or 503 if the server or resource, has too many large transfers
+         *                            in progress
+         */
+        private void reserve() throws WebServerException {
+            for (int i = 0; i < this.counters.length; ++i) {
+                final @Nullable AtomicInteger counter = this.counters[i];
+                if (counter == null || counter.incrementAndGet() <= this.limits[i]) continue;
+                counter.decrementAndGet();
+                for (int j = 0; j < i; ++j) if (this.counters[j] != null) this.counters[j].decrementAndGet();
+                this.ended = true;
+                // even indices are the limits of a single client
+                throw limited(i % 2 == 0 ? 429 : 503, 1);
+            }
+            this.held = true;
+        }
+
+        /**
+         * Give the slot back unless the response is a successful one of at least the transfer size. Called once its
+         * headers are complete.
+         */
+        public void start(final @NotNull HttpServerResponse res) {
+            if (!this.held) return;
+            if (res.getStatusCode() == 200 || res.getStatusCode() == 206) {
+                final @Nullable String contentLength = res.headers().get(HttpHeaders.CONTENT_LENGTH);
+                if (contentLength != null && WebServer.parseLong(contentLength).orElse(0L) >= this.size) return;
+            }
+            release();
+        }
+
+        /**
+         * Give the slot back, once the response has been sent or has failed
+         */
+        public void end() {
+            if (this.ended) return;
+            this.ended = true;
+            if (this.held) release();
+        }
+
+        private void release() {
+            this.held = false;
+            for (final @Nullable AtomicInteger counter : this.counters) if (counter != null) counter.decrementAndGet();
+        }
+    }
+}
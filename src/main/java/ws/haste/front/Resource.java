@@ -1,29 +1,35 @@
 package ws.haste.front;
 
+import io.vertx.core.Future;
+import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.http.HttpServerResponse;
 import org.jetbrains.annotations.NotNull;
-import org.jetbrains.annotations.Nullable;
-
-import java.util.HashMap;
-import java.util.Map;
 
 public class Resource {
     public final @NotNull String url;
-    public final @NotNull HashMap<@NotNull String, @Nullable String> headers;
-    public Resource(final @NotNull String url, final @NotNull HashMap<@NotNull String, @Nullable String> headers) {
+    /**
+     * Headers of this resource, including the global headers
+     */
+    public final @NotNull ResponseHeaders headers;
+    public final Metrics.@NotNull ResourceMetrics metrics;
+    public Resource(final @NotNull String url, final @NotNull ResponseHeaders headers) {
         this.url = url;
         this.headers = headers;
+        this.metrics = Metrics.resource(url);
     }
 
     public void writeHead(@NotNull HttpServerResponse res) {
-        for (final @NotNull Map.Entry<@NotNull String, @Nullable String> header : headers.entrySet()) {
-            if (header.getValue() == null) res.headers().remove(header.getKey());
-            else res.headers().set(header.getKey(), header.getValue());
-        }
+        this.headers.apply(res);
     }
 
-    public void serve(@NotNull HttpServerResponse res) {
-        this.writeHead(res);
-        res.end();
+    /**
+     * Serve this resource
+     *
+     * @return a future completed once the response has been fully written, or failed with a
+     * {@link WebServerException} (or an I/O error) if it could not be served
+     */
+    public @NotNull Future<@NotNull Void> serve(final @NotNull HttpServerRequest req) throws WebServerException {
+        this.writeHead(req.response());
+        return req.response().end();
     }
 }
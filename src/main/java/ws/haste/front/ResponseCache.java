@@ -0,0 +1,139 @@
+package ws.haste.front;
+
+import io.vertx.core.Future;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.FileSystem;
+import io.vertx.core.http.HttpHeaders;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * In-memory cache of file contents
+ * <p>
+ * Each file (i.e. each encoding variant of a resource) is held as a single read-only buffer, so full and range
+ * responses can be sent as zero-copy slices. Entries are evicted in least-recently-used order once the total size
+ * exceeds the budget and are revalidated against the file's modification time and size.
+ */
+public final class ResponseCache {
+    public final long maxSize;
+    public final long maxEntrySize;
+    public final long revalidateInterval;
+
+    private final @NotNull LinkedHashMap<@NotNull String, @NotNull Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size = 0;
+
+    /**
+     * @param maxSize            total number of bytes that may be held in memory
+     * @param maxEntrySize       files larger than this many bytes are never cached
+     * @param revalidateInterval milliseconds after which an entry is checked against the file on disk
+     */
+    public ResponseCache(final long maxSize, final long maxEntrySize, final long revalidateInterval) {
+        this.maxSize = maxSize;
+        this.maxEntrySize = Math.min(maxEntrySize, maxSize);
+        this.revalidateInterval = revalidateInterval;
+    }
+
+    public boolean enabled() {
+        return this.maxSize > 0 && this.maxEntrySize > 0;
+    }
+
+    /**
+     * Get the cached contents of a file, loading it if needed. The file system is only accessed asynchronously.
+     *
+     * @param filePath path of the file on disk
+     * @return the cached entry, or empty if the file is not cacheable or cannot be read
+     */
+    public @NotNull Future<@NotNull Optional<@NotNull Entry>> get(final @NotNull String filePath) {
+        if (!enabled()) return Future.succeededFuture(Optional.empty());
+        final long now = System.currentTimeMillis();
+        final @Nullable Entry cached;
+        synchronized (this) {
+            cached = this.entries.get(filePath);
+        }
+        if (cached != null && now - cached.validatedAt < this.revalidateInterval) return Future.succeededFuture(cached.optional);
+
+        final @NotNull FileSystem fs = Front.vertx().fileSystem();
+        return fs.props(filePath).compose(props -> {
+            if (cached != null && cached.lastModified == props.lastModifiedTime() && cached.size() == props.size()) {
+                cached.validatedAt = now;
+                return Future.succeededFuture(cached.optional);
+            }
+            if (cached != null) remove(filePath, cached);
+            if (!props.isRegularFile() || props.size() > this.maxEntrySize) return Future.succeededFuture(Optional.<@NotNull Entry>empty());
+            return fs.readFile(filePath).map(buffer -> {
+                if (buffer.length() > this.maxEntrySize) return Optional.<@NotNull Entry>empty();
+                final @NotNull Entry entry = new Entry(Buffers.readOnly(buffer), props.lastModifiedTime(), now);
+                put(filePath, entry);
+                return entry.optional;
+            });
+        }).otherwise(Optional.empty());
+    }
+
+    /**
+     * Drop a file from the cache
+     */
+    public synchronized void invalidate(final @NotNull String filePath) {
+        final @Nullable Entry entry = this.entries.remove(filePath);
+        if (entry != null) this.size -= entry.size();
+    }
+
+    private synchronized void remove(final @NotNull String filePath, final @NotNull Entry entry) {
+        if (this.entries.remove(filePath, entry)) this.size -= entry.size();
+    }
+
+    private synchronized void put(final @NotNull String filePath, final @NotNull Entry entry) {
+        final @Nullable Entry previous = this.entries.put(filePath, entry);
+        if (previous != null) this.size -= previous.size();
+        this.size += entry.size();
+        final @NotNull Iterator<Map.@NotNull Entry<@NotNull String, @NotNull Entry>> it = this.entries.entrySet().iterator();
+        while (this.size > this.maxSize && it.hasNext()) {
+            final @NotNull Entry eldest = it.next().getValue();
+            if (eldest == entry) continue;
+            it.remove();
+            this.size -= eldest.size();
+        }
+    }
+
+    public static final class Entry {
+        public final @NotNull Buffer buffer;
+        /**
+         * Pre-encoded {@code Content-Length} of the whole file
+         */
+        public final @NotNull CharSequence contentLength;
+        public final long lastModified;
+        private volatile long validatedAt;
+        private final @NotNull Optional<@NotNull Entry> optional = Optional.of(this);
+
+        private Entry(final @NotNull Buffer buffer, final long lastModified, final long validatedAt) {
+            this.buffer = buffer;
+            this.contentLength = HttpHeaders.createOptimized(String.valueOf(buffer.length()));
+            this.lastModified = lastModified;
+            this.validatedAt = validatedAt;
+        }
+
+        /**
+         * An entry that is not held by a cache, for contents loaded up front
+         *
+         * @param bytes contents; must not be modified afterwards
+         */
+        public static @NotNull Entry of(final byte @NotNull [] bytes) {
+            return new Entry(Buffers.readOnly(bytes), 0, 0);
+        }
+
+        public long size() {
+            return this.buffer.length();
+        }
+
+        /**
+         * Zero-copy view of an inclusive byte range
+         */
+        public @NotNull Buffer slice(final long start, final long end) {
+            return this.buffer.slice((int) start, (int) end + 1);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package ws.haste.front;
+
+import io.vertx.core.MultiMap;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpServerResponse;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Immutable block of response headers, assembled when the configuration is loaded
+ * <p>
+ * Names and values are pre-encoded {@link io.netty.util.AsciiString}s, so adding them to a response neither encodes
+ * nor hashes them again. A block also adds the {@code Date} header, whose value is formatted at most once per second.
+ */
+public final class ResponseHeaders {
+    public static final @NotNull ResponseHeaders EMPTY = new ResponseHeaders(new LinkedHashMap<>());
+
+    private static volatile @NotNull CachedDate date = new CachedDate(System.currentTimeMillis() / 1000);
+
+    private final @NotNull CharSequence @NotNull [] names;
+    private final @NotNull CharSequence @NotNull [] values;
+    /**
+     * Headers by lower-case name, to derive other blocks from this one
+     */
+    private final @NotNull LinkedHashMap<@NotNull String, Map.@NotNull Entry<@NotNull String, @NotNull String>> headers;
+
+    private ResponseHeaders(final @NotNull LinkedHashMap<@NotNull String, Map.@NotNull Entry<@NotNull String, @NotNull String>> headers) {
+        this.headers = headers;
+        this.names = new CharSequence[headers.size()];
+        this.values = new CharSequence[headers.size()];
+        int i = 0;
+        for (final Map.@NotNull Entry<@NotNull String, @NotNull String> header : headers.values()) {
+            this.names[i] = HttpHeaders.createOptimized(header.getKey());
+            this.values[i] = HttpHeaders.createOptimized(header.getValue());
+            ++i;
+        }
+    }
+
+    /**
+     * Derive a block with a header set or, if {@code value} is {@code null}, removed
+     */
+    public @NotNull ResponseHeaders with(final @NotNull String name, final @Nullable String value) {
+        final @NotNull HashMap<@NotNull String, @Nullable String> header = new HashMap<>();
+        header.put(name, value);
+        return with(header);
+    }
+
+    /**
+     * Derive a block with several headers set, or removed where the value is {@code null}
+     */
+    public @NotNull ResponseHeaders with(final @Nullable Map<@NotNull String, @Nullable String> headers) {
+        if (headers == null || headers.isEmpty()) return this;
+        final @NotNull LinkedHashMap<@NotNull String, Map.@NotNull Entry<@NotNull String, @NotNull String>> merged = new LinkedHashMap<>(this.headers);
+        for (final Map.@NotNull Entry<@NotNull String, @Nullable String> header : headers.entrySet()) {
+            final @NotNull String key = header.getKey().toLowerCase(Locale.ROOT);
+            if (header.getValue() == null) merged.remove(key);
+            else merged.put(key, Map.entry(header.getKey(), header.getValue()));
+        }
+        return new ResponseHeaders(merged);
+    }
+
+    /**
+     * Add the headers and the {@code Date} to a response. Headers that the response already has are replaced.
+     */
+    public void apply(final @NotNull HttpServerResponse res) {
+        final @NotNull MultiMap headers = res.headers();
+        if (headers.isEmpty()) for (int i = 0; i < this.names.length; ++i) headers.add(this.names[i], this.values[i]);
+        else for (int i = 0; i < this.names.length; ++i) headers.set(this.names[i], this.values[i]);
+        headers.set(HttpHeaders.DATE, date());
+    }
+
+    /**
+     * The current time as an HTTP date, formatted once per second
+     */
+    public static @NotNull CharSequence date() {
+        final @NotNull CachedDate cached = date;
+        final long second = System.currentTimeMillis() / 1000;
+        if (cached.second == second) return cached.value;
+        // concurrent refreshes format the same value, so the race is harmless
+        final @NotNull CachedDate refreshed = new CachedDate(second);
+        date = refreshed;
+        return refreshed.value;
+    }
+
+    private static final class CachedDate {
+        private final long second;
+        private final @NotNull CharSequence value;
+
+        private CachedDate(final long second) {
+            this.second = second;
+            this.value = HttpHeaders.createOptimized(Validators.formatDate(second * 1000));
+        }
+    }
+}
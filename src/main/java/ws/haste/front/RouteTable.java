@@ -0,0 +1,206 @@
+package ws.haste.front;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Index of resource paths, built once when the configuration is loaded
+ * <p>
+ * Paths without wildcards are looked up in a hash table, paths whose only wildcard is a trailing {@code *} in a prefix
+ * trie, and all other paths are compiled into segment matchers. Matching is case-insensitive and, like a linear scan
+ * of the configuration, the resource highest up in the configuration wins. Lookups do not allocate.
+ * <p>
+ * Unlike the linear scan, which matched paths with their trailing slashes removed, prefix patterns match the path with
+ * its trailing slashes, so that {@code /dir/*} matches {@code /dir/}, the index of a directory mount.
+ */
+public final class RouteTable<T extends Resource> {
+    private final @NotNull T @NotNull [] resources;
+
+    // exact paths: open addressing, keys are lower-case
+    private final @Nullable String @NotNull [] exactKeys;
+    private final int @NotNull [] exactIndexes;
+    private final int exactMask;
+
+    private final @NotNull Node prefixes = new Node();
+    private final @NotNull Glob @NotNull [] globs;
+
+    public RouteTable(final @NotNull T @NotNull [] resources) {
+        this.resources = resources;
+
+        int capacity = 16;
+        while (capacity < resources.length * 2) capacity <<= 1;
+        this.exactKeys = new String[capacity];
+        this.exactIndexes = new int[capacity];
+        this.exactMask = capacity - 1;
+
+        final @NotNull List<@NotNull Glob> globs = new ArrayList<>();
+        for (int i = 0; i < resources.length; ++i) {
+            final @NotNull String pattern = resources[i].url;
+            final int star = pattern.indexOf('*');
+            if (star == -1) putExact(pattern, i);
+            else if (star == pattern.length() - 1) this.prefixes.put(pattern, star, i);
+            else globs.add(new Glob(pattern, i));
+        }
+        this.globs = globs.toArray(new Glob[0]);
+    }
+
+    public @NotNull T @NotNull [] resources() {
+        return this.resources;
+    }
+
+    /**
+     * Find the resource for a request path. Trailing slashes in the path are ignored, except by prefix patterns.
+     *
+     * @return the first matching resource, or {@code null} if no resource matches
+     */
+    public @Nullable T find(@NotNull String path) {
+        int length = path.length();
+        while (length > 0 && path.charAt(length - 1) == '/') --length;
+        if (length == 0 || path.isBlank()) {
+            path = "/";
+            length = 1;
+        }
+
+        int best = findExact(path, length);
+        // with its trailing slashes, so that `/dir/` matches `/dir/*`
+        best = Math.min(best, this.prefixes.find(path, path.length()));
+        for (final @NotNull Glob glob : this.globs) {
+            if (glob.index >= best) break;
+            if (glob.matches(path, length)) {
+                best = glob.index;
+                break;
+            }
+        }
+        return best == Integer.MAX_VALUE ? null : this.resources[best];
+    }
+
+    private static int hash(final @NotNull String s, final int length) {
+        int h = 0;
+        for (int i = 0; i < length; ++i) h = 31 * h + Character.toLowerCase(s.charAt(i));
+        return h ^ (h >>> 16);
+    }
+
+    private void putExact(final @NotNull String pattern, final int index) {
+        int slot = hash(pattern, pattern.length()) & this.exactMask;
+        while (this.exactKeys[slot] != null) {
+            if (this.exactKeys[slot].equalsIgnoreCase(pattern)) return;
+            slot = (slot + 1) & this.exactMask;
+        }
+        this.exactKeys[slot] = pattern.toLowerCase(Locale.ROOT);
+        this.exactIndexes[slot] = index;
+    }
+
+    private int findExact(final @NotNull String path, final int length) {
+        int slot = hash(path, length) & this.exactMask;
+        @Nullable String key;
+        while ((key = this.exactKeys[slot]) != null) {
+            if (key.length() == length && key.regionMatches(true, 0, path, 0, length)) return this.exactIndexes[slot];
+            slot = (slot + 1) & this.exactMask;
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Prefix trie node. Children are kept in arrays sorted by (lower-case) character.
+     */
+    private static final class Node {
+        private char @NotNull [] keys = new char[0];
+        private @NotNull Node @NotNull [] children = new Node[0];
+        private int index = Integer.MAX_VALUE;
+
+        private void put(final @NotNull String prefix, final int length, final int index) {
+            @NotNull Node node = this;
+            for (int i = 0; i < length; ++i) node = node.child(Character.toLowerCase(prefix.charAt(i)));
+            node.index = Math.min(node.index, index);
+        }
+
+        private @NotNull Node child(final char c) {
+            final int i = Arrays.binarySearch(this.keys, c);
+            if (i >= 0) return this.children[i];
+            final int insert = -i - 1;
+            final @NotNull Node child = new Node();
+            final char @NotNull [] keys = new char[this.keys.length + 1];
+            final @NotNull Node @NotNull [] children = new Node[this.children.length + 1];
+            System.arraycopy(this.keys, 0, keys, 0, insert);
+            System.arraycopy(this.children, 0, children, 0, insert);
+            keys[insert] = c;
+            children[insert] = child;
+            System.arraycopy(this.keys, insert, keys, insert + 1, this.keys.length - insert);
+            System.arraycopy(this.children, insert, children, insert + 1, this.children.length - insert);
+            this.keys = keys;
+            this.children = children;
+            return child;
+        }
+
+        /**
+         * @return the lowest resource index of all prefixes of the path, or {@link Integer#MAX_VALUE}
+         */
+        private int find(final @NotNull String path, final int length) {
+            @Nullable Node node = this;
+            int best = this.index;
+            for (int i = 0; i < length; ++i) {
+                final int c = Arrays.binarySearch(node.keys, Character.toLowerCase(path.charAt(i)));
+                if (c < 0) return best;
+                node = node.children[c];
+                best = Math.min(best, node.index);
+            }
+            return best;
+        }
+    }
+
+    /**
+     * Wildcard pattern compiled into the literal segments between {@code *}s
+     */
+    private static final class Glob {
+        private final int index;
+        private final @NotNull String @NotNull [] segments;
+        private final boolean anchoredStart;
+        private final boolean anchoredEnd;
+        private final int minLength;
+
+        private Glob(final @NotNull String pattern, final int index) {
+            this.index = index;
+            this.segments = Arrays.stream(pattern.toLowerCase(Locale.ROOT).split("\\*+")).filter(s -> !s.isEmpty()).toArray(String[]::new);
+            this.anchoredStart = !pattern.startsWith("*");
+            this.anchoredEnd = !pattern.endsWith("*");
+            this.minLength = Arrays.stream(this.segments).mapToInt(String::length).sum();
+        }
+
+        private boolean matches(final @NotNull String path, final int length) {
+            if (length < this.minLength) return false;
+            int from = 0;
+            int to = length;
+            int first = 0;
+            int last = this.segments.length;
+            if (this.anchoredStart) {
+                final @NotNull String segment = this.segments[first++];
+                if (!segment.regionMatches(true, 0, path, 0, segment.length())) return false;
+                from = segment.length();
+            }
+            if (this.anchoredEnd) {
+                final @NotNull String segment = this.segments[--last];
+                if (to - segment.length() < from || !segment.regionMatches(true, 0, path, to - segment.length(), segment.length())) return false;
+                to -= segment.length();
+            }
+            // remaining segments are surrounded by wildcards, so the leftmost occurrence of each is always the best choice
+            for (int s = first; s < last; ++s) {
+                final @NotNull String segment = this.segments[s];
+                final int found = indexOf(path, segment, from, to);
+                if (found == -1) return false;
+                from = found + segment.length();
+            }
+            return true;
+        }
+
+        private static int indexOf(final @NotNull String path, final @NotNull String segment, final int from, final int to) {
+            for (int i = from; i <= to - segment.length(); ++i)
+                if (segment.regionMatches(true, 0, path, i, segment.length())) return i;
+            return -1;
+        }
+    }
+}
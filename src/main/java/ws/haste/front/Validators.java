@@ -0,0 +1,224 @@
+package ws.haste.front;
+
+import io.vertx.core.Future;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Computed {@code ETag} and {@code Last-Modified} validators of files
+ * <p>
+ * The ETag of a file is a strong validator derived from a hash of its content, so each encoding variant gets its own.
+ * Validators are computed on a worker thread: until a file has been hashed, it is served without validators. Files
+ * are checked against their modification time and size at most once per check interval and hashed again when they
+ * change.
+ */
+public final class Validators {
+    /**
+     * IMF-fixdate; unlike {@link DateTimeFormatter#RFC_1123_DATE_TIME}, the day always has two digits
+     */
+    private static final @NotNull DateTimeFormatter HTTP_DATE = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.ENGLISH).withZone(ZoneOffset.UTC);
+
+    public final long checkInterval;
+
+    private final @NotNull ConcurrentHashMap<@NotNull String, @NotNull Validator> validators = new ConcurrentHashMap<>();
+    private final @NotNull Set<@NotNull String> pending = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param checkInterval milliseconds after which a file is checked for changes
+     */
+    public Validators(final long checkInterval) {
+        this.checkInterval = checkInterval;
+    }
+
+    /**
+     * Get the validators of a file. Never blocks: if the validators are missing or due to be checked, that is done in
+     * the background.
+     *
+     * @param filePath path of the file on disk, or a {@code haste://} URI
+     * @return the last known validators, or {@code null} if they have not been computed yet
+     */
+    public @Nullable Validator get(final @NotNull String filePath) {
+        final @Nullable Validator validator = this.validators.get(filePath);
+        if (validator != null && (validator.lastModified == 0 || System.currentTimeMillis() - validator.checkedAt < this.checkInterval))
+            return validator;
+        refresh(filePath, validator);
+        return validator;
+    }
+
+    /**
+     * Drop the validators of a file, e.g. because it is known to have changed
+     */
+    public void invalidate(final @NotNull String filePath) {
+        this.validators.remove(filePath);
+    }
+
+    private void refresh(final @NotNull String filePath, final @Nullable Validator previous) {
+        if (!this.pending.add(filePath)) return;
+        final long now = System.currentTimeMillis();
+        final @NotNull Future<@Nullable Validator> refreshed;
+        if (filePath.startsWith("haste://"))
+            refreshed = Front.vertx().executeBlocking(() -> new Validator(etag(filePath), 0, -1, now), false);
+        else refreshed = Front.vertx().fileSystem().props(filePath).compose(props -> {
+            if (previous != null && previous.lastModified == props.lastModifiedTime() && previous.size == props.size()) {
+                previous.checkedAt = now;
+                return Future.succeededFuture(previous);
+            }
+            // never pair the old validators with the new content while it is being hashed
+            if (previous != null) this.validators.remove(filePath, previous);
+            return Front.vertx().executeBlocking(() -> new Validator(etag(filePath), props.lastModifiedTime(), props.size(), now), false);
+        });
+        refreshed.onComplete(ar -> {
+            if (ar.succeeded()) this.validators.put(filePath, ar.result());
+            else this.validators.remove(filePath);
+            this.pending.remove(filePath);
+        });
+    }
+
+    /**
+     * Strong entity tag of a file: a truncated SHA-256 hash of its content
+     */
+    private static @NotNull String etag(final @NotNull String filePath) throws IOException {
+        final @NotNull MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (final @NotNull NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        final @NotNull InputStream source = filePath.startsWith("haste://")
+                ? Front.getInternalFile(filePath).orElseThrow(() -> new IOException("Built-in resource " + filePath + " not found"))
+                : new FileInputStream(filePath);
+        try (final @NotNull InputStream in = new DigestInputStream(source, digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return etag(digest.digest());
+    }
+
+    /**
+     * Strong entity tag from the SHA-256 hash of a content
+     */
+    public static @NotNull String etag(final byte @NotNull [] sha256) {
+        final byte @NotNull [] hash = new byte[18];
+        System.arraycopy(sha256, 0, hash, 0, hash.length);
+        return '"' + Base64.getUrlEncoder().withoutPadding().encodeToString(hash) + '"';
+    }
+
+    /**
+     * Format a time as an HTTP date
+     */
+    public static @NotNull String formatDate(final long millis) {
+        return HTTP_DATE.format(Instant.ofEpochMilli(millis));
+    }
+
+    /**
+     * Parse an HTTP date (IMF-fixdate)
+     *
+     * @return milliseconds since the epoch, or -1 if the date is invalid
+     */
+    public static long parseDate(final @NotNull String date) {
+        try {
+            return ZonedDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        }
+        catch (final @NotNull DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Whether an entity tag in a header matches, using weak comparison
+     */
+    private static boolean weakMatch(final @NotNull String header, final int start, final int end, final @NotNull String etag) {
+        final int offset = header.startsWith("W/", start) ? 2 : 0;
+        final int etagOffset = etag.startsWith("W/") ? 2 : 0;
+        final int length = end - start - offset;
+        return length == etag.length() - etagOffset && header.regionMatches(start + offset, etag, etagOffset, length);
+    }
+
+    /**
+     * Evaluate an {@code If-None-Match} header
+     *
+     * @return whether any of the listed entity tags (or {@code *}) matches
+     */
+    public static boolean matchesAny(final @NotNull String header, final @NotNull String etag) {
+        final int length = header.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && (header.charAt(i) == ' ' || header.charAt(i) == '\t' || header.charAt(i) == ',')) ++i;
+            if (i >= length) break;
+            if (header.charAt(i) == '*') return true;
+            final int start = i;
+            // entity tags are quoted and may contain commas
+            final int quote = header.indexOf('"', i);
+            if (quote == -1) return false;
+            final int close = header.indexOf('"', quote + 1);
+            if (close == -1) return false;
+            i = close + 1;
+            if (weakMatch(header, start, i, etag)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Evaluate an {@code If-Range} header
+     *
+     * @return whether the range request applies to the current representation
+     */
+    public static boolean rangeApplies(final @NotNull String header, final @Nullable String etag, final long lastModified) {
+        final @NotNull String value = header.strip();
+        if (value.startsWith("\"") || value.startsWith("W/")) {
+            // strong comparison: weak tags never match
+            return etag != null && !etag.startsWith("W/") && value.equals(etag);
+        }
+        final long date = parseDate(value);
+        return date != -1 && lastModified > 0 && date == lastModified / 1000 * 1000;
+    }
+
+    /**
+     * Validators of one file
+     */
+    public static final class Validator {
+        public final @NotNull String etag;
+        /**
+         * Modification time in milliseconds, or 0 if not known
+         */
+        public final long lastModified;
+        public final @Nullable String lastModifiedHeader;
+        /**
+         * Size in bytes, or -1 if not known
+         */
+        public final long size;
+        private volatile long checkedAt;
+
+        /**
+         * Validators known up front, e.g. from a {@link DirectoryResource} index; they are never checked again
+         */
+        public Validator(final @NotNull String etag, final long lastModified, final long size) {
+            this(etag, lastModified, size, 0);
+        }
+
+        private Validator(final @NotNull String etag, final long lastModified, final long size, final long checkedAt) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.lastModifiedHeader = lastModified > 0 ? formatDate(lastModified) : null;
+            this.size = size;
+            this.checkedAt = checkedAt;
+        }
+    }
+}
@@ -1,87 +1,120 @@
 package ws.haste.front;
 
+import io.netty.util.concurrent.FastThreadLocal;
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.Http2Settings;
+import io.vertx.core.http.HttpConnection;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpMethod;
 import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerOptions;
 import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.core.net.JksOptions;
+import io.vertx.core.net.PemKeyCertOptions;
+import io.vertx.core.net.PfxOptions;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.Arrays;
+import java.util.ArrayDeque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
-public class WebServer {
-    private final @NotNull Config config;
-    private final @NotNull HttpServer server;
-    public WebServer(final @NotNull Config config) {
-        Front.getLogger().info("Starting...");
-        this.config = config;
-        this.server = Front.vertx.createHttpServer();
+/**
+ * HTTP server verticle. Several instances may be deployed; they share the listening port and the configuration, with
+ * each instance running on its own event loop. Each request is handled with the configuration that is current when it
+ * arrives.
+ */
+public class WebServer extends AbstractVerticle {
+    /**
+     * Number of idle recorders kept for reuse by each instance
+     */
+    private static final int MAX_IDLE_RECORDERS = 1024;
+    /**
+     * Recorder of the request whose handling is running on the current thread, to which resources report the
+     * encoding they negotiated
+     */
+    private static final @NotNull FastThreadLocal<@Nullable Recorder> dispatching = new FastThreadLocal<>();
 
-        registerDefaultErrorPages();
-        server.requestHandler(this::requestListener);
-        server.listen(config.port());
-        Front.getLogger().info("Listening on port " + config.port());
+    private final @NotNull ConfigReloader reloader;
+    /**
+     * Connections of clients that had too many connections open when they connected; their requests are refused
+     */
+    private final @NotNull HashSet<@NotNull HttpConnection> refusedConnections = new HashSet<>();
+    private final @NotNull ArrayDeque<@NotNull Recorder> recorders = new ArrayDeque<>();
+    public WebServer(final @NotNull ConfigReloader reloader) {
+        this.reloader = reloader;
     }
-    public void stop() {
-        final @NotNull CompletableFuture<@NotNull Void> closeWs = new CompletableFuture<>();
-        server.close().onComplete((v) -> {
-            closeWs.complete(v.result());
-        });
-        closeWs.join();
 
-        final @NotNull CompletableFuture<@NotNull Void> closeVertx = new CompletableFuture<>();
-        Front.vertx.close().onComplete((v) -> {
-            closeVertx.complete(v.result());
-        });
-        closeVertx.join();
+    @Override
+    public void start(final @NotNull Promise<@NotNull Void> startPromise) {
+        final @NotNull Config config = reloader.config();
+        final @NotNull HttpServer server = vertx.createHttpServer(serverOptions(config));
+        server.requestHandler(this::requestListener);
+        server.connectionHandler(this::connectionListener);
+        server.listen(config.port()).<@NotNull Void>mapEmpty().onComplete(startPromise);
     }
 
-    private boolean wildcardMatch(final @NotNull String pattern, final @NotNull String text) {
-        int m = pattern.length();
-        int n = text.length();
-        boolean[][] dp = new boolean[m + 1][n + 1];
+    /**
+     * Create the HTTP server options for a configuration (socket settings, TLS, ALPN, HTTP/2)
+     */
+    public static @NotNull HttpServerOptions serverOptions(final @NotNull Config config) {
+        final @NotNull HttpServerOptions options = new HttpServerOptions();
+        final @NotNull Config.Transport transport = config.transport();
+        options.setTcpNoDelay(transport.tcpNoDelay())
+                .setTcpFastOpen(transport.tcpFastOpen())
+                .setTcpCork(transport.tcpCork())
+                .setTcpQuickAck(transport.tcpQuickAck())
+                .setReusePort(transport.reusePort())
+                .setAcceptBacklog(transport.acceptBacklog())
+                .setSendBufferSize(transport.sendBufferSize())
+                .setReceiveBufferSize(transport.receiveBufferSize())
+                .setIdleTimeout(transport.idleTimeout())
+                .setIdleTimeoutUnit(TimeUnit.MILLISECONDS)
+                .setTcpKeepAlive(transport.tcpKeepAlive());
 
-        dp[0][0] = true;
-
-        for (int i = 1; i <= m; ++i)
-            if (pattern.charAt(i - 1) == '*')
-                dp[i][0] = dp[i - 1][0];
-
-        for (int i = 1; i <= m; ++i)
-            for (int j = 1; j <= n; ++j) {
-                if (pattern.charAt(i - 1) == '*' || Character.toLowerCase(pattern.charAt(i - 1)) == Character.toLowerCase(text.charAt(j - 1)))
-                    dp[i][j] = dp[i - 1][j - 1] || dp[i][j - 1] || dp[i - 1][j];
-                else dp[i][j] = false;
-            }
+        final @NotNull Config.Http2 http2 = config.http2();
+        options.setHttp2ClearTextEnabled(http2.h2c());
+        options.setInitialSettings(new Http2Settings()
+                .setMaxConcurrentStreams(http2.maxConcurrentStreams())
+                .setInitialWindowSize(http2.initialWindowSize()));
+        options.setHttp2ConnectionWindowSize(http2.connectionWindowSize());
 
-        return dp[m][n];
-    }
-
-    private @NotNull String removeTrailingSlashes(final @NotNull String url) {
-        final @NotNull String s = url.strip();
-        if (s.equals("/") || s.isEmpty()) return "/";
-        int i = url.length() - 1;
-        while (i >= 0 && url.charAt(i) == '/') --i;
-        return url.substring(0, i + 1);
-    }
-
-    private @NotNull Optional<@NotNull FileResource> findResource(final @NotNull HttpServerRequest req) {
-        return Arrays.stream(config.resources()).filter(r -> wildcardMatch(r.url, removeTrailingSlashes(req.path()))).findFirst();
+        final @Nullable Config.Tls tls = config.tls();
+        if (tls != null) {
+            options.setSsl(true);
+            if (tls.keystore() == null)
+                options.setKeyCertOptions(new PemKeyCertOptions().setCertPath(tls.cert()).setKeyPath(tls.key()));
+            else if (tls.keystore().toLowerCase().endsWith(".jks"))
+                options.setKeyCertOptions(new JksOptions().setPath(tls.keystore()).setPassword(tls.keystorePassword()));
+            else
+                options.setKeyCertOptions(new PfxOptions().setPath(tls.keystore()).setPassword(tls.keystorePassword()));
+            options.setUseAlpn(http2.enabled());
+            options.setAlpnVersions(http2.enabled() ? List.of(HttpVersion.HTTP_2, HttpVersion.HTTP_1_1) : List.of(HttpVersion.HTTP_1_1));
+        }
+        return options;
     }
 
     private void sendError(final @NotNull HttpServerRequest req, final int status, final @Nullable HashMap<@NotNull String, @NotNull String> headers) {
         final @NotNull HttpServerResponse res = req.response();
-        final @NotNull Optional<@NotNull ErrorResource> errorResource = Optional.ofNullable(config.errorResources().get(status));
+        final @NotNull Optional<@NotNull ErrorResource> errorResource = Optional.ofNullable(reloader.config().errorResources().get(status));
         if (errorResource.isEmpty()) sendFailSafeServerError(req);
         else {
+            // headers of the resource that failed do not apply to the error page
+            res.headers().clear();
             res.setStatusCode(status);
-            res.headers().set("Content-Type", errorResource.get().contentType);
             if (headers != null) res.headers().addAll(headers);
             try {
-                errorResource.get().serve(req);
+                errorResource.get().serve(req).onFailure(e -> sendFailSafeServerError(req));
             }
             catch (final @NotNull Throwable ignored) {
                 sendFailSafeServerError(req);
@@ -97,31 +130,195 @@ public class WebServer {
         if (error.cause != null) Front.getLogger().error("HTTP Error " + error.status, error.cause);
         sendError(req, error.status, error.headers);
     }
-    
+
+    /**
+     * Handle a failure that occurred while a response was being served asynchronously. If the response has already
+     * started, the error can no longer be reported to the client and the connection is reset instead.
+     */
+    private void sendError(final @NotNull HttpServerRequest req, final @NotNull Throwable error) {
+        final @NotNull HttpServerResponse res = req.response();
+        if (res.closed() || res.ended()) return;
+        if (res.headWritten()) {
+            Front.getLogger().error("Error while sending response", error);
+            res.reset();
+            return;
+        }
+        if (error instanceof final @NotNull WebServerException e) sendError(req, e);
+        else sendError(req, new WebServerException(500, error));
+    }
+
     private void sendFailSafeServerError(final @NotNull HttpServerRequest req) {
         final @NotNull HttpServerResponse res = req.response();
+        if (res.closed() || res.ended()) return;
+        if (res.headWritten()) {
+            res.reset();
+            return;
+        }
         try {
-            final @NotNull ErrorResource e500 = Objects.requireNonNull(config.errorResources().get(500));
-            e500.serve(req);
+            final @NotNull ErrorResource e500 = Objects.requireNonNull(reloader.config().errorResources().get(500));
+            res.headers().clear();
+            res.setStatusCode(500);
+            e500.serve(req).onFailure(e -> sendPlainServerError(res));
         }
         catch (final @NotNull WebServerException ignored) {
-            res.setStatusCode(500);
-            res.headers().set("Content-Type", "text/plain");
-            res.end("500");
+            sendPlainServerError(res);
+        }
+    }
+
+    private void sendPlainServerError(final @NotNull HttpServerResponse res) {
+        if (res.closed() || res.ended()) return;
+        if (res.headWritten()) {
+            res.reset();
+            return;
         }
+        res.headers().clear();
+        reloader.config().headers().apply(res);
+        res.setStatusCode(500);
+        res.headers().set(HttpHeaders.CONTENT_TYPE, "text/plain");
+        res.end("500");
+    }
+
+    private void connectionListener(final @NotNull HttpConnection conn) {
+        final @NotNull Config config = reloader.config();
+        final boolean metrics = config.metrics().enabled();
+        final @Nullable RateLimiter limiter = config.limiter();
+        final RateLimiter.@Nullable Client client = limiter == null || limiter.limits.connections() == 0 || conn.remoteAddress() == null ? null : limiter.client(conn.remoteAddress().hostAddress());
+        if (!metrics && client == null) return;
+        if (metrics) Metrics.connectionOpened();
+        if (client != null && client.connections.incrementAndGet() > limiter.limits.connections()) refusedConnections.add(conn);
+        conn.closeHandler(v -> {
+            if (metrics) Metrics.connectionClosed();
+            if (client != null) {
+                client.connections.decrementAndGet();
+                refusedConnections.remove(conn);
+            }
+        });
     }
 
     private void requestListener(final @NotNull HttpServerRequest req) {
+        final @NotNull Config config = reloader.config();
         final @NotNull HttpServerResponse res = req.response();
-        res.headers().addAll(config.headers());
+        final Config.@NotNull MetricsEndpoint metrics = config.metrics();
+        if (metrics.enabled() && metrics.port() == 0 && req.path().equals(metrics.path())) {
+            config.headers().apply(res);
+            serveMetrics(req);
+            return;
+        }
+        RateLimiter.@Nullable Transfer transfer = null;
+        @Nullable Recorder recorder = null;
         try {
-            final @NotNull Optional<@NotNull FileResource> resource = findResource(req);
-            if (resource.isEmpty()) sendError(req, 404);
-            else resource.get().serve(req);
+            final @Nullable Resource resource = config.routes().find(req.path());
+            final @Nullable AccessLogger accessLogger = config.accessLogger() != null && config.accessLogger().sample() ? config.accessLogger() : null;
+            if (metrics.enabled() || accessLogger != null) {
+                recorder = this.recorders.isEmpty() ? new Recorder() : this.recorders.pop();
+                recorder.start(req, resource, metrics.enabled() ? resource == null ? Metrics.unmatched : resource.metrics : null, accessLogger);
+                res.endHandler(recorder);
+                dispatching.set(recorder);
+            }
+            if (!refusedConnections.isEmpty() && refusedConnections.contains(req.connection())) {
+                final @NotNull WebServerException e = RateLimiter.limited(429, 1);
+                if (req.version() != HttpVersion.HTTP_2) e.headers.put("Connection", "close");
+                res.bodyEndHandler(v -> req.connection().close());
+                throw e;
+            }
+            final @Nullable RateLimiter resourceLimiter = resource == null ? null : config.resourceLimiters().get(resource);
+            if ((config.limiter() != null || resourceLimiter != null) && req.remoteAddress() != null) {
+                transfer = RateLimiter.admit(config.limiter(), resourceLimiter, req.remoteAddress().hostAddress());
+            }
+            final RateLimiter.@Nullable Transfer t = transfer;
+            if (t != null) res.headersEndHandler(v -> t.start(res));
+            if (resource == null) {
+                // a 404 is never a large transfer
+                if (t != null) t.end();
+                sendError(req, 404);
+            }
+            else {
+                final @NotNull Future<@NotNull Void> served = resource.serve(req);
+                if (t != null) served.onComplete(ar -> t.end());
+                final @Nullable Recorder r = recorder;
+                served.onFailure(e -> {
+                    dispatching.set(r);
+                    try {
+                        sendError(req, e);
+                    }
+                    finally {
+                        dispatching.remove();
+                    }
+                });
+            }
         }
         catch (final @NotNull WebServerException e) {
+            if (transfer != null) transfer.end();
             sendError(req, e);
         }
+        finally {
+            if (recorder != null) dispatching.remove();
+        }
+    }
+
+    /**
+     * Note the encoding that a resource negotiated for the request being handled on this thread, so its metrics do not
+     * have to look up the {@code Content-Encoding} header
+     */
+    public static void negotiated(final FileResource.@NotNull Encoding encoding) {
+        final @Nullable Recorder recorder = dispatching.get();
+        if (recorder != null) recorder.encoding = encoding;
+    }
+
+    /**
+     * Records the metrics and access log entry of a response. Vert.x calls the end handler both when the response has
+     * ended and when its connection closed before that, so aborted responses are recorded too. Recorders are reused,
+     * so instrumenting a request does not allocate.
+     */
+    private final class Recorder implements Handler<@Nullable Void> {
+        private @Nullable HttpServerRequest req;
+        private @Nullable Resource resource;
+        private Metrics.@Nullable ResourceMetrics metrics;
+        private @Nullable AccessLogger accessLogger;
+        private FileResource.@Nullable Encoding encoding;
+        private long start;
+
+        /**
+         * @param metrics      metrics to record to, if enabled
+         * @param accessLogger access log to write to, if enabled and sampled
+         */
+        private void start(final @NotNull HttpServerRequest req, final @Nullable Resource resource, final Metrics.@Nullable ResourceMetrics metrics, final @Nullable AccessLogger accessLogger) {
+            this.req = req;
+            this.resource = resource;
+            this.metrics = metrics;
+            this.accessLogger = accessLogger;
+            this.encoding = null;
+            this.start = System.nanoTime();
+        }
+
+        @Override
+        public void handle(final @Nullable Void v) {
+            final @NotNull HttpServerRequest req = Objects.requireNonNull(this.req);
+            if (this.metrics != null) Metrics.record(this.metrics, req.response(), this.encoding, this.start);
+            if (this.accessLogger != null) this.accessLogger.log(req, req.response(), this.resource, this.start);
+            this.req = null;
+            this.resource = null;
+            this.metrics = null;
+            this.accessLogger = null;
+            if (recorders.size() < MAX_IDLE_RECORDERS) recorders.push(this);
+        }
+    }
+
+    /**
+     * Respond with the metrics in the Prometheus text format
+     */
+    public static void serveMetrics(final @NotNull HttpServerRequest req) {
+        final @NotNull HttpServerResponse res = req.response();
+        if (req.method() != HttpMethod.GET && req.method() != HttpMethod.HEAD) {
+            res.setStatusCode(405).end();
+            return;
+        }
+        final @NotNull Buffer body = Buffer.buffer(Metrics.export());
+        res.headers().set(HttpHeaders.CONTENT_TYPE, "text/plain; version=0.0.4; charset=utf-8");
+        res.headers().set(HttpHeaders.CACHE_CONTROL, "no-store");
+        res.headers().set(HttpHeaders.CONTENT_LENGTH, String.valueOf(body.length()));
+        if (req.method() == HttpMethod.HEAD) res.end();
+        else res.end(body);
     }
 
     public static @NotNull Optional<@NotNull Float> parseFloat(final @NotNull String s) {
@@ -141,20 +338,4 @@ public class WebServer {
             return Optional.empty();
         }
     }
-
-    private void registerDefaultErrorPages() {
-        final int @NotNull [] statuses = {404, 416, 500};
-        for (final int status : statuses) {
-            if (!config.errorResources().containsKey(status)) {
-                config.errorResources().put(status, new ErrorResource(
-                        "text/html",
-                        new HashMap<>() {{
-                            put(FileResource.Encoding.Identity, "haste://error/" + status + ".html");
-                        }},
-                        null,
-                        null
-                ));
-            }
-        }
-    }
 }
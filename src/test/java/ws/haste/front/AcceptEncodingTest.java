@@ -0,0 +1,105 @@
+package ws.haste.front;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class AcceptEncodingTest {
+    private static final FileResource.@NotNull Encoding IDENTITY = FileResource.Encoding.Identity;
+    private static final FileResource.@NotNull Encoding GZIP = FileResource.Encoding.Gzip;
+    private static final FileResource.@NotNull Encoding DEFLATE = FileResource.Encoding.Deflate;
+    private static final FileResource.@NotNull Encoding BROTLI = FileResource.Encoding.Brotli;
+
+    private static FileResource.@Nullable Encoding negotiate(final @Nullable String header, final FileResource.@NotNull Encoding @NotNull ... available) {
+        return AcceptEncoding.negotiate(header, AcceptEncoding.mask(List.of(available)));
+    }
+
+    @Test
+    void withoutHeaderPrefersIdentity() {
+        assertEquals(IDENTITY, negotiate(null, IDENTITY, GZIP, BROTLI));
+        assertEquals(BROTLI, negotiate(null, GZIP, BROTLI));
+    }
+
+    @Test
+    void highestQValueWins() {
+        assertEquals(GZIP, negotiate("br;q=0.5, gzip;q=0.8", IDENTITY, GZIP, BROTLI));
+        assertEquals(BROTLI, negotiate("gzip;q=0.001, br;q=0.002", GZIP, BROTLI));
+        assertEquals(IDENTITY, negotiate("gzip;q=0.5, identity", IDENTITY, GZIP));
+    }
+
+    @Test
+    void tiesArePreferenceOrdered() {
+        assertEquals(BROTLI, negotiate("gzip, deflate, br", IDENTITY, GZIP, DEFLATE, BROTLI));
+        assertEquals(GZIP, negotiate("deflate, gzip", IDENTITY, GZIP, DEFLATE));
+        assertEquals(GZIP, negotiate("gzip;q=0.5, identity;q=0.5", IDENTITY, GZIP));
+    }
+
+    @Test
+    void unlistedEncodingsAreNotAcceptable() {
+        assertEquals(IDENTITY, negotiate("br", IDENTITY, GZIP));
+        assertNull(negotiate("br", GZIP));
+    }
+
+    @Test
+    void identityCanBeRefused() {
+        assertEquals(IDENTITY, negotiate("", IDENTITY));
+        assertNull(negotiate("identity;q=0", IDENTITY));
+        assertNull(negotiate("gzip, identity;q=0", IDENTITY, DEFLATE));
+        assertEquals(GZIP, negotiate("gzip, identity;q=0", IDENTITY, GZIP));
+    }
+
+    @Test
+    void catchAllAppliesToUnlistedEncodings() {
+        assertEquals(BROTLI, negotiate("*", IDENTITY, GZIP, BROTLI));
+        assertEquals(IDENTITY, negotiate("*;q=0.5, identity", IDENTITY, GZIP));
+        assertEquals(GZIP, negotiate("br;q=0, *;q=0.1", GZIP, BROTLI));
+        assertNull(negotiate("*;q=0", IDENTITY, GZIP));
+        assertEquals(IDENTITY, negotiate("*;q=0, identity", IDENTITY, GZIP));
+    }
+
+    @Test
+    void namesAndParametersAreCaseInsensitive() {
+        assertEquals(GZIP, negotiate("GZip;Q=1", IDENTITY, GZIP));
+        assertNull(negotiate("IDENTITY;Q=0", IDENTITY));
+    }
+
+    @Test
+    void firstOccurrenceCounts() {
+        assertNull(negotiate("gzip;q=0, gzip", GZIP));
+        assertEquals(GZIP, negotiate("gzip, gzip;q=0", GZIP));
+    }
+
+    @Test
+    void malformedWeightsAreIgnored() {
+        // the element is dropped, so gzip is not acceptable and identity is sent
+        assertEquals(IDENTITY, negotiate("gzip;q=2", IDENTITY, GZIP));
+        assertEquals(IDENTITY, negotiate("gzip;q=1.001", IDENTITY, GZIP));
+        assertEquals(IDENTITY, negotiate("gzip;q=0.5000", IDENTITY, GZIP));
+        assertEquals(IDENTITY, negotiate("gzip;q=", IDENTITY, GZIP));
+        assertEquals(IDENTITY, negotiate("gzip;q=.5", IDENTITY, GZIP));
+        assertEquals(IDENTITY, negotiate("gzip;q=0.x", IDENTITY, GZIP));
+        // a dropped element does not affect the others
+        assertEquals(BROTLI, negotiate("gzip;q=abc, br;q=0.1", IDENTITY, GZIP, BROTLI));
+    }
+
+    @Test
+    void otherParametersAndWhitespaceAreSkipped() {
+        assertEquals(GZIP, negotiate("  gzip ; level=9 ;q=0.9 , identity;q=0.1", IDENTITY, GZIP));
+        assertEquals(GZIP, negotiate("gzip,\tbr;q=0", GZIP, BROTLI));
+        assertEquals(GZIP, negotiate("unknown, gzip", IDENTITY, GZIP));
+    }
+
+    @Test
+    void memoizedResultsDependOnTheAvailableEncodings() {
+        final @NotNull String header = "br;q=0.9, gzip;q=0.8";
+        assertEquals(BROTLI, negotiate(header, GZIP, BROTLI));
+        assertEquals(GZIP, negotiate(header, GZIP));
+        assertEquals(BROTLI, negotiate(header, GZIP, BROTLI));
+        assertEquals(IDENTITY, negotiate(header, IDENTITY));
+    }
+}
@@ -0,0 +1,95 @@
+package ws.haste.front;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RangesTest {
+    private static Ranges.@NotNull OptimisedRanges optimise(final @NotNull String header, final long size, final long coalesceGap) {
+        final @NotNull Ranges ranges = Ranges.fromString(header);
+        assertEquals("bytes", ranges.unit);
+        assertTrue(ranges.valid(), header);
+        return ranges.optimiseRanges(size, coalesceGap);
+    }
+
+    /**
+     * Optimised ranges as {@code {start, end}} pairs
+     */
+    private static long @NotNull [] @NotNull [] bounds(final @NotNull String header, final long size, final long coalesceGap) {
+        return Arrays.stream(optimise(header, size, coalesceGap).ranges).map(r -> new long[]{r.start, r.end}).toArray(long[][]::new);
+    }
+
+    @Test
+    void explicitAndOpenRanges() {
+        assertArrayEquals(new long[][]{{0, 99}}, bounds("bytes=0-99", 1000, 0));
+        assertArrayEquals(new long[][]{{900, 999}}, bounds("bytes=900-", 1000, 0));
+        // the last position is clamped to the end of the representation
+        assertArrayEquals(new long[][]{{900, 999}}, bounds("bytes=900-5000", 1000, 0));
+    }
+
+    @Test
+    void suffixRanges() {
+        assertArrayEquals(new long[][]{{500, 999}}, bounds("bytes=-500", 1000, 0));
+        // a suffix longer than the representation selects all of it
+        assertArrayEquals(new long[][]{{0, 299}}, bounds("bytes=-500", 300, 0));
+        assertArrayEquals(new long[][]{{999, 999}}, bounds("bytes=-1", 1000, 0));
+    }
+
+    @Test
+    void unsatisfiableRangesAreDropped() {
+        assertEquals(0, bounds("bytes=-0", 1000, 0).length);
+        assertEquals(0, bounds("bytes=1000-", 1000, 0).length);
+        assertEquals(0, bounds("bytes=0-0", 0, 0).length);
+        assertArrayEquals(new long[][]{{0, 9}}, bounds("bytes=2000-2999, 0-9", 1000, 0));
+    }
+
+    @Test
+    void adjacentRangesAreCoalesced() {
+        assertArrayEquals(new long[][]{{0, 199}}, bounds("bytes=0-99,100-199", 1000, 0));
+        assertArrayEquals(new long[][]{{0, 999}}, bounds("bytes=0-899,-100", 1000, 0));
+        assertArrayEquals(new long[][]{{800, 999}}, bounds("bytes=-100,800-899", 1000, 0));
+    }
+
+    @Test
+    void overlappingRangesAreCoalesced() {
+        assertArrayEquals(new long[][]{{0, 999}}, bounds("bytes=0-499,200-999", 1000, 0));
+        assertArrayEquals(new long[][]{{0, 999}}, bounds("bytes=0-999,10-20", 1000, 0));
+        assertArrayEquals(new long[][]{{500, 999}}, bounds("bytes=-500,600-", 1000, 0));
+    }
+
+    @Test
+    void rangesAreSorted() {
+        assertArrayEquals(new long[][]{{0, 99}, {500, 599}}, bounds("bytes=500-599,0-99", 1000, 0));
+        assertArrayEquals(new long[][]{{0, 9}, {900, 999}}, bounds("bytes=-100,0-9", 1000, 0));
+    }
+
+    @Test
+    void gapsUpToTheCoalesceGapAreMerged() {
+        assertArrayEquals(new long[][]{{0, 99}, {101, 199}}, bounds("bytes=0-99,101-199", 1000, 0));
+        assertArrayEquals(new long[][]{{0, 199}}, bounds("bytes=0-99,101-199", 1000, 1));
+        assertArrayEquals(new long[][]{{0, 99}, {200, 299}}, bounds("bytes=0-99,200-299", 1000, 99));
+        assertArrayEquals(new long[][]{{0, 299}}, bounds("bytes=0-99,200-299", 1000, 100));
+    }
+
+    @Test
+    void requestedLengthCountsRangesBeforeMerging() {
+        assertEquals(200, optimise("bytes=0-99,100-199", 1000, 0).requestedLength);
+        assertEquals(1300, optimise("bytes=0-499,200-999", 1000, 0).requestedLength);
+        assertEquals(300, optimise("bytes=-500", 300, 0).requestedLength);
+    }
+
+    @Test
+    void invalidRanges() {
+        assertFalse(Ranges.fromString("bytes=5-4").valid());
+        assertFalse(Ranges.fromString("bytes=-").valid());
+        assertFalse(Ranges.fromString("bytes=a-b").valid());
+        assertFalse(Ranges.fromString("bytes=0-9,x").valid());
+        assertEquals(0, Ranges.fromString("bytes").ranges.length);
+    }
+}
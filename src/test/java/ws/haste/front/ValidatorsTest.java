@@ -0,0 +1,91 @@
+package ws.haste.front;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ValidatorsTest {
+    private static final @NotNull String ETAG = "\"abc\"";
+    private static final @NotNull String WEAK_ETAG = "W/\"abc\"";
+    private static final long LAST_MODIFIED = 1_700_000_000_123L;
+
+    @Test
+    void matchesSingleEntityTag() {
+        assertTrue(Validators.matchesAny("\"abc\"", ETAG));
+        assertFalse(Validators.matchesAny("\"abd\"", ETAG));
+        assertFalse(Validators.matchesAny("\"ab\"", ETAG));
+        assertFalse(Validators.matchesAny("\"abcd\"", ETAG));
+        assertFalse(Validators.matchesAny("", ETAG));
+    }
+
+    @Test
+    void matchesAnyEntityTagInAList() {
+        assertTrue(Validators.matchesAny("\"x\", \"abc\"", ETAG));
+        assertTrue(Validators.matchesAny("\"x\",\t\"y\" ,, \"abc\"", ETAG));
+        assertFalse(Validators.matchesAny("\"x\", \"y\"", ETAG));
+    }
+
+    @Test
+    void comparesWeakly() {
+        assertTrue(Validators.matchesAny("W/\"abc\"", ETAG));
+        assertTrue(Validators.matchesAny("\"abc\"", WEAK_ETAG));
+        assertTrue(Validators.matchesAny("W/\"x\", W/\"abc\"", WEAK_ETAG));
+    }
+
+    @Test
+    void wildcardMatchesAnything() {
+        assertTrue(Validators.matchesAny("*", ETAG));
+        assertTrue(Validators.matchesAny(" *", WEAK_ETAG));
+    }
+
+    @Test
+    void commasInsideEntityTags() {
+        assertTrue(Validators.matchesAny("\"a,b\"", "\"a,b\""));
+        assertTrue(Validators.matchesAny("\"x\", \"a,b\"", "\"a,b\""));
+        assertFalse(Validators.matchesAny("\"a\", \"b\"", "\"a,b\""));
+    }
+
+    @Test
+    void malformedListsDoNotMatch() {
+        assertFalse(Validators.matchesAny("abc", ETAG));
+        assertFalse(Validators.matchesAny("\"abc", ETAG));
+        assertFalse(Validators.matchesAny("\"x\", \"abc", ETAG));
+    }
+
+    @Test
+    void ifRangeComparesEntityTagsStrongly() {
+        assertTrue(Validators.rangeApplies("\"abc\"", ETAG, LAST_MODIFIED));
+        assertTrue(Validators.rangeApplies(" \"abc\" ", ETAG, LAST_MODIFIED));
+        assertFalse(Validators.rangeApplies("\"abd\"", ETAG, LAST_MODIFIED));
+        assertFalse(Validators.rangeApplies("W/\"abc\"", ETAG, LAST_MODIFIED));
+        assertFalse(Validators.rangeApplies("W/\"abc\"", WEAK_ETAG, LAST_MODIFIED));
+        assertFalse(Validators.rangeApplies("\"abc\"", WEAK_ETAG, LAST_MODIFIED));
+        assertFalse(Validators.rangeApplies("\"abc\"", null, LAST_MODIFIED));
+    }
+
+    @Test
+    void ifRangeComparesDatesExactlyToTheSecond() {
+        assertTrue(Validators.rangeApplies(Validators.formatDate(LAST_MODIFIED), ETAG, LAST_MODIFIED));
+        assertTrue(Validators.rangeApplies(Validators.formatDate(LAST_MODIFIED), null, LAST_MODIFIED));
+        assertFalse(Validators.rangeApplies(Validators.formatDate(LAST_MODIFIED - 1000), ETAG, LAST_MODIFIED));
+        assertFalse(Validators.rangeApplies(Validators.formatDate(LAST_MODIFIED + 1000), ETAG, LAST_MODIFIED));
+        // without a modification time, no date matches
+        assertFalse(Validators.rangeApplies(Validators.formatDate(0), ETAG, 0));
+    }
+
+    @Test
+    void ifRangeWithInvalidDateDoesNotApply() {
+        assertFalse(Validators.rangeApplies("yesterday", ETAG, LAST_MODIFIED));
+        assertFalse(Validators.rangeApplies("", ETAG, LAST_MODIFIED));
+    }
+
+    @Test
+    void datesRoundTrip() {
+        assertEquals("Tue, 14 Nov 2023 22:13:20 GMT", Validators.formatDate(LAST_MODIFIED));
+        assertEquals(LAST_MODIFIED / 1000 * 1000, Validators.parseDate(Validators.formatDate(LAST_MODIFIED)));
+        assertEquals(-1, Validators.parseDate("Tue, 14 Nov 2023"));
+    }
+}